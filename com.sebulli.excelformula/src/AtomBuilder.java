@@ -0,0 +1,428 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import org.scilab.forge.jlatexmath.ArrayOfAtoms;
+import org.scilab.forge.jlatexmath.Atom;
+import org.scilab.forge.jlatexmath.BigOperatorAtom;
+import org.scilab.forge.jlatexmath.CharAtom;
+import org.scilab.forge.jlatexmath.FencedAtom;
+import org.scilab.forge.jlatexmath.FractionAtom;
+import org.scilab.forge.jlatexmath.MatrixAtom;
+import org.scilab.forge.jlatexmath.NthRoot;
+import org.scilab.forge.jlatexmath.RomanAtom;
+import org.scilab.forge.jlatexmath.RowAtom;
+import org.scilab.forge.jlatexmath.ScriptsAtom;
+import org.scilab.forge.jlatexmath.SpaceAtom;
+import org.scilab.forge.jlatexmath.SymbolAtom;
+import org.scilab.forge.jlatexmath.TeXConstants;
+import org.scilab.forge.jlatexmath.TeXFormula;
+import org.scilab.forge.jlatexmath.TypedAtom;
+
+/**
+ * Builds the jlatexmath atoms of an equation directly from a parsed
+ * excel formula
+ *
+ * This is the same equation as Excel2LaTex creates, but jlatexmath does
+ * not have to parse a LaTex string again. LaTeXWriter writes a LaTex
+ * string of the same equation, but only if it is really needed.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class AtomBuilder {
+
+	// Functions that are displayed as operator names like \sin
+	private static final String[] OPERATOR_NAMES = {
+		"SIN", "COS", "TAN", "SINH", "COSH", "TANH", "ARCSIN", "ARCCOS", "ARCTAN",
+		"LN", "LG", "LOG", "MIN", "MAX"
+	};
+
+	// The defined names or null
+	private final SymbolTable symbols;
+
+	// Gets the atom of every node, or null
+	private final SourceMap map;
+
+	/**
+	 * Constructor
+	 *
+	 * @param symbols
+	 * 		The defined names or null
+	 * @param map
+	 * 		Gets the atom of every node, or null
+	 */
+	private AtomBuilder(SymbolTable symbols, SourceMap map) {
+		this.symbols = symbols;
+		this.map = map;
+	}
+
+	/**
+	 * Builds the atom of an equation
+	 *
+	 * @param node
+	 * 		The root node of the parsed excel formula
+	 * @param equalsSign
+	 * 		True, to start the equation with a "=" like the excel formula
+	 * @return
+	 * 		The atom
+	 * @throws IllegalArgumentException
+	 * 		If the formula uses a function that can't be displayed
+	 */
+	public static Atom build(FormulaNode node, boolean equalsSign) {
+		return build(node, equalsSign, null);
+	}
+
+	/**
+	 * Builds the atom of an equation. Defined names with a display
+	 * formula are displayed with it.
+	 *
+	 * @param node
+	 * 		The root node of the parsed excel formula
+	 * @param equalsSign
+	 * 		True, to start the equation with a "=" like the excel formula
+	 * @param symbols
+	 * 		The defined names, that were used to parse the formula, or null
+	 * @return
+	 * 		The atom
+	 * @throws IllegalArgumentException
+	 * 		If the formula uses a function that can't be displayed
+	 */
+	public static Atom build(FormulaNode node, boolean equalsSign, SymbolTable symbols) {
+		return build(node, equalsSign, symbols, null);
+	}
+
+	/**
+	 * Builds the atom of an equation and maps the atom of every node
+	 * to its position in the excel formula
+	 *
+	 * @param node
+	 * 		The root node of the parsed excel formula
+	 * @param equalsSign
+	 * 		True, to start the equation with a "=" like the excel formula
+	 * @param symbols
+	 * 		The defined names, that were used to parse the formula, or null
+	 * @param map
+	 * 		An empty map, that gets the atom of every node, or null
+	 * @return
+	 * 		The atom
+	 * @throws IllegalArgumentException
+	 * 		If the formula uses a function that can't be displayed
+	 */
+	public static Atom build(FormulaNode node, boolean equalsSign, SymbolTable symbols, SourceMap map) {
+		AtomBuilder builder = new AtomBuilder(symbols, map);
+		if (!equalsSign)
+			return builder.build(node);
+		RowAtom row = new RowAtom(SymbolAtom.get("equals"));
+		row.add(builder.build(node));
+		return row;
+	}
+
+	/**
+	 * Builds the atom of a node
+	 *
+	 * @param node
+	 * 		The node
+	 * @return
+	 * 		The atom
+	 */
+	private Atom build(FormulaNode node) {
+		Atom atom = atom(node);
+		return (map == null) ? atom : map.wrap(node, atom);
+	}
+
+	/**
+	 * Builds the atom of a node without its position
+	 */
+	private Atom atom(FormulaNode node) {
+		switch (node.type) {
+		case FormulaNode.NUMBER:
+			return number(node.text);
+		case FormulaNode.NAME:
+			if (node.symbol >= 0 && symbols != null && symbols.getDisplay(node.symbol) != null)
+				return symbols.getAtom(node.symbol);
+			return name(node.text);
+		case FormulaNode.TEXT:
+			return text(node.text);
+		case FormulaNode.RANGE:
+			return row(build(node.child(0)), dots(), build(node.child(1)));
+		case FormulaNode.PAREN:
+			return fenced(build(node.child(0)), "lbrack", "rbrack");
+		case FormulaNode.UNARY:
+			return row(SymbolAtom.get(node.text.equals("-") ? "minus" : "plus"), build(node.child(0)));
+		case FormulaNode.BINARY:
+			return binary(node);
+		case FormulaNode.FUNCTION:
+			return function(node);
+		}
+		throw new IllegalArgumentException("Unknown node " + node);
+	}
+
+	/**
+	 * Builds the atom of an operator
+	 */
+	private Atom binary(FormulaNode node) {
+		String op = node.text;
+		FormulaNode left = node.child(0);
+		FormulaNode right = node.child(1);
+
+		// Fraction without brackets
+		if (op.equals("/"))
+			return new FractionAtom(build(left.unwrap()), build(right.unwrap()));
+
+		// Root or power
+		if (op.equals("^")) {
+			FormulaNode index = rootIndex(node);
+			if (index != null)
+				return new NthRoot(build(left.unwrap()), build(index));
+			return new ScriptsAtom(build(left), null, build(right.unwrap()));
+		}
+
+		// A multiplication with PI() is written without \cdot
+		if (op.equals("*") && right.is(FormulaNode.FUNCTION, "PI") && right.children.length == 0)
+			return row(build(left), SymbolAtom.get("pi"));
+
+		return row(build(left), operator(op), build(right));
+	}
+
+	/**
+	 * Builds the atom of a function
+	 */
+	private Atom function(FormulaNode node) {
+		String name = node.text;
+		int n = node.children.length;
+
+		// Functions that are not displayed
+		if (name.equals("INDIRECT") || name.equals("ADDRESS"))
+			throw new IllegalArgumentException("Function " + name + " can't be displayed");
+
+		if (name.equals("PI") && n == 0)
+			return SymbolAtom.get("pi");
+
+		if (name.equals("ABS") && n == 1)
+			return fenced(build(node.child(0).unwrap()), "vert", "vert");
+
+		if (name.equals("SQRT") && n == 1)
+			return new NthRoot(build(node.child(0).unwrap()), null);
+
+		if (name.equals("EXP") && n == 1)
+			return new ScriptsAtom(new CharAtom('e', null), null, build(node.child(0).unwrap()));
+
+		// Logical operations
+		if ((name.equals("AND") || name.equals("OR")) && n > 0) {
+			RowAtom row = new RowAtom(build(node.child(0)));
+			for (int i = 1; i < n; i++) {
+				row.add(SymbolAtom.get(name.equals("AND") ? "wedge" : "vee"));
+				row.add(build(node.child(i)));
+			}
+			return fenced(row, "lbrack", "rbrack");
+		}
+
+		// IF as a case
+		if (name.equals("IF") && (n == 2 || n == 3))
+			return cases(node);
+
+		// Sum of a range
+		if (name.equals("SUM") && n == 1 && node.child(0).type == FormulaNode.RANGE) {
+			FormulaNode range = node.child(0);
+			return new BigOperatorAtom(SymbolAtom.get("sum"), build(range.child(0)), build(range.child(1)));
+		}
+		if (name.equals("SUM"))
+			return row(SymbolAtom.get("sum"), parameters(node));
+
+		// Functions like \sin
+		for (String operatorName : OPERATOR_NAMES) {
+			if (operatorName.equals(name))
+				return row(operatorName(name.toLowerCase()), parameters(node));
+		}
+
+		// All other functions
+		return row(new RomanAtom(characters(name)), parameters(node));
+	}
+
+	/**
+	 * Builds the case of an IF function
+	 */
+	private Atom cases(FormulaNode node) {
+		ArrayOfAtoms array = new ArrayOfAtoms();
+		array.add(build(node.child(1)));
+		array.addCol();
+		array.add(text(" if "));
+		array.add(build(node.child(0)));
+		array.add(SymbolAtom.get("comma"));
+		if (node.children.length == 3) {
+			array.addRow();
+			array.add(build(node.child(2)));
+			array.addCol();
+			array.add(text(" other cases"));
+		}
+		array.addRow();
+		array.checkDimensions();
+		return new FencedAtom(new MatrixAtom(false, array, "ll"), SymbolAtom.get("lbrace"), null);
+	}
+
+	/**
+	 * Gets the index of a root like x^(1/3)
+	 *
+	 * @param node
+	 * 		A "^" operator
+	 * @return
+	 * 		The index or null, if the exponent is not 1/x
+	 */
+	static FormulaNode rootIndex(FormulaNode node) {
+		FormulaNode exponent = node.child(1).unwrap();
+		if (exponent.is(FormulaNode.BINARY, "/") && exponent.child(0).is(FormulaNode.NUMBER, "1"))
+			return exponent.child(1).unwrap();
+		return null;
+	}
+
+	/**
+	 * Builds the parameters of a function in brackets
+	 */
+	private Atom parameters(FormulaNode node) {
+		RowAtom row = new RowAtom(null);
+		for (int i = 0; i < node.children.length; i++) {
+			if (i > 0)
+				row.add(SymbolAtom.get("semicolon"));
+			row.add(build(node.child(i)));
+		}
+		return fenced(row, "lbrack", "rbrack");
+	}
+
+	/**
+	 * Gets the symbol of an operator
+	 *
+	 * @param op
+	 * 		The operator of the excel formula, e.g. "+"
+	 * @return
+	 * 		The atom of the symbol
+	 */
+	static Atom operator(String op) {
+		if (op.equals("*"))
+			return SymbolAtom.get("cdot");
+		if (op.equals("<="))
+			return SymbolAtom.get("leq");
+		if (op.equals(">="))
+			return SymbolAtom.get("geq");
+		if (op.equals("<>"))
+			return new TypedAtom(TeXConstants.TYPE_RELATION, TeXConstants.TYPE_RELATION,
+					row(SymbolAtom.get("not"), SymbolAtom.get("equals")));
+		if (op.equals("&"))
+			return new TypedAtom(TeXConstants.TYPE_BINARY_OPERATOR, TeXConstants.TYPE_BINARY_OPERATOR,
+					new RomanAtom(new CharAtom('&', null)));
+		return character(op.charAt(0));
+	}
+
+	/**
+	 * Builds an operator name like \sin
+	 */
+	private static Atom operatorName(String name) {
+		Atom atom = new TypedAtom(TeXConstants.TYPE_BIG_OPERATOR, TeXConstants.TYPE_BIG_OPERATOR,
+				new RomanAtom(characters(name)));
+		atom.type_limits = TeXConstants.SCRIPT_NOLIMITS;
+		return atom;
+	}
+
+	/**
+	 * Builds a number. The decimal separator is no punctuation.
+	 */
+	private static Atom number(String text) {
+		RowAtom row = new RowAtom(null);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == ',')
+				row.add(new TypedAtom(TeXConstants.TYPE_ORDINARY, TeXConstants.TYPE_ORDINARY, SymbolAtom.get("comma")));
+			else
+				row.add(character(c));
+		}
+		return row;
+	}
+
+	/**
+	 * Builds a name. The part after the first "_" is the index.
+	 */
+	private static Atom name(String name) {
+		int index = name.indexOf('_');
+		if (index < 0 || index == name.length() - 1)
+			return characters(name);
+		return new ScriptsAtom(characters(name.substring(0, index)), name(name.substring(index + 1)), null);
+	}
+
+	/**
+	 * Builds a text in roman font
+	 */
+	private static Atom text(String text) {
+		RowAtom row = new RowAtom(null);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == ' ')
+				row.add(new SpaceAtom());
+			else
+				row.add(new CharAtom(c, null));
+		}
+		return new RomanAtom(row);
+	}
+
+	/**
+	 * Builds "\dots"
+	 */
+	private static Atom dots() {
+		Atom dot = SymbolAtom.get("ldotp");
+		return new TypedAtom(TeXConstants.TYPE_INNER, TeXConstants.TYPE_INNER, row(dot, dot, dot));
+	}
+
+	/**
+	 * Builds a row of characters. "$" of absolute references is not displayed.
+	 */
+	private static Atom characters(String text) {
+		RowAtom row = new RowAtom(null);
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) != '$')
+				row.add(character(text.charAt(i)));
+		}
+		return row;
+	}
+
+	/**
+	 * Builds one character like the jlatexmath parser
+	 */
+	private static Atom character(char c) {
+		String symbol = (c < TeXFormula.symbolMappings.length) ? TeXFormula.symbolMappings[c] : null;
+		if (symbol != null && (c < '0' || c > '9') && !Character.isLetter(c))
+			return SymbolAtom.get(symbol);
+		return new CharAtom(c, null);
+	}
+
+	/**
+	 * Builds an atom with variable sized delimiters like \left( and \right)
+	 */
+	private static Atom fenced(Atom atom, String left, String right) {
+		return new FencedAtom(atom, SymbolAtom.get(left), SymbolAtom.get(right));
+	}
+
+	/**
+	 * Builds a row of atoms
+	 */
+	private static RowAtom row(Atom... atoms) {
+		RowAtom row = new RowAtom(atoms[0]);
+		for (int i = 1; i < atoms.length; i++)
+			row.add(atoms[i]);
+		return row;
+	}
+}
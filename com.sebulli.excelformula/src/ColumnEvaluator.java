@@ -0,0 +1,849 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates a filled down formula for many rows at once
+ *
+ * The formula is compiled into a list of instructions. Every instruction
+ * works on whole columns: it reads the results of other instructions
+ * from arrays of doubles and writes its result into its own array. So
+ * every instruction is a simple loop over all rows, that the JIT can
+ * unroll and vectorize. The rows are evaluated in blocks of BLOCK rows,
+ * so the arrays stay in the cache.
+ *
+ * References like A1 are relative to the row of the formula, like in a
+ * filled down formula. References like A$1 are the same in all rows.
+ * Like in Excel, an empty cell is 0 in a calculation, but it is skipped
+ * by functions like MIN, if it is referenced as a parameter.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class ColumnEvaluator {
+
+	// Number of rows, that are evaluated at once
+	public static final int BLOCK = 1024;
+
+	// Maximum number of cells in a range
+	private static final int MAX_RANGE = 256;
+
+	// A cell reference like A1, $B$2 or AB12
+	private static final Pattern REFERENCE = Pattern.compile("(\\$?)([A-Z]{1,3})(\\$?)([0-9]+)");
+
+	// The instructions
+	private static final int CONST = 0;
+	private static final int LOAD = 1;
+	private static final int NEG = 2;
+	private static final int ADD = 3;
+	private static final int SUB = 4;
+	private static final int MUL = 5;
+	private static final int DIV = 6;
+	private static final int POW = 7;
+	private static final int SQUARE = 8;
+	private static final int EQ = 9;
+	private static final int NE = 10;
+	private static final int LT = 11;
+	private static final int GT = 12;
+	private static final int LE = 13;
+	private static final int GE = 14;
+	private static final int AND = 15;
+	private static final int OR = 16;
+	private static final int MIN = 17;
+	private static final int MAX = 18;
+	private static final int IF = 19;
+	private static final int LOGB = 20;
+	private static final int SIN = 21;
+	private static final int COS = 22;
+	private static final int TAN = 23;
+	private static final int SINH = 24;
+	private static final int COSH = 25;
+	private static final int TANH = 26;
+	private static final int ASIN = 27;
+	private static final int ACOS = 28;
+	private static final int ATAN = 29;
+	private static final int LN = 30;
+	private static final int LOG10 = 31;
+	private static final int EXP = 32;
+	private static final int SQRT = 33;
+	private static final int ABS = 34;
+	private static final int RAW = 35;
+	private static final int MIN_REF = 36;
+	private static final int MAX_REF = 37;
+	private static final int AND_REF = 38;
+	private static final int OR_REF = 39;
+	private static final int EMPTY = 40;
+
+	// Functions with one parameter and their instruction
+	private static final Map<String, Integer> FUNCTIONS = new HashMap<String, Integer>();
+	static {
+		FUNCTIONS.put("SIN", SIN);
+		FUNCTIONS.put("COS", COS);
+		FUNCTIONS.put("TAN", TAN);
+		FUNCTIONS.put("SINH", SINH);
+		FUNCTIONS.put("COSH", COSH);
+		FUNCTIONS.put("TANH", TANH);
+		FUNCTIONS.put("ARCSIN", ASIN);
+		FUNCTIONS.put("ASIN", ASIN);
+		FUNCTIONS.put("ARCCOS", ACOS);
+		FUNCTIONS.put("ACOS", ACOS);
+		FUNCTIONS.put("ARCTAN", ATAN);
+		FUNCTIONS.put("ATAN", ATAN);
+		FUNCTIONS.put("LN", LN);
+		FUNCTIONS.put("LG", LOG10);
+		FUNCTIONS.put("LOG", LOG10);
+		FUNCTIONS.put("LOG10", LOG10);
+		FUNCTIONS.put("EXP", EXP);
+		FUNCTIONS.put("SQRT", SQRT);
+		FUNCTIONS.put("ABS", ABS);
+	}
+
+	// The instruction codes and their operands, the results of other
+	// instructions. The result of an instruction has its index.
+	private final int[] ops;
+	private final int[] a;
+	private final int[] b;
+	private final int[] c;
+
+	// The value of a constant, or the column and the row of a reference
+	private final double[] constants;
+	private final int[] columns;
+	private final int[] rows;
+	private final boolean[] absolute;
+
+	// The instruction with the result of the formula
+	private final int result;
+
+	/**
+	 * The numeric values of a sheet, by column and row. Empty cells and
+	 * texts are NaN.
+	 */
+	public static class Columns implements WorkbookReader.ValueListener {
+		private final Map<Integer, double[]> columns = new HashMap<Integer, double[]>();
+
+		/**
+		 * Sets a value
+		 */
+		public void value(int row, int column, double value) {
+			double[] values = columns.get(column);
+			if (values == null || row >= values.length) {
+				double[] grown = new double[Math.max(row + 1, (values == null) ? 1024 : values.length * 2)];
+				int length = (values == null) ? 0 : values.length;
+				if (values != null)
+					System.arraycopy(values, 0, grown, 0, length);
+				Arrays.fill(grown, length, grown.length, Double.NaN);
+				values = grown;
+				columns.put(column, values);
+			}
+			values[row] = value;
+		}
+
+		/**
+		 * Gets the values of a column
+		 *
+		 * @param column
+		 * 		The column, starting with 0
+		 * @return
+		 * 		The values by row, or null if the column is empty
+		 */
+		public double[] get(int column) {
+			return columns.get(column);
+		}
+	}
+
+	/**
+	 * Constructor
+	 */
+	private ColumnEvaluator(Compiler compiler, int result) {
+		this.result = result;
+		int n = compiler.ops.size();
+		ops = new int[n];
+		a = new int[n];
+		b = new int[n];
+		c = new int[n];
+		constants = new double[n];
+		columns = new int[n];
+		rows = new int[n];
+		absolute = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			int[] op = compiler.ops.get(i);
+			ops[i] = op[0];
+			a[i] = op[1];
+			b[i] = op[2];
+			c[i] = op[3];
+			columns[i] = op[4];
+			rows[i] = op[5];
+			absolute[i] = op[6] != 0;
+			constants[i] = compiler.constants.get(i);
+		}
+	}
+
+	/**
+	 * Compiles a formula
+	 *
+	 * @param node
+	 * 		The parsed formula
+	 * @param row
+	 * 		The row of the cell with the formula, starting with 0.
+	 * 		The relative references are relative to this row.
+	 * @return
+	 * 		The evaluator
+	 * @throws IllegalArgumentException
+	 * 		If the formula uses something, that can not be evaluated,
+	 * 		like texts, names or references to other sheets
+	 */
+	public static ColumnEvaluator compile(FormulaNode node, int row) {
+		Compiler compiler = new Compiler(row);
+		int result = compiler.compile(node);
+		return new ColumnEvaluator(compiler, result);
+	}
+
+	/**
+	 * Evaluates the formula for many rows
+	 *
+	 * @param values
+	 * 		The values of the sheet
+	 * @param firstRow
+	 * 		The first row, starting with 0
+	 * @param count
+	 * 		The number of rows
+	 * @return
+	 * 		The results, one per row
+	 */
+	public double[] evaluate(Columns values, int firstRow, int count) {
+		int n = ops.length;
+		int size = Math.min(BLOCK, Math.max(1, count));
+		double[][] r = new double[n][size];
+		double[] results = new double[count];
+
+		// Constants and absolute references are the same in all blocks
+		for (int k = 0; k < n; k++) {
+			if (ops[k] == CONST)
+				Arrays.fill(r[k], constants[k]);
+			else if (ops[k] == LOAD && absolute[k])
+				Arrays.fill(r[k], value(values.get(columns[k]), rows[k], 0.0));
+			else if (ops[k] == RAW && absolute[k])
+				Arrays.fill(r[k], value(values.get(columns[k]), rows[k], Double.NaN));
+		}
+
+		for (int start = 0; start < count; start += size) {
+			int len = Math.min(size, count - start);
+			for (int k = 0; k < n; k++)
+				execute(k, r, values, firstRow + start, len);
+			System.arraycopy(r[result], 0, results, start, len);
+		}
+		return results;
+	}
+
+	/**
+	 * Executes one instruction for a block of rows
+	 */
+	private void execute(int k, double[][] r, Columns values, int firstRow, int len) {
+		double[] x = r[k];
+		double[] p = r[a[k]];
+		double[] q = r[b[k]];
+		int i;
+
+		switch (ops[k]) {
+		case CONST:
+			break;
+		case LOAD:
+			if (!absolute[k])
+				load(values.get(columns[k]), firstRow + rows[k], x, len, 0.0);
+			break;
+		case RAW:
+			if (!absolute[k])
+				load(values.get(columns[k]), firstRow + rows[k], x, len, Double.NaN);
+			break;
+		case NEG:
+			for (i = 0; i < len; i++)
+				x[i] = -p[i];
+			break;
+		case ADD:
+			for (i = 0; i < len; i++)
+				x[i] = p[i] + q[i];
+			break;
+		case SUB:
+			for (i = 0; i < len; i++)
+				x[i] = p[i] - q[i];
+			break;
+		case MUL:
+			for (i = 0; i < len; i++)
+				x[i] = p[i] * q[i];
+			break;
+		case DIV:
+			for (i = 0; i < len; i++)
+				x[i] = p[i] / q[i];
+			break;
+		case POW:
+			for (i = 0; i < len; i++)
+				x[i] = Math.pow(p[i], q[i]);
+			break;
+		case SQUARE:
+			for (i = 0; i < len; i++)
+				x[i] = p[i] * p[i];
+			break;
+		case EQ:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] == q[i]) ? 1.0 : 0.0;
+			break;
+		case NE:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] != q[i]) ? 1.0 : 0.0;
+			break;
+		case LT:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] < q[i]) ? 1.0 : 0.0;
+			break;
+		case GT:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] > q[i]) ? 1.0 : 0.0;
+			break;
+		case LE:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] <= q[i]) ? 1.0 : 0.0;
+			break;
+		case GE:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] >= q[i]) ? 1.0 : 0.0;
+			break;
+		case AND:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] != 0.0 && q[i] != 0.0) ? 1.0 : 0.0;
+			break;
+		case OR:
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] != 0.0 || q[i] != 0.0) ? 1.0 : 0.0;
+			break;
+		case MIN:
+			for (i = 0; i < len; i++)
+				x[i] = Math.min(p[i], q[i]);
+			break;
+		case MAX:
+			for (i = 0; i < len; i++)
+				x[i] = Math.max(p[i], q[i]);
+			break;
+		case MIN_REF:
+			for (i = 0; i < len; i++)
+				x[i] = (q[i] != q[i]) ? p[i] : Math.min(p[i], q[i]);
+			break;
+		case MAX_REF:
+			for (i = 0; i < len; i++)
+				x[i] = (q[i] != q[i]) ? p[i] : Math.max(p[i], q[i]);
+			break;
+		case AND_REF:
+			for (i = 0; i < len; i++)
+				x[i] = (q[i] != q[i]) ? p[i] : ((p[i] != 0.0 && q[i] != 0.0) ? 1.0 : 0.0);
+			break;
+		case OR_REF:
+			for (i = 0; i < len; i++)
+				x[i] = (q[i] != q[i]) ? p[i] : ((p[i] != 0.0 || q[i] != 0.0) ? 1.0 : 0.0);
+			break;
+		case EMPTY:
+			for (i = 0; i < len; i++)
+				x[i] = Double.isInfinite(p[i]) ? 0.0 : p[i];
+			break;
+		case IF:
+			// Both results are calculated. They have no side effects.
+			double[] o = r[c[k]];
+			for (i = 0; i < len; i++)
+				x[i] = (p[i] != 0.0) ? q[i] : o[i];
+			break;
+		case LOGB:
+			for (i = 0; i < len; i++)
+				x[i] = Math.log(p[i]) / Math.log(q[i]);
+			break;
+		case SIN:
+			for (i = 0; i < len; i++)
+				x[i] = Math.sin(p[i]);
+			break;
+		case COS:
+			for (i = 0; i < len; i++)
+				x[i] = Math.cos(p[i]);
+			break;
+		case TAN:
+			for (i = 0; i < len; i++)
+				x[i] = Math.tan(p[i]);
+			break;
+		case SINH:
+			for (i = 0; i < len; i++)
+				x[i] = Math.sinh(p[i]);
+			break;
+		case COSH:
+			for (i = 0; i < len; i++)
+				x[i] = Math.cosh(p[i]);
+			break;
+		case TANH:
+			for (i = 0; i < len; i++)
+				x[i] = Math.tanh(p[i]);
+			break;
+		case ASIN:
+			for (i = 0; i < len; i++)
+				x[i] = Math.asin(p[i]);
+			break;
+		case ACOS:
+			for (i = 0; i < len; i++)
+				x[i] = Math.acos(p[i]);
+			break;
+		case ATAN:
+			for (i = 0; i < len; i++)
+				x[i] = Math.atan(p[i]);
+			break;
+		case LN:
+			for (i = 0; i < len; i++)
+				x[i] = Math.log(p[i]);
+			break;
+		case LOG10:
+			for (i = 0; i < len; i++)
+				x[i] = Math.log10(p[i]);
+			break;
+		case EXP:
+			for (i = 0; i < len; i++)
+				x[i] = Math.exp(p[i]);
+			break;
+		case SQRT:
+			for (i = 0; i < len; i++)
+				x[i] = Math.sqrt(p[i]);
+			break;
+		case ABS:
+			for (i = 0; i < len; i++)
+				x[i] = Math.abs(p[i]);
+			break;
+		}
+	}
+
+	/**
+	 * Copies a part of a column. Empty cells and rows outside of the
+	 * column get the value of blank cells.
+	 */
+	private static void load(double[] column, int from, double[] x, int len, double blank) {
+		int first = Math.max(0, -from);
+		int last = (column == null) ? first : Math.max(first, Math.min(len, column.length - from));
+		if (first > 0)
+			Arrays.fill(x, 0, Math.min(first, len), blank);
+		for (int i = first; i < last; i++) {
+			double value = column[from + i];
+			x[i] = (value != value) ? blank : value;
+		}
+		if (last < len)
+			Arrays.fill(x, Math.max(first, last), len, blank);
+	}
+
+	/**
+	 * Gets one value of a column or the value of blank cells
+	 */
+	private static double value(double[] column, int row, double blank) {
+		double value = (column != null && row >= 0 && row < column.length) ? column[row] : Double.NaN;
+		return (value != value) ? blank : value;
+	}
+
+	/**
+	 * Gets the number of instructions
+	 *
+	 * @return
+	 * 		The number of instructions
+	 */
+	public int size() {
+		return ops.length;
+	}
+
+	/**
+	 * Compares results with the cached values of the cells
+	 *
+	 * @param results
+	 * 		The results of evaluate()
+	 * @param cells
+	 * 		The cells of the same rows
+	 * @return
+	 * 		The indices of the rows with a different result
+	 */
+	public static int[] compare(double[] results, List<FormulaCell> cells) {
+		int[] different = new int[cells.size()];
+		int n = 0;
+		for (int i = 0; i < cells.size(); i++) {
+			if (!matches(results[i], cells.get(i).getValue()))
+				different[n++] = i;
+		}
+		return Arrays.copyOf(different, n);
+	}
+
+	/**
+	 * Checks, whether a result is the cached value. Only the errors
+	 * #DIV/0! and #NUM! match results, that are not finite. Other errors
+	 * and texts can not be the result of a numeric evaluation.
+	 */
+	private static boolean matches(double result, String cached) {
+		if (cached == null)
+			return true;
+		if (cached.equals("#DIV/0!") || cached.equals("#NUM!"))
+			return Double.isNaN(result) || Double.isInfinite(result);
+		double value;
+		try {
+			value = Double.parseDouble(cached);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return Math.abs(result - value) <= 1.0e-9 * Math.max(1.0, Math.abs(value));
+	}
+
+	/**
+	 * Compiles the nodes into instructions
+	 */
+	private static class Compiler {
+
+		// The instructions: code, operands a, b, c, column, row, absolute
+		final List<int[]> ops = new ArrayList<int[]>();
+		final List<Double> constants = new ArrayList<Double>();
+
+		// Row of the formula
+		final int row;
+
+		Compiler(int row) {
+			this.row = row;
+		}
+
+		/**
+		 * Adds an instruction
+		 */
+		int add(int op, int a, int b, int c) {
+			ops.add(new int[] { op, a, b, c, 0, 0, 0 });
+			constants.add(0.0);
+			return ops.size() - 1;
+		}
+
+		/**
+		 * Adds a constant
+		 */
+		int constant(double value) {
+			int k = add(CONST, 0, 0, 0);
+			constants.set(k, value);
+			return k;
+		}
+
+		/**
+		 * Adds a reference to a cell
+		 *
+		 * @param raw
+		 * 		True, if an empty cell is NaN instead of 0
+		 */
+		int load(int column, int refRow, boolean absoluteRow, boolean raw) {
+			int k = add(raw ? RAW : LOAD, 0, 0, 0);
+			int[] op = ops.get(k);
+			op[4] = column;
+			op[5] = absoluteRow ? refRow : refRow - row;
+			op[6] = absoluteRow ? 1 : 0;
+			return k;
+		}
+
+		/**
+		 * Compiles a node
+		 *
+		 * @return
+		 * 		The index of the instruction with the result
+		 */
+		int compile(FormulaNode node) {
+			switch (node.type) {
+			case FormulaNode.NUMBER:
+				return constant(node.value);
+
+			case FormulaNode.NAME:
+				if (node.text.equalsIgnoreCase("TRUE") || node.text.equalsIgnoreCase("WAHR"))
+					return constant(1.0);
+				if (node.text.equalsIgnoreCase("FALSE") || node.text.equalsIgnoreCase("FALSCH"))
+					return constant(0.0);
+				return reference(node.text, false);
+
+			case FormulaNode.PAREN:
+				return compile(node.child(0));
+
+			case FormulaNode.UNARY:
+				if (node.text.equals("+"))
+					return compile(node.child(0));
+				return add(NEG, compile(node.child(0)), 0, 0);
+
+			case FormulaNode.BINARY:
+				return operator(node);
+
+			case FormulaNode.FUNCTION:
+				return function(node);
+			}
+			throw new IllegalArgumentException(node + " can not be evaluated");
+		}
+
+		/**
+		 * Compiles a reference like A1 or $B$2
+		 *
+		 * @param raw
+		 * 		True, if an empty cell is NaN instead of 0
+		 */
+		private int reference(String name, boolean raw) {
+			Matcher m = REFERENCE.matcher(name.toUpperCase());
+			if (!m.matches())
+				throw new IllegalArgumentException("Name " + name + " can not be evaluated");
+			int column = FormulaCell.parseColumn(m.group(2));
+			int refRow = Integer.parseInt(m.group(4)) - 1;
+			return load(column, refRow, m.group(3).length() > 0, raw);
+		}
+
+		/**
+		 * Compiles an operator
+		 */
+		private int operator(FormulaNode node) {
+			String op = node.text;
+
+			// Square is the most common power
+			if (op.equals("^") && node.child(1).unwrap().is(FormulaNode.NUMBER, "2"))
+				return add(SQUARE, compile(node.child(0)), 0, 0);
+
+			int x = compile(node.child(0));
+			int y = compile(node.child(1));
+			if (op.equals("+"))
+				return add(ADD, x, y, 0);
+			if (op.equals("-"))
+				return add(SUB, x, y, 0);
+			if (op.equals("*"))
+				return add(MUL, x, y, 0);
+			if (op.equals("/"))
+				return add(DIV, x, y, 0);
+			if (op.equals("^"))
+				return add(POW, x, y, 0);
+			if (op.equals("="))
+				return add(EQ, x, y, 0);
+			if (op.equals("<>"))
+				return add(NE, x, y, 0);
+			if (op.equals("<"))
+				return add(LT, x, y, 0);
+			if (op.equals(">"))
+				return add(GT, x, y, 0);
+			if (op.equals("<="))
+				return add(LE, x, y, 0);
+			if (op.equals(">="))
+				return add(GE, x, y, 0);
+			throw new IllegalArgumentException("Operator " + op + " can not be evaluated");
+		}
+
+		/**
+		 * Compiles a function
+		 */
+		private int function(FormulaNode node) {
+			String name = node.text;
+			int n = node.children.length;
+
+			if (name.equals("PI") && n == 0)
+				return constant(Math.PI);
+
+			// Functions with any number of parameters are a chain of
+			// instructions with two operands. Empty referenced cells are
+			// skipped.
+			if (name.equals("SUM"))
+				return chain(ADD, ADD, node, 0.0);
+			if (name.equals("MIN"))
+				return chain(MIN, MIN_REF, node, Double.POSITIVE_INFINITY);
+			if (name.equals("MAX"))
+				return chain(MAX, MAX_REF, node, Double.NEGATIVE_INFINITY);
+			if (name.equals("AND"))
+				return chain(AND, AND_REF, node, 1.0);
+			if (name.equals("OR"))
+				return chain(OR, OR_REF, node, 0.0);
+
+			if (name.equals("IF") && (n == 2 || n == 3)) {
+				int condition = compile(node.child(0));
+				int then = compile(node.child(1));
+				int otherwise = (n == 3) ? compile(node.child(2)) : constant(0.0);
+				return add(IF, condition, then, otherwise);
+			}
+
+			if (name.equals("LOG") && n == 2)
+				return add(LOGB, compile(node.child(0)), compile(node.child(1)), 0);
+
+			Integer op = FUNCTIONS.get(name);
+			if (op == null || n != 1)
+				throw new IllegalArgumentException("Function " + name + " can not be evaluated");
+			return add(op, compile(node.child(0)), 0, 0);
+		}
+
+		/**
+		 * Compiles a chain of instructions. The referenced cells are
+		 * combined with refOp, that skips the empty cells.
+		 *
+		 * @param start
+		 * 		The neutral value, if all parameters are referenced cells
+		 */
+		private int chain(int op, int refOp, FormulaNode node, double start) {
+			List<Integer> args = args(node, refOp != op);
+
+			// Start with the first parameter, that is not a referenced cell
+			int first = -1;
+			for (int i = 0; i < args.size() && first < 0; i++) {
+				if (ops.get(args.get(i))[0] != RAW)
+					first = i;
+			}
+			int x = (first < 0) ? constant(start) : args.get(first);
+			for (int i = 0; i < args.size(); i++) {
+				if (i != first)
+					x = add((ops.get(args.get(i))[0] == RAW) ? refOp : op, x, args.get(i), 0);
+			}
+
+			// Like in Excel, MIN and MAX of only empty cells are 0. The
+			// cells are finite, so only the neutral value is infinite.
+			if (first < 0 && (op == MIN || op == MAX))
+				x = add(EMPTY, x, 0, 0);
+			return x;
+		}
+
+		/**
+		 * Compiles the parameters of a function. Ranges are expanded
+		 * into one reference per cell.
+		 *
+		 * @param raw
+		 * 		True, if empty referenced cells are NaN instead of 0
+		 */
+		private List<Integer> args(FormulaNode node, boolean raw) {
+			List<Integer> args = new ArrayList<Integer>();
+			for (FormulaNode child : node.children) {
+				FormulaNode arg = child.unwrap();
+				if (arg.type == FormulaNode.NAME && raw && REFERENCE.matcher(arg.text.toUpperCase()).matches()) {
+					args.add(reference(arg.text, true));
+					continue;
+				}
+				if (child.type != FormulaNode.RANGE) {
+					args.add(compile(child));
+					continue;
+				}
+
+				Matcher first = REFERENCE.matcher(child.child(0).text.toUpperCase());
+				Matcher last = REFERENCE.matcher(child.child(1).text.toUpperCase());
+				if (!first.matches() || !last.matches())
+					throw new IllegalArgumentException("Range " + child + " can not be evaluated");
+
+				// A range like $A$1:A1 grows from row to row
+				boolean absoluteRow = first.group(3).length() > 0;
+				if (absoluteRow != (last.group(3).length() > 0))
+					throw new IllegalArgumentException("Range " + child + " changes its size");
+
+				int c1 = FormulaCell.parseColumn(first.group(2));
+				int c2 = FormulaCell.parseColumn(last.group(2));
+				int r1 = Integer.parseInt(first.group(4)) - 1;
+				int r2 = Integer.parseInt(last.group(4)) - 1;
+				if ((Math.abs(c2 - c1) + 1) * (Math.abs(r2 - r1) + 1) > MAX_RANGE)
+					throw new IllegalArgumentException("Range " + child + " is too large");
+
+				for (int r = Math.min(r1, r2); r <= Math.max(r1, r2); r++) {
+					for (int c = Math.min(c1, c2); c <= Math.max(c1, c2); c++)
+						args.add(load(c, r, absoluteRow, raw));
+				}
+			}
+			return args;
+		}
+	}
+
+	/**
+	 * Validates all filled down formulas of a workbook against the cached
+	 * values of the cells
+	 *
+	 * @param args
+	 * 		The workbook file
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: ColumnEvaluator workbook.xlsx");
+			System.exit(1);
+		}
+
+		WorkbookReader reader = new WorkbookReader(new File(args[0]));
+		List<FormulaCell> cells = reader.read();
+		int evaluated = 0;
+		int skipped = 0;
+		int different = 0;
+		long time = 0;
+
+		// Every sheet
+		int first = 0;
+		while (first < cells.size()) {
+			String sheetName = cells.get(first).getSheetName();
+			int end = first;
+			while (end < cells.size() && cells.get(end).getSheetName().equals(sheetName))
+				end++;
+
+			Columns values = new Columns();
+			reader.readValues(sheetName, values);
+
+			// Group the cells of each column into filled down blocks
+			Map<Integer, List<FormulaCell>> byColumn = new HashMap<Integer, List<FormulaCell>>();
+			for (FormulaCell cell : cells.subList(first, end)) {
+				List<FormulaCell> column = byColumn.get(cell.getColumn());
+				if (column == null) {
+					column = new ArrayList<FormulaCell>();
+					byColumn.put(cell.getColumn(), column);
+				}
+				column.add(cell);
+			}
+
+			for (List<FormulaCell> column : byColumn.values()) {
+				int i = 0;
+				while (i < column.size()) {
+					FormulaCell master = column.get(i);
+					String formula = master.getFormula();
+
+					// The block ends at a gap or a different formula
+					int j = i + 1;
+					while (j < column.size() && column.get(j).getRow() == master.getRow() + (j - i)
+							&& column.get(j).getFormula().equals(
+									WorkbookReader.shiftReferences(formula, j - i, 0)))
+						j++;
+					List<FormulaCell> block = column.subList(i, j);
+					i = j;
+
+					ColumnEvaluator evaluator;
+					try {
+						evaluator = compile(FormulaParser.parse(formula), master.getRow());
+					} catch (IllegalArgumentException e) {
+						skipped += block.size();
+						continue;
+					}
+
+					long start = System.nanoTime();
+					double[] results = evaluator.evaluate(values, master.getRow(), block.size());
+					time += System.nanoTime() - start;
+					evaluated += block.size();
+
+					for (int row : compare(results, block)) {
+						FormulaCell cell = block.get(row);
+						System.out.println(cell + "\t" + cell.getFormula() + "\t" + results[row] + "\t" + cell.getValue());
+						different++;
+					}
+				}
+			}
+			first = end;
+		}
+
+		System.err.println(String.format("%d cells evaluated in %.1f ms, %d skipped, %d different", evaluated,
+				time / 1.0e6, skipped, different));
+	}
+}
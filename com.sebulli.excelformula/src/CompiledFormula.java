@@ -0,0 +1,712 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An excel formula, compiled for fast numeric evaluation
+ *
+ * The formula is parsed once and compiled into a tree of small
+ * expression objects, one specialized class per operator and function.
+ * Every variable and cell gets a slot in an array of values, so an
+ * evaluation only walks the tree, without any parsing or name lookup.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class CompiledFormula {
+
+	// The compiled formula
+	private final Expression root;
+
+	// Names of the variables, in the order of the value array
+	private final String[] variables;
+
+	// Slots of the variables
+	private final Map<String, Integer> slots;
+
+	/**
+	 * Constructor
+	 */
+	private CompiledFormula(Expression root, List<String> variables, Map<String, Integer> slots) {
+		this.root = root;
+		this.variables = variables.toArray(new String[variables.size()]);
+		this.slots = slots;
+	}
+
+	/**
+	 * Compiles an excel formula
+	 *
+	 * @param formula
+	 * 		The excel formula
+	 * @return
+	 * 		The compiled formula
+	 * @throws IllegalArgumentException
+	 * 		If the formula has a syntax error or an unknown function
+	 */
+	public static CompiledFormula compile(String formula) {
+		return compile(FormulaParser.parse(formula));
+	}
+
+	/**
+	 * Compiles a parsed excel formula
+	 *
+	 * @param node
+	 * 		The root of the parsed formula
+	 * @return
+	 * 		The compiled formula
+	 * @throws IllegalArgumentException
+	 * 		If the formula contains an unknown function
+	 */
+	public static CompiledFormula compile(FormulaNode node) {
+		Compiler compiler = new Compiler();
+		Expression root = compiler.compile(node);
+		return new CompiledFormula(root, compiler.names, compiler.slots);
+	}
+
+	/**
+	 * Gets the names of all variables and cells. The values must be
+	 * passed to evaluate() in the same order.
+	 *
+	 * @return
+	 * 		The variable names
+	 */
+	public String[] getVariables() {
+		return variables.clone();
+	}
+
+	/**
+	 * Gets the slot of a variable
+	 *
+	 * @param name
+	 * 		The name of the variable or cell
+	 * @return
+	 * 		The index in the value array or -1, if it is not used
+	 */
+	public int getSlot(String name) {
+		Integer slot = slots.get(normalize(name));
+		return (slot == null) ? -1 : slot;
+	}
+
+	/**
+	 * Evaluates the formula
+	 *
+	 * @param values
+	 * 		The values of the variables in the order of getVariables()
+	 * @return
+	 * 		The result
+	 */
+	public double evaluate(double[] values) {
+		return root.eval(values);
+	}
+
+	/**
+	 * Evaluates the formula. Missing values are 0.
+	 *
+	 * @param values
+	 * 		The values of the variables by name
+	 * @return
+	 * 		The result
+	 */
+	public double evaluate(Map<String, Double> values) {
+		double[] v = new double[variables.length];
+		for (Map.Entry<String, Double> e : values.entrySet()) {
+			int slot = getSlot(e.getKey());
+			if (slot >= 0)
+				v[slot] = e.getValue();
+		}
+		return evaluate(v);
+	}
+
+	/**
+	 * Removes the "$" of absolute references and converts the name to
+	 * upper case, so "$A$1", "A1" and "a1" are the same variable
+	 */
+	static String normalize(String name) {
+		return name.replace("$", "").toUpperCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * One compiled node
+	 */
+	abstract static class Expression {
+
+		/**
+		 * Evaluates the node
+		 *
+		 * @param v
+		 * 		The values of the variables
+		 * @return
+		 * 		The result
+		 */
+		abstract double eval(double[] v);
+
+		/**
+		 * Checks, whether the node does not depend on any variable
+		 */
+		boolean isConstant() {
+			return false;
+		}
+	}
+
+	/**
+	 * A constant value
+	 */
+	static final class Constant extends Expression {
+		final double value;
+
+		Constant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		double eval(double[] v) {
+			return value;
+		}
+
+		@Override
+		boolean isConstant() {
+			return true;
+		}
+	}
+
+	/**
+	 * A variable or cell
+	 */
+	static final class Variable extends Expression {
+		final int slot;
+
+		Variable(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		double eval(double[] v) {
+			return v[slot];
+		}
+	}
+
+	/**
+	 * An operator or function with one operand
+	 */
+	abstract static class Unary extends Expression {
+		final Expression a;
+
+		Unary(Expression a) {
+			this.a = a;
+		}
+
+		@Override
+		boolean isConstant() {
+			return a.isConstant();
+		}
+	}
+
+	/**
+	 * An operator or function with two operands
+	 */
+	abstract static class Binary extends Expression {
+		final Expression a;
+		final Expression b;
+
+		Binary(Expression a, Expression b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		boolean isConstant() {
+			return a.isConstant() && b.isConstant();
+		}
+	}
+
+	/**
+	 * A function with any number of parameters
+	 */
+	abstract static class Nary extends Expression {
+		final Expression[] args;
+
+		Nary(Expression[] args) {
+			this.args = args;
+		}
+
+		@Override
+		boolean isConstant() {
+			for (Expression arg : args) {
+				if (!arg.isConstant())
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Compiles the nodes and assigns the slots of the variables
+	 */
+	private static class Compiler {
+		final Map<String, Integer> slots = new HashMap<String, Integer>();
+		final List<String> names = new ArrayList<String>();
+
+		/**
+		 * Compiles a node and folds constant operands
+		 */
+		Expression compile(FormulaNode node) {
+			Expression e = compileNode(node);
+			if (e.isConstant() && !(e instanceof Constant))
+				return new Constant(e.eval(null));
+			return e;
+		}
+
+		/**
+		 * Gets the slot of a variable and creates a new one, if necessary
+		 */
+		int slot(String name) {
+			name = normalize(name);
+			Integer slot = slots.get(name);
+			if (slot == null) {
+				slot = names.size();
+				slots.put(name, slot);
+				names.add(name);
+			}
+			return slot;
+		}
+
+		/**
+		 * Compiles one node
+		 */
+		private Expression compileNode(FormulaNode node) {
+			switch (node.type) {
+			case FormulaNode.NUMBER:
+				return new Constant(node.value);
+
+			case FormulaNode.NAME:
+				if (node.text.equalsIgnoreCase("TRUE") || node.text.equalsIgnoreCase("WAHR"))
+					return new Constant(1.0);
+				if (node.text.equalsIgnoreCase("FALSE") || node.text.equalsIgnoreCase("FALSCH"))
+					return new Constant(0.0);
+				return new Variable(slot(node.text));
+
+			case FormulaNode.PAREN:
+				return compile(node.child(0));
+
+			case FormulaNode.UNARY:
+				if (node.text.equals("+"))
+					return compile(node.child(0));
+				return new Unary(compile(node.child(0))) {
+					@Override
+					double eval(double[] v) {
+						return -a.eval(v);
+					}
+				};
+
+			case FormulaNode.BINARY:
+				return compileOperator(node.text, compile(node.child(0)), compile(node.child(1)));
+
+			case FormulaNode.FUNCTION:
+				return compileFunction(node);
+
+			case FormulaNode.RANGE:
+				throw new IllegalArgumentException("Range " + node + " outside of a function");
+			}
+			throw new IllegalArgumentException("Texts are not supported: " + node);
+		}
+
+		/**
+		 * Compiles a binary operator
+		 */
+		private Expression compileOperator(String op, Expression a, Expression b) {
+			if (op.equals("+"))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return a.eval(v) + b.eval(v);
+					}
+				};
+			if (op.equals("-"))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return a.eval(v) - b.eval(v);
+					}
+				};
+			if (op.equals("*"))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return a.eval(v) * b.eval(v);
+					}
+				};
+			if (op.equals("/"))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return a.eval(v) / b.eval(v);
+					}
+				};
+			if (op.equals("^")) {
+
+				// Square is the most common power
+				if (b.isConstant() && b.eval(null) == 2.0)
+					return new Unary(a) {
+						@Override
+						double eval(double[] v) {
+							double x = a.eval(v);
+							return x * x;
+						}
+					};
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return Math.pow(a.eval(v), b.eval(v));
+					}
+				};
+			}
+			if (op.equals("="))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return (a.eval(v) == b.eval(v)) ? 1.0 : 0.0;
+					}
+				};
+			if (op.equals("<>"))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return (a.eval(v) != b.eval(v)) ? 1.0 : 0.0;
+					}
+				};
+			if (op.equals("<"))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return (a.eval(v) < b.eval(v)) ? 1.0 : 0.0;
+					}
+				};
+			if (op.equals(">"))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return (a.eval(v) > b.eval(v)) ? 1.0 : 0.0;
+					}
+				};
+			if (op.equals("<="))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return (a.eval(v) <= b.eval(v)) ? 1.0 : 0.0;
+					}
+				};
+			if (op.equals(">="))
+				return new Binary(a, b) {
+					@Override
+					double eval(double[] v) {
+						return (a.eval(v) >= b.eval(v)) ? 1.0 : 0.0;
+					}
+				};
+			throw new IllegalArgumentException("Operator " + op + " is not supported");
+		}
+
+		/**
+		 * Compiles a function
+		 */
+		private Expression compileFunction(FormulaNode node) {
+			String name = node.text;
+			int n = node.children.length;
+
+			// Constants
+			if (name.equals("PI") && n == 0)
+				return new Constant(Math.PI);
+
+			// Functions with a variable number of parameters
+			if (name.equals("SUM"))
+				return compileSum(node);
+			if (name.equals("MIN"))
+				return new Nary(compileArgs(node)) {
+					@Override
+					double eval(double[] v) {
+						// Like Excel, MIN() without arguments is 0
+						if (args.length == 0)
+							return 0.0;
+						double r = Double.POSITIVE_INFINITY;
+						for (Expression arg : args)
+							r = Math.min(r, arg.eval(v));
+						return r;
+					}
+				};
+			if (name.equals("MAX"))
+				return new Nary(compileArgs(node)) {
+					@Override
+					double eval(double[] v) {
+						// Like Excel, MAX() without arguments is 0
+						if (args.length == 0)
+							return 0.0;
+						double r = Double.NEGATIVE_INFINITY;
+						for (Expression arg : args)
+							r = Math.max(r, arg.eval(v));
+						return r;
+					}
+				};
+			if (name.equals("AND"))
+				return new Nary(compileArgs(node)) {
+					@Override
+					double eval(double[] v) {
+						for (Expression arg : args) {
+							if (arg.eval(v) == 0.0)
+								return 0.0;
+						}
+						return 1.0;
+					}
+				};
+			if (name.equals("OR"))
+				return new Nary(compileArgs(node)) {
+					@Override
+					double eval(double[] v) {
+						for (Expression arg : args) {
+							if (arg.eval(v) != 0.0)
+								return 1.0;
+						}
+						return 0.0;
+					}
+				};
+
+			// IF with 2 or 3 parameters
+			if (name.equals("IF") && (n == 2 || n == 3)) {
+				final Expression condition = compile(node.child(0));
+				final Expression then = compile(node.child(1));
+				final Expression otherwise = (n == 3) ? compile(node.child(2)) : new Constant(0.0);
+				return new Nary(new Expression[] { condition, then, otherwise }) {
+					@Override
+					double eval(double[] v) {
+						return (condition.eval(v) != 0.0) ? then.eval(v) : otherwise.eval(v);
+					}
+				};
+			}
+
+			// LOG with base
+			if (name.equals("LOG") && n == 2)
+				return new Binary(compile(node.child(0)), compile(node.child(1))) {
+					@Override
+					double eval(double[] v) {
+						return Math.log(a.eval(v)) / Math.log(b.eval(v));
+					}
+				};
+
+			// Functions with one parameter
+			if (n != 1)
+				throw new IllegalArgumentException("Function " + name + " with " + n + " parameters is not supported");
+			Expression a = compile(node.child(0));
+
+			if (name.equals("SIN"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.sin(a.eval(v));
+					}
+				};
+			if (name.equals("COS"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.cos(a.eval(v));
+					}
+				};
+			if (name.equals("TAN"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.tan(a.eval(v));
+					}
+				};
+			if (name.equals("SINH"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.sinh(a.eval(v));
+					}
+				};
+			if (name.equals("COSH"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.cosh(a.eval(v));
+					}
+				};
+			if (name.equals("TANH"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.tanh(a.eval(v));
+					}
+				};
+			if (name.equals("ARCSIN") || name.equals("ASIN"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.asin(a.eval(v));
+					}
+				};
+			if (name.equals("ARCCOS") || name.equals("ACOS"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.acos(a.eval(v));
+					}
+				};
+			if (name.equals("ARCTAN") || name.equals("ATAN"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.atan(a.eval(v));
+					}
+				};
+			if (name.equals("LN"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.log(a.eval(v));
+					}
+				};
+			if (name.equals("LG") || name.equals("LOG") || name.equals("LOG10"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.log10(a.eval(v));
+					}
+				};
+			if (name.equals("EXP"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.exp(a.eval(v));
+					}
+				};
+			if (name.equals("SQRT"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.sqrt(a.eval(v));
+					}
+				};
+			if (name.equals("ABS"))
+				return new Unary(a) {
+					@Override
+					double eval(double[] v) {
+						return Math.abs(a.eval(v));
+					}
+				};
+
+			throw new IllegalArgumentException("Function " + name + " is not supported");
+		}
+
+		/**
+		 * Compiles the sum. A sum over cells only adds the values of
+		 * the slots, without evaluating any expression.
+		 */
+		private Expression compileSum(FormulaNode node) {
+			Expression[] args = compileArgs(node);
+
+			// Collect the slots of the cells
+			final int[] cells = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				if (!(args[i] instanceof Variable)) {
+					return new Nary(args) {
+						@Override
+						double eval(double[] v) {
+							double sum = 0.0;
+							for (Expression arg : args)
+								sum += arg.eval(v);
+							return sum;
+						}
+					};
+				}
+				cells[i] = ((Variable) args[i]).slot;
+			}
+
+			return new Expression() {
+				@Override
+				double eval(double[] v) {
+					double sum = 0.0;
+					for (int i = 0; i < cells.length; i++)
+						sum += v[cells[i]];
+					return sum;
+				}
+			};
+		}
+
+		/**
+		 * Compiles all parameters of a function. Ranges are expanded
+		 * into one variable per cell.
+		 */
+		private Expression[] compileArgs(FormulaNode node) {
+			List<Expression> args = new ArrayList<Expression>();
+			for (FormulaNode child : node.children) {
+				if (child.type == FormulaNode.RANGE) {
+					for (String cell : expandRange(child))
+						args.add(new Variable(slot(cell)));
+				}
+				else
+					args.add(compile(child));
+			}
+			return args.toArray(new Expression[args.size()]);
+		}
+	}
+
+	/**
+	 * Gets the names of all cells of a range like "A1:C6"
+	 *
+	 * @param range
+	 * 		The range node
+	 * @return
+	 * 		The cell names, row by row
+	 */
+	static List<String> expandRange(FormulaNode range) {
+		String first = normalize(range.child(0).text);
+		String last = normalize(range.child(1).text);
+
+		// Keep the sheet name
+		String sheet = "";
+		int excl = first.lastIndexOf('!');
+		if (excl >= 0) {
+			sheet = first.substring(0, excl + 1);
+			first = first.substring(excl + 1);
+		}
+		excl = last.lastIndexOf('!');
+		if (excl >= 0)
+			last = last.substring(excl + 1);
+
+		int c1 = FormulaCell.parseColumn(first);
+		int r1 = FormulaCell.parseRow(first);
+		int c2 = FormulaCell.parseColumn(last);
+		int r2 = FormulaCell.parseRow(last);
+		if (c1 < 0 || r1 < 0 || c2 < 0 || r2 < 0)
+			throw new IllegalArgumentException("Invalid range " + range);
+
+		List<String> cells = new ArrayList<String>();
+		for (int r = Math.min(r1, r2); r <= Math.max(r1, r2); r++) {
+			for (int c = Math.min(c1, c2); c <= Math.max(c1, c2); c++)
+				cells.add(sheet + FormulaCell.columnName(c) + (r + 1));
+		}
+		return cells;
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffers of the Excel2LaTex converter
+ *
+ * The working text is kept in a char array. Replacements are written
+ * into a second array and then the two arrays are swapped. All buffers
+ * only grow, so after some conversions no more memory is allocated.
+ *
+ * A context belongs to one converter and must not be shared between
+ * threads.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+class ConversionContext {
+
+	// The working text
+	char[] text = new char[256];
+	int length = 0;
+
+	// The buffer for the next version of the working text
+	private char[] swap = new char[256];
+
+	// The replacement text
+	final StringBuilder replacement = new StringBuilder(256);
+
+	// Start and end offsets of the function parameters
+	int[] paramStart = new int[8];
+	int[] paramEnd = new int[8];
+	int params = 0;
+
+	// A range [start, end) of the working text, used as return value
+	int rangeStart;
+	int rangeEnd;
+
+	/**
+	 * Sets the working text
+	 *
+	 * @param s
+	 * 		The new text
+	 */
+	void set(String s) {
+		length = s.length();
+		if (text.length < length)
+			text = new char[length * 2];
+		s.getChars(0, length, text, 0);
+	}
+
+	/**
+	 * Sets the working text
+	 *
+	 * @param sb
+	 * 		The new text
+	 */
+	void set(StringBuilder sb) {
+		length = sb.length();
+		if (text.length < length)
+			text = new char[length * 2];
+		sb.getChars(0, length, text, 0);
+	}
+
+	/**
+	 * Creates a string from the working text
+	 *
+	 * @return
+	 * 		The working text
+	 */
+	String getString() {
+		return new String(text, 0, length);
+	}
+
+	/**
+	 * Adds a function parameter
+	 *
+	 * @param start
+	 * 		Start offset in the working text
+	 */
+	void addParam(int start) {
+		if (params == paramStart.length) {
+			paramStart = Arrays.copyOf(paramStart, params * 2);
+			paramEnd = Arrays.copyOf(paramEnd, params * 2);
+		}
+		paramStart[params] = start;
+		paramEnd[params] = start;
+		params++;
+	}
+
+	/**
+	 * Searches a string in the working text
+	 *
+	 * @param pattern
+	 * 		The string to search
+	 * @param from
+	 * 		Start offset of the search
+	 * @return
+	 * 		The position or -1, if it was not found
+	 */
+	int indexOf(String pattern, int from) {
+		int last = length - pattern.length();
+		for (int i = from; i <= last; i++) {
+			if (matches(i, pattern))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Searches a function name followed by an open bracket
+	 *
+	 * @param name
+	 * 		The function name
+	 * @return
+	 * 		The position of the name or -1, if it was not found
+	 */
+	int indexOfFunction(String name) {
+		int last = length - name.length() - 1;
+		for (int i = 0; i <= last; i++) {
+			if (text[i + name.length()] == '(' && matches(i, name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Searches a character in the working text
+	 *
+	 * @param c
+	 * 		The character to search
+	 * @return
+	 * 		The position or -1, if it was not found
+	 */
+	int indexOf(char c) {
+		for (int i = 0; i < length; i++) {
+			if (text[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks, whether the working text contains a string at a position
+	 */
+	boolean matches(int pos, String pattern) {
+		for (int k = 0; k < pattern.length(); k++) {
+			if (text[pos + k] != pattern.charAt(k))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks, whether the working text contains a part of itself at a position
+	 */
+	private boolean matches(int pos, int start, int len) {
+		for (int k = 0; k < len; k++) {
+			if (text[pos + k] != text[start + k])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces all occurrences of a string, like String.replace()
+	 *
+	 * @param target
+	 * 		The string to replace
+	 * @param rep
+	 * 		The replacement
+	 */
+	void replace(String target, CharSequence rep) {
+		int pos = indexOf(target, 0);
+		if (pos < 0)
+			return;
+
+		int len = target.length();
+		int n = copyStart(pos, rep.length(), len);
+		for (int i = pos; i < length;) {
+			if (i <= length - len && matches(i, target)) {
+				n = append(n, rep);
+				i += len;
+			} else {
+				swap[n++] = text[i++];
+			}
+		}
+		swapBuffers(n);
+	}
+
+	/**
+	 * Replaces all occurrences of a part of the working text
+	 *
+	 * @param start
+	 * 		Start of the part to replace
+	 * @param end
+	 * 		End of the part to replace
+	 * @param rep
+	 * 		The replacement
+	 */
+	void replace(int start, int end, CharSequence rep) {
+		int len = end - start;
+		int pos = 0;
+		while (!matches(pos, start, len))
+			pos++;
+
+		int n = copyStart(pos, rep.length(), len);
+		for (int i = pos; i < length;) {
+			if (i <= length - len && matches(i, start, len)) {
+				n = append(n, rep);
+				i += len;
+			} else {
+				swap[n++] = text[i++];
+			}
+		}
+		swapBuffers(n);
+	}
+
+	/**
+	 * Replaces a character in the working text
+	 *
+	 * @param c
+	 * 		The character to replace
+	 * @param rep
+	 * 		The new character
+	 */
+	void replace(char c, char rep) {
+		for (int i = 0; i < length; i++) {
+			if (text[i] == c)
+				text[i] = rep;
+		}
+	}
+
+	/**
+	 * Prepares the swap buffer and copies the unchanged start
+	 *
+	 * @param pos
+	 * 		The first position to replace
+	 * @param repLength
+	 * 		Length of the replacement
+	 * @param targetLength
+	 * 		Length of the replaced text
+	 * @return
+	 * 		The length of the copied text
+	 */
+	private int copyStart(int pos, int repLength, int targetLength) {
+
+		// The worst case: every target is replaced
+		int max = length + (length / targetLength + 1) * Math.max(0, repLength - targetLength);
+		ensureSwap(max);
+		System.arraycopy(text, 0, swap, 0, pos);
+		return pos;
+	}
+
+	/**
+	 * Appends a text to the swap buffer
+	 */
+	private int append(int n, CharSequence rep) {
+		for (int k = 0; k < rep.length(); k++)
+			swap[n++] = rep.charAt(k);
+		return n;
+	}
+
+	/**
+	 * Makes sure, that the swap buffer has a minimum size
+	 *
+	 * @param size
+	 * 		The minimum size
+	 */
+	private void ensureSwap(int size) {
+		if (swap.length < size)
+			swap = new char[size * 2];
+	}
+
+	/**
+	 * Uses the swap buffer as the new working text
+	 *
+	 * @param n
+	 * 		Length of the new text
+	 */
+	private void swapBuffers(int n) {
+		char[] t = text;
+		text = swap;
+		swap = t;
+		length = n;
+	}
+}
@@ -18,32 +18,75 @@
  *   
  */
 
+import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.swing.JApplet;
 import javax.swing.JComponent;
+import javax.swing.JScrollPane;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
-import org.scilab.forge.jlatexmath.TeXConstants;
-import org.scilab.forge.jlatexmath.TeXFormula;
 import org.scilab.forge.jlatexmath.TeXIcon;
 
 /**
  * Equation control to display the result as a LaTex equation
  * 
+ * The control has the size of the equation and is displayed in a scroll
+ * pane. It is painted in tiles, and only the tiles that are visible are
+ * rendered. The rendered tiles are kept in a small cache, so the memory
+ * does not depend on the size of the equation.
+ * 
+ * A long sum or product is broken into lines, that fit into the width
+ * of the control. Only the lines in a tile are painted.
+ * 
+ * The part of the equation, that belongs to a part of the excel formula,
+ * can be highlighted. The highlight is painted over the tiles, so they
+ * are not rendered again.
+ * 
  * @author Gerd Bartelt
  *
  */
-public class Equation extends JComponent {
+public class Equation extends JComponent implements Scrollable {
 
 	private static final long serialVersionUID = 2039288774668284129L;
 	
-	// The excel formula
+	// Size of one tile in pixel
+	private static final int TILE_SIZE = 256;
+	
+	// Maximum number of cached tiles
+	private static final int MAX_TILES = 40;
+	
+	// Color of the highlighted part
+	private static final Color HIGHLIGHT = new Color(51, 153, 255, 64);
+	
+	// The LaTex formula, or null, if it was not yet created
 	private String math = "";
 	
-	// The converted formula
-	TeXFormula fomule;
+	// The parsed excel formula, if the atoms were built from it
+	private FormulaNode node = null;
+	private boolean equalsSign = false;
+	
+	// The defined names, that are used to parse the formulas, or null
+	private SymbolTable symbols = null;
+	
+	// The maximum width of a line in pixel, or 0 for one line.
+	// In a scroll pane, the lines are also not wider than its viewport.
+	private int lineWidth = LineBreaker.WIDTH;
+	
+	// The positions of the nodes of the parsed excel formula, or null
+	private SourceMap sourceMap = null;
+	
+	// The highlighted span of the source map or -1
+	private int highlight = -1;
 	
 	// The icon with the equation
 	TeXIcon ti;
@@ -51,6 +94,16 @@ public class Equation extends JComponent {
 	// Reference to the applet
 	JApplet app;
 
+	// The rendered tiles, the least recently used one is removed first
+	private final Map<Long, BufferedImage> tiles = new LinkedHashMap<Long, BufferedImage>(MAX_TILES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+			return size() > MAX_TILES;
+		}
+	};
+
 	/**
 	 * Constructor 
 	 * creates the control
@@ -61,7 +114,6 @@ public class Equation extends JComponent {
     public Equation(JApplet app) {
         super ();
         this.app = app;
-        this.setSize(752, 416);
     }
     
     /**
@@ -72,10 +124,209 @@ public class Equation extends JComponent {
      */
     public void setFormula (String formula) {
     	math = formula;
+    	node = null;
+    	sourceMap = null;
+    	highlight = -1;
+    	
+    	// Create the icon with the size EquationRenderer.SIZE
+        setIcon(EquationRenderer.createIcon(math));
+    }
+    
+    /**
+     * Displays a parsed excel formula.
+     * The atoms of the equation are built directly, without a LaTex string.
+     * 
+     * @param formula
+     * 		The root node of the parsed excel formula
+     * @param equalsSign
+     * 		True, to start the equation with a "="
+     * @throws IllegalArgumentException
+     * 		If the formula uses a function that can't be displayed
+     */
+    public void setFormula (FormulaNode formula, boolean equalsSign) {
+    	SourceMap map = new SourceMap();
+    	TeXIcon icon = LineBreaker.createIcon(formula, equalsSign, symbols, map, getLineWidth());
+    	math = null;
+    	node = formula;
+    	this.equalsSign = equalsSign;
+    	sourceMap = map;
+    	highlight = -1;
+    	setIcon(icon);
+    }
+    
+    /**
+     * Sets the maximum width of a line. It is used for the next
+     * parsed excel formula.
+     * 
+     * @param lineWidth
+     * 		The width in pixel, or 0 to display the equation in one line
+     */
+    public void setLineWidth (int lineWidth) {
+    	this.lineWidth = lineWidth;
+    }
+    
+    /**
+     * Sets the defined names. Names of a parsed excel formula, that
+     * have a display formula, are displayed with it.
+     * 
+     * @param symbols
+     * 		The defined names, that are used to parse the formulas, or null
+     */
+    public void setSymbols (SymbolTable symbols) {
+    	this.symbols = symbols;
+    }
+    
+    /**
+     * Gets the maximum width of a line. A broken equation is usually
+     * higher than its scroll pane, so the width of the vertical scroll
+     * bar is subtracted. Otherwise the lines would also need a
+     * horizontal scroll bar.
+     * 
+     * @return
+     * 		The width in pixel, or 0 to display the equation in one line
+     */
+    private int getLineWidth () {
+    	JScrollPane pane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+    	if ((lineWidth <= 0) || (pane == null) || (pane.getWidth() <= 0))
+    		return lineWidth;
+    	
+    	Insets insets = pane.getInsets();
+    	int width = pane.getWidth() - insets.left - insets.right;
+    	if (pane.getVerticalScrollBarPolicy() != JScrollPane.VERTICAL_SCROLLBAR_NEVER)
+    		width -= pane.getVerticalScrollBar().getPreferredSize().width;
+    	return Math.max(1, Math.min(lineWidth, width));
+    }
+    
+    /**
+     * Gets the LaTex string of the displayed equation.
+     * For a parsed excel formula it is created only now.
+     * 
+     * @return
+     * 		The LaTex formula
+     */
+    public String getLaTeX() {
+    	if (math == null)
+    		math = LaTeXWriter.write(node, equalsSign, symbols);
+    	return math;
+    }
+    
+    /**
+     * Paints the displayed equation at several scale factors, e.g. for
+     * an export. The layout of the display is used again.
+     * 
+     * @param scales
+     * 		The scale factors, e.g. EquationRenderer.RETINA
+     * @return
+     * 		One image per scale factor, or null if there is no equation
+     */
+    public BufferedImage[] getImages (float... scales) {
+    	if (ti == null)
+    		return null;
+    	return EquationRenderer.paint(ti, scales);
+    }
+    
+    /**
+     * Highlights the part of the equation, that belongs to a part of
+     * the parsed excel formula. Only the old and the new highlighted
+     * region are repainted.
+     * 
+     * @param start
+     * 		Start position in the excel formula
+     * @param end
+     * 		End position in the excel formula, e.g. the same as the start
+     * 		for the position of the caret
+     */
+    public void highlight (int start, int end) {
+    	setHighlight((sourceMap == null) ? -1 : sourceMap.find(start, end));
+    }
+    
+    /**
+     * Removes the highlight
+     */
+    public void clearHighlight () {
+    	setHighlight(-1);
+    }
+    
+    /**
+     * Gets the node of the parsed excel formula at a position
+     * 
+     * @param x
+     * 		The x position in the control
+     * @param y
+     * 		The y position in the control
+     * @return
+     * 		The innermost node, or null if there is none
+     */
+    public FormulaNode getNodeAt (int x, int y) {
+    	if (sourceMap == null)
+    		return null;
+    	int span = sourceMap.findAt(x, y);
+    	return (span < 0) ? null : sourceMap.getNode(span);
+    }
+    
+    /**
+     * Sets the highlighted span and repaints the changed regions
+     * 
+     * @param span
+     * 		The span of the source map or -1
+     */
+    private void setHighlight (int span) {
+    	if (span == highlight)
+    		return;
+    	repaintSpan(highlight);
+    	highlight = span;
+    	repaintSpan(highlight);
+    }
+    
+    /**
+     * Repaints the region of a span, if it was already painted
+     */
+    private void repaintSpan (int span) {
+    	Rectangle rectangle = getRectangle(span);
+    	if (rectangle != null)
+    		repaint(rectangle);
+    }
+    
+    /**
+     * Gets the region of a span
+     * 
+     * @param span
+     * 		The span of the source map or -1
+     * @return
+     * 		The rectangle, or null if it was not yet painted
+     */
+    private Rectangle getRectangle (int span) {
+    	if ((sourceMap == null) || (span < 0))
+    		return null;
+    	return sourceMap.getRectangle(span);
+    }
+    
+    /**
+     * Displays a new icon
+     * 
+     * @param icon
+     * 		The icon with the equation
+     */
+    private void setIcon (TeXIcon icon) {
     	
-    	// Create the icon with a size of 25
-        fomule = new TeXFormula(math);
-        ti = fomule.createTeXIcon(TeXConstants.STYLE_DISPLAY, 25);
+    	// Size of the old equation
+    	int oldWidth = (ti == null) ? 0 : ti.getIconWidth();
+    	int oldHeight = (ti == null) ? 0 : ti.getIconHeight();
+    	
+        ti = icon;
+        
+        // The old tiles are invalid
+        tiles.clear();
+        
+        // Use the size of the equation
+        Dimension size = new Dimension(ti.getIconWidth(), ti.getIconHeight());
+        if (!size.equals(getPreferredSize())) {
+        	setPreferredSize(size);
+        	revalidate();
+        }
+        
+        // Repaint only the region of the old and the new equation
+        repaint(0, 0, Math.max(oldWidth, size.width), Math.max(oldHeight, size.height));
     }
     
     /**
@@ -90,24 +341,93 @@ public class Equation extends JComponent {
 
         
         // Do it only, if the icon is valid
-        if (ti != null) {
-            try {
-            	// Use a image buffer
-                BufferedImage image = new BufferedImage(752, 416, BufferedImage.TYPE_INT_ARGB);
-                Graphics2D g2 = image.createGraphics();
-                
-                // Paint the equation
-                ti.paintIcon(this, g2, 0, 0);
-                g2D.drawImage(image,0,0 , app);
-
-                g2.dispose();
-            } catch (Exception e) {
-            }
+        if (ti == null)
+        	return;
+        
+        // Paint only the tiles in the clip rectangle
+        Rectangle clip = g2D.getClipBounds();
+        if (clip == null)
+        	clip = new Rectangle(0, 0, getWidth(), getHeight());
+        clip = clip.intersection(new Rectangle(0, 0, ti.getIconWidth(), ti.getIconHeight()));
+        if (clip.isEmpty())
+        	return;
+        
+        int firstColumn = clip.x / TILE_SIZE;
+        int lastColumn = (clip.x + clip.width - 1) / TILE_SIZE;
+        int firstRow = clip.y / TILE_SIZE;
+        int lastRow = (clip.y + clip.height - 1) / TILE_SIZE;
+        
+        for (int row = firstRow; row <= lastRow; row++) {
+        	for (int column = firstColumn; column <= lastColumn; column++) {
+        		try {
+        			g2D.drawImage(getTile(row, column), column * TILE_SIZE, row * TILE_SIZE, app);
+        		} catch (Exception e) {
+        		}
+        	}
         }
-
-        g2D.dispose();
         
+        // Paint the highlight over the tiles
+        Rectangle rectangle = getRectangle(highlight);
+        if ((rectangle != null) && rectangle.intersects(clip)) {
+        	g2D.setColor(HIGHLIGHT);
+        	g2D.fill(rectangle);
+        }
+    }
+    
+    /**
+     * Gets a tile from the cache or renders it
+     * 
+     * @param row
+     * 		The row of the tile
+     * @param column
+     * 		The column of the tile
+     * @return
+     * 		The tile image
+     */
+    private BufferedImage getTile(int row, int column) {
+    	Long key = ((long) row << 32) | column;
+    	BufferedImage tile = tiles.get(key);
+    	
+    	if (tile == null) {
+    		// Use a image buffer
+    		tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+    		Graphics2D g2 = tile.createGraphics();
+    		
+    		// Paint the part of the equation
+    		g2.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+    		g2.setClip(column * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+    		
+    		// Every tile records the positions of the nodes it paints
+    		if (sourceMap != null)
+    			sourceMap.startRecording(column * TILE_SIZE, row * TILE_SIZE);
+    		ti.paintIcon(this, g2, 0, 0);
+    		if (sourceMap != null)
+    			sourceMap.stopRecording();
+    		g2.dispose();
+    		
+    		tiles.put(key, tile);
+    	}
+    	return tile;
     }
 
-}
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return 16;
+	}
+
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return (orientation == SwingConstants.HORIZONTAL) ? visibleRect.width : visibleRect.height;
+	}
 
+	public boolean getScrollableTracksViewportWidth() {
+		return false;
+	}
+
+	public boolean getScrollableTracksViewportHeight() {
+		return false;
+	}
+
+}
@@ -0,0 +1,390 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.scilab.forge.jlatexmath.Atom;
+import org.scilab.forge.jlatexmath.Box;
+import org.scilab.forge.jlatexmath.DefaultTeXFont;
+import org.scilab.forge.jlatexmath.StrutBox;
+import org.scilab.forge.jlatexmath.TeXConstants;
+import org.scilab.forge.jlatexmath.TeXEnvironment;
+import org.scilab.forge.jlatexmath.TeXFormula;
+import org.scilab.forge.jlatexmath.TeXIcon;
+
+/**
+ * Lays out many equations, e.g. of one sheet, with one font and
+ * environment and paints them into pages, one below the other and
+ * left aligned. The image of every equation is a part of its page.
+ *
+ * The parts have the same pixels as the images of EquationRenderer.
+ * Every page is allocated at once, so a page has at most a maximum
+ * number of pixels. Only an equation, that is larger than this, gets a
+ * larger page of its own.
+ *
+ * A batch must not be used by more than one thread at a time.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class EquationBatch {
+
+	// Maximum number of pixels of a page, 64 MB
+	public static final long DEFAULT_PAGE_PIXELS = 4096 * 4096;
+
+	// The environment with the font of all equations
+	private final TeXEnvironment environment;
+
+	// Size of the equations
+	private final float size;
+
+	// The laid out equations
+	private final List<TeXIcon> icons = new ArrayList<TeXIcon>();
+
+	// Maximum number of pixels of a page
+	private final long pagePixels;
+
+	// The pages
+	private final List<Page> pages = new ArrayList<Page>();
+
+	/**
+	 * An icon of an equation, that was laid out in the common environment
+	 */
+	private static class BatchIcon extends TeXIcon {
+		BatchIcon(Box box, float size) {
+			super(box, size);
+		}
+	}
+
+	/**
+	 * The equations, that are painted into one image
+	 */
+	private static class Page {
+		final int first;
+		int count = 0;
+		int width = 1;
+		int height = 0;
+
+		Page(int first) {
+			this.first = first;
+		}
+	}
+
+	/**
+	 * Constructor with the size of EquationRenderer
+	 */
+	public EquationBatch() {
+		this(EquationRenderer.SIZE, DEFAULT_PAGE_PIXELS);
+	}
+
+	/**
+	 * Constructor with pages of the default size
+	 *
+	 * @param size
+	 * 		Size of the equations
+	 */
+	public EquationBatch(float size) {
+		this(size, DEFAULT_PAGE_PIXELS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param size
+	 * 		Size of the equations
+	 * @param pagePixels
+	 * 		Maximum number of pixels of a page
+	 */
+	public EquationBatch(float size, long pagePixels) {
+		this.size = size;
+		this.pagePixels = Math.max(1, pagePixels);
+		environment = new TeXEnvironment(TeXConstants.STYLE_DISPLAY, new DefaultTeXFont(size));
+	}
+
+	/**
+	 * Adds a LaTex formula
+	 *
+	 * @param formula
+	 * 		The LaTex formula
+	 * @return
+	 * 		The index of the equation in the batch
+	 * @throws org.scilab.forge.jlatexmath.ParseException
+	 * 		If the formula is no valid LaTex. The batch is unchanged.
+	 */
+	public int add(String formula) {
+		return add(new TeXFormula(formula).root);
+	}
+
+	/**
+	 * Adds the atom of an equation. No LaTex string has to be parsed.
+	 *
+	 * @param atom
+	 * 		The atom, e.g. from AtomBuilder, or null for an empty equation
+	 * @return
+	 * 		The index of the equation in the batch
+	 */
+	public int add(Atom atom) {
+
+		// Every equation starts with the same environment
+		environment.reset();
+		Box box = (atom == null) ? new StrutBox(0, 0, 0, 0) : atom.createBox(environment);
+
+		TeXIcon icon = new BatchIcon(box, size);
+		int w = Math.max(1, icon.getIconWidth());
+		int h = Math.max(1, icon.getIconHeight());
+
+		// Start a new page, if the equation does not fit
+		Page page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+		if (page == null || (page.count > 0 && (long) Math.max(page.width, w) * (page.height + (long) h) > pagePixels)) {
+			page = new Page(icons.size());
+			pages.add(page);
+		}
+		page.width = Math.max(page.width, w);
+		page.height += h;
+		page.count++;
+
+		icons.add(icon);
+		return icons.size() - 1;
+	}
+
+	/**
+	 * Adds an excel formula. It is parsed and its atoms are built
+	 * directly. Only if this fails, the formula is converted with
+	 * Excel2LaTex.
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @param symbols
+	 * 		The defined names or null
+	 * @return
+	 * 		The index of the equation in the batch
+	 */
+	public int addExcel(String excelFormula, SymbolTable symbols) {
+		Atom atom;
+		try {
+			FormulaNode node = FormulaParser.parse(excelFormula, symbols);
+			atom = AtomBuilder.build(node, EquationRenderer.hasEqualsSign(excelFormula), symbols);
+		} catch (IllegalArgumentException e) {
+			return add(WorkbookConverter.convert(excelFormula, symbols));
+		}
+		return add(atom);
+	}
+
+	/**
+	 * Gets the number of equations
+	 *
+	 * @return
+	 * 		The number of equations
+	 */
+	public int size() {
+		return icons.size();
+	}
+
+	/**
+	 * Gets the laid out equation
+	 *
+	 * @param index
+	 * 		The index of the equation
+	 * @return
+	 * 		The icon with the equation
+	 */
+	public TeXIcon getIcon(int index) {
+		return icons.get(index);
+	}
+
+	/**
+	 * Gets the number of pages
+	 *
+	 * @return
+	 * 		The number of pages
+	 */
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	/**
+	 * Gets the page of an equation
+	 *
+	 * @param index
+	 * 		The index of the equation
+	 * @return
+	 * 		The index of the page
+	 */
+	public int getPage(int index) {
+		for (int i = pages.size() - 1; i > 0; i--) {
+			if (pages.get(i).first <= index)
+				return i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the width of a page
+	 *
+	 * @param page
+	 * 		The index of the page
+	 * @return
+	 * 		The width in pixel
+	 */
+	public int getWidth(int page) {
+		return pages.get(page).width;
+	}
+
+	/**
+	 * Gets the height of a page
+	 *
+	 * @param page
+	 * 		The index of the page
+	 * @return
+	 * 		The height in pixel
+	 */
+	public int getHeight(int page) {
+		return Math.max(1, pages.get(page).height);
+	}
+
+	/**
+	 * Paints the equations of a page into one image with transparent
+	 * background
+	 *
+	 * @param page
+	 * 		The index of the page
+	 * @return
+	 * 		The image of the page
+	 */
+	public BufferedImage paint(int page) {
+		return paint(page, null);
+	}
+
+	/**
+	 * Paints the equations of a page into one image and returns the
+	 * image of every equation as a part of it
+	 *
+	 * @param page
+	 * 		The index of the page
+	 * @return
+	 * 		One image per equation of the page
+	 */
+	public BufferedImage[] paintAll(int page) {
+		BufferedImage[] images = new BufferedImage[pages.get(page).count];
+		paint(page, images);
+		return images;
+	}
+
+	/**
+	 * Paints the equations of a page into one image
+	 *
+	 * @param index
+	 * 		The index of the page
+	 * @param images
+	 * 		Gets the part of every equation, or null
+	 * @return
+	 * 		The image of the page
+	 */
+	private BufferedImage paint(int index, BufferedImage[] images) {
+		Page page = pages.get(index);
+		BufferedImage buffer = new BufferedImage(getWidth(index), getHeight(index), BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = buffer.createGraphics();
+		int y = 0;
+		for (int i = 0; i < page.count; i++) {
+			TeXIcon icon = icons.get(page.first + i);
+			int w = Math.max(1, icon.getIconWidth());
+			int h = Math.max(1, icon.getIconHeight());
+
+			// Clip every equation like in its own image
+			Graphics2D g = (Graphics2D) g2.create(0, y, w, h);
+			icon.paintIcon(null, g, 0, 0);
+			g.dispose();
+
+			if (images != null)
+				images[i] = buffer.getSubimage(0, y, w, h);
+			y += h;
+		}
+		g2.dispose();
+		return buffer;
+	}
+
+	/**
+	 * Writes the pages with all equations of every sheet of a workbook
+	 *
+	 * @param args
+	 * 		The workbook file and the output folder
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: EquationBatch workbook.xlsx folder");
+			System.exit(1);
+		}
+
+		WorkbookReader reader = new WorkbookReader(new File(args[0]));
+		SymbolTable symbols = reader.readSymbols();
+		File folder = new File(args[1]);
+		folder.mkdirs();
+
+		// Collect the formulas of every sheet
+		Map<String, List<FormulaCell>> sheets = new LinkedHashMap<String, List<FormulaCell>>();
+		for (FormulaCell cell : reader.read()) {
+			List<FormulaCell> cells = sheets.get(cell.getSheetName());
+			if (cells == null) {
+				cells = new ArrayList<FormulaCell>();
+				sheets.put(cell.getSheetName(), cells);
+			}
+			cells.add(cell);
+		}
+
+		for (Map.Entry<String, List<FormulaCell>> sheet : sheets.entrySet()) {
+			long start = System.nanoTime();
+			EquationBatch batch = new EquationBatch();
+			int failures = 0;
+			for (FormulaCell cell : sheet.getValue()) {
+				try {
+					batch.addExcel(cell.getFormula(), symbols);
+				} catch (RuntimeException e) {
+					failures++;
+				}
+			}
+			long layout = System.nanoTime();
+
+			// One file per page, only one page is in memory
+			String name = sheet.getKey().replaceAll("[^A-Za-z0-9_-]", "_");
+			long paint = 0;
+			for (int page = 0; page < batch.getPageCount(); page++) {
+				long t0 = System.nanoTime();
+				BufferedImage image = batch.paint(page);
+				paint += System.nanoTime() - t0;
+				String suffix = (batch.getPageCount() > 1) ? "_" + (page + 1) : "";
+				ImageIO.write(image, "png", new File(folder, name + suffix + ".png"));
+			}
+
+			int n = Math.max(1, batch.size());
+			System.err.println(String.format("%s: %d equations, %d failed, %d pages: "
+					+ "layout %.1f us, paint %.1f us per equation", sheet.getKey(), batch.size(), failures,
+					batch.getPageCount(), (layout - start) / 1.0e3 / n, paint / 1.0e3 / n));
+		}
+	}
+}
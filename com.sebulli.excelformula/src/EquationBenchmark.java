@@ -0,0 +1,442 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end benchmark of the complete conversion
+ *
+ * Every operation converts an excel formula, sets it into an Equation
+ * control and paints the control into an offscreen image, like the
+ * applet does. The benchmark runs with 1 to N threads and reports the
+ * latency percentiles, the throughput and the failed operations. The
+ * results can be compared with a stored baseline, and the benchmark
+ * fails, if they are worse than the threshold or if an operation failed.
+ *
+ * Usage: EquationBenchmark [options]
+ *  -corpus file      Formulas, one per line (default: some demo formulas)
+ *  -threads n        Maximum number of threads (default: number of processors)
+ *  -iterations n     Operations per thread (default: 2000)
+ *  -warmup n         Operations per thread before measuring (default: 500)
+ *  -baseline file    Compare with this baseline
+ *  -threshold x      Allowed regression, e.g. 0.2 for 20% (default: 0.2)
+ *  -save             Write the results to the baseline file
+ *  -atoms            Build the atoms from the parsed formula instead of
+ *                    parsing the LaTex string
+ *  -simplify         Simplify the parsed formula before building the atoms
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class EquationBenchmark {
+
+	// Formulas, if no corpus is given
+	private static final String[] DEMO_FORMULAS = {
+		"= A_1^(1/3)+1/(1+x_2)+SUMME(A1:C6)+SIN(2*PI())+ABS(EXP(T/T_N))+WENN(x<10;0;10)",
+		"=A1+B1",
+		"=A1*B1",
+		"=SUMME(A1:A20)",
+		"=(A1+B1)*(C1-D1)/(E1+F1)",
+		"=WENN(UND(A1>0;B1<2);WURZEL(A1*B1);MAX(A1;B1))",
+		"=EXP(-(x-mu)^2/(2*sigma^2))/WURZEL(2*PI()*sigma^2)",
+		"=LN(x)+LOG(y)-MIN(a;b)",
+		"=SIN(x)^2+COS(x)^2",
+		"=(1*1/2+4^2/4^3)^2"
+	};
+
+	// The formulas
+	private final List<String> corpus;
+
+	// Operations per thread
+	private final int iterations;
+	private final int warmup;
+
+	// Build the atoms directly
+	private boolean atoms = false;
+
+	// Simplify the parsed formula
+	private boolean simplify = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param corpus
+	 * 		The excel formulas
+	 * @param iterations
+	 * 		Measured operations per thread
+	 * @param warmup
+	 * 		Operations per thread before measuring
+	 */
+	public EquationBenchmark(List<String> corpus, int iterations, int warmup) {
+		this.corpus = corpus;
+		this.iterations = iterations;
+		this.warmup = warmup;
+	}
+
+	/**
+	 * Selects, how the equation is built
+	 *
+	 * @param atoms
+	 * 		True, to build the atoms from the parsed formula
+	 */
+	public void setAtoms(boolean atoms) {
+		this.atoms = atoms;
+	}
+
+	/**
+	 * Selects, whether the parsed formulas are simplified
+	 *
+	 * @param simplify
+	 * 		True, to simplify them before the atoms are built
+	 */
+	public void setSimplify(boolean simplify) {
+		this.simplify = simplify;
+	}
+
+	/**
+	 * The result of one run
+	 */
+	public static class Result {
+		public final int threads;
+		public final LatencyHistogram histogram;
+		public final double throughput;
+		public final long failures;
+
+		Result(int threads, LatencyHistogram histogram, double throughput, long failures) {
+			this.threads = threads;
+			this.histogram = histogram;
+			this.throughput = throughput;
+			this.failures = failures;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%2d threads: p50 %8.1f us, p99 %8.1f us, p99.9 %8.1f us, max %8.1f us, %8.0f ops/s, %d failed",
+					threads, histogram.getPercentile(50) / 1e3, histogram.getPercentile(99) / 1e3,
+					histogram.getPercentile(99.9) / 1e3, histogram.getMax() / 1e3, throughput, failures);
+		}
+	}
+
+	/**
+	 * Runs the benchmark with a number of threads
+	 *
+	 * @param threads
+	 * 		The number of threads
+	 * @return
+	 * 		The result
+	 * @throws InterruptedException
+	 * 		If the benchmark was interrupted
+	 */
+	public Result run(int threads) throws InterruptedException {
+		final LatencyHistogram[] histograms = new LatencyHistogram[threads];
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong failures = new AtomicLong();
+
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * 7;
+			histograms[t] = new LatencyHistogram();
+			final LatencyHistogram histogram = histograms[t];
+
+			new Thread(new Runnable() {
+				public void run() {
+					Excel2LaTex excel2LaTex = new Excel2LaTex();
+					FormulaSimplifier simplifier = simplify ? new FormulaSimplifier() : null;
+					Equation equation = new Equation(null);
+					equation.setForeground(Color.black);
+					try {
+						// Warm up
+						try {
+							for (int i = 0; i < warmup; i++) {
+								try {
+									operation(excel2LaTex, simplifier, equation, corpus.get((offset + i) % corpus.size()), atoms);
+								} catch (Throwable e) {
+									failures.incrementAndGet();
+								}
+							}
+						} finally {
+							ready.countDown();
+						}
+						start.await();
+
+						// Measure
+						for (int i = 0; i < iterations; i++) {
+							long t0 = System.nanoTime();
+							try {
+								operation(excel2LaTex, simplifier, equation, corpus.get((offset + i) % corpus.size()), atoms);
+								histogram.record(System.nanoTime() - t0);
+							} catch (Throwable e) {
+								failures.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "EquationBenchmark-" + t).start();
+		}
+
+		ready.await();
+		long t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		long wall = System.nanoTime() - t0;
+
+		LatencyHistogram all = new LatencyHistogram();
+		for (LatencyHistogram histogram : histograms)
+			all.add(histogram);
+		return new Result(threads, all, all.getCount() * 1.0e9 / wall, failures.get());
+	}
+
+	/**
+	 * One operation: convert, set the formula and paint it
+	 *
+	 * @param excel2LaTex
+	 * 		The converter of the thread
+	 * @param simplifier
+	 * 		The simplifier of the thread or null
+	 * @param equation
+	 * 		The equation control of the thread
+	 * @param formula
+	 * 		The excel formula
+	 * @param atoms
+	 * 		True, to build the atoms from the parsed formula
+	 */
+	static void operation(Excel2LaTex excel2LaTex, FormulaSimplifier simplifier, Equation equation, String formula,
+			boolean atoms) {
+		if (!atoms && simplifier == null) {
+			equation.setFormula(excel2LaTex.convert(formula));
+		}
+		else {
+			try {
+				FormulaNode node = FormulaParser.parse(formula);
+				if (simplifier != null)
+					node = simplifier.simplify(node);
+				equation.setFormula(node, EquationRenderer.hasEqualsSign(formula));
+			} catch (IllegalArgumentException e) {
+				equation.setFormula(excel2LaTex.convert(formula));
+			}
+		}
+
+		// Paint it offscreen
+		Dimension size = equation.getPreferredSize();
+		equation.setSize(size);
+		BufferedImage image = new BufferedImage(Math.max(1, size.width), Math.max(1, size.height),
+				BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = image.createGraphics();
+		g2.setClip(0, 0, image.getWidth(), image.getHeight());
+		equation.paint(g2);
+		g2.dispose();
+	}
+
+	/**
+	 * Compares the results with a baseline
+	 *
+	 * @param results
+	 * 		The results
+	 * @param baseline
+	 * 		The baseline
+	 * @param threshold
+	 * 		The allowed regression, e.g. 0.2 for 20%
+	 * @return
+	 * 		A list of all regressions and failures, empty if there are none
+	 */
+	static List<String> compare(List<Result> results, Properties baseline, double threshold) {
+		List<String> regressions = new ArrayList<String>();
+		for (Result result : results) {
+			String prefix = "threads." + result.threads + ".";
+
+			// No operation must fail
+			if (result.failures > 0)
+				regressions.add(String.format("%sfailures: %d operations failed", prefix, result.failures));
+
+			// Latencies must not be larger
+			for (String key : new String[] { "p50", "p99", "p99.9" }) {
+				String value = baseline.getProperty(prefix + key);
+				if (value == null)
+					continue;
+				double base = Double.parseDouble(value);
+				double actual = result.histogram.getPercentile(Double.parseDouble(key.substring(1)));
+				if (actual > base * (1.0 + threshold))
+					regressions.add(String.format("%s%s: %.1f us instead of %.1f us", prefix, key, actual / 1e3, base / 1e3));
+			}
+
+			// Throughput must not be smaller
+			String value = baseline.getProperty(prefix + "throughput");
+			if (value != null) {
+				double base = Double.parseDouble(value);
+				if (result.throughput < base * (1.0 - threshold))
+					regressions.add(String.format("%sthroughput: %.0f ops/s instead of %.0f ops/s", prefix, result.throughput, base));
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Stores the results as baseline
+	 *
+	 * @param results
+	 * 		The results
+	 * @return
+	 * 		The baseline
+	 */
+	static Properties toBaseline(List<Result> results) {
+		Properties baseline = new Properties();
+		for (Result result : results) {
+			String prefix = "threads." + result.threads + ".";
+			baseline.setProperty(prefix + "p50", Long.toString(result.histogram.getPercentile(50)));
+			baseline.setProperty(prefix + "p99", Long.toString(result.histogram.getPercentile(99)));
+			baseline.setProperty(prefix + "p99.9", Long.toString(result.histogram.getPercentile(99.9)));
+			baseline.setProperty(prefix + "throughput", String.format("%.0f", result.throughput));
+		}
+		return baseline;
+	}
+
+	/**
+	 * Reads the formulas of a corpus file
+	 */
+	private static List<String> readCorpus(File file) throws IOException {
+		List<String> formulas = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() > 0)
+					formulas.add(line.trim());
+			}
+		} finally {
+			reader.close();
+		}
+		return formulas;
+	}
+
+	/**
+	 * Runs the benchmark from the command line
+	 *
+	 * @param args
+	 * 		The options
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		System.setProperty("java.awt.headless", "true");
+
+		List<String> corpus = Arrays.asList(DEMO_FORMULAS);
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		int iterations = 2000;
+		int warmup = 500;
+		File baselineFile = null;
+		double threshold = 0.2;
+		boolean save = false;
+		boolean atoms = false;
+		boolean simplify = false;
+
+		// Parse the options
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-corpus"))
+				corpus = readCorpus(new File(args[++i]));
+			else if (args[i].equals("-threads"))
+				maxThreads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-iterations"))
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-warmup"))
+				warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-baseline"))
+				baselineFile = new File(args[++i]);
+			else if (args[i].equals("-threshold"))
+				threshold = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-save"))
+				save = true;
+			else if (args[i].equals("-atoms"))
+				atoms = true;
+			else if (args[i].equals("-simplify"))
+				simplify = true;
+			else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		if (maxThreads < 1) {
+			System.err.println("The number of threads must be at least 1");
+			System.exit(2);
+		}
+
+		// Run with 1, 2, 4 .. N threads
+		EquationBenchmark benchmark = new EquationBenchmark(corpus, iterations, warmup);
+		benchmark.setAtoms(atoms);
+		benchmark.setSimplify(simplify);
+		List<Result> results = new ArrayList<Result>();
+		for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+			Result result = benchmark.run(threads);
+			results.add(result);
+			System.out.println(result);
+			if (threads == maxThreads)
+				break;
+		}
+
+		if (baselineFile == null)
+			return;
+
+		// Store the new baseline
+		if (save) {
+			OutputStream out = new FileOutputStream(baselineFile);
+			try {
+				toBaseline(results).store(out, "EquationBenchmark baseline");
+			} finally {
+				out.close();
+			}
+			return;
+		}
+
+		// Compare with the baseline
+		Properties baseline = new Properties();
+		InputStream in = new FileInputStream(baselineFile);
+		try {
+			baseline.load(in);
+		} finally {
+			in.close();
+		}
+
+		List<String> regressions = compare(results, baseline, threshold);
+		for (String regression : regressions)
+			System.err.println("Regression " + regression);
+		if (!regressions.isEmpty())
+			System.exit(1);
+	}
+}
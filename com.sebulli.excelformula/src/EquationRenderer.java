@@ -0,0 +1,246 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.scilab.forge.jlatexmath.Atom;
+import org.scilab.forge.jlatexmath.TeXConstants;
+import org.scilab.forge.jlatexmath.TeXFormula;
+import org.scilab.forge.jlatexmath.TeXIcon;
+
+/**
+ * Renders LaTex formulas without a visible component
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class EquationRenderer {
+
+	// Size of the equations
+	public static final float SIZE = 25;
+
+	// Resolution of the screen, at which the equations have their size
+	public static final float DPI = 96;
+
+	// Scale factors of the usual image variants
+	public static final float THUMBNAIL = 0.5f;
+	public static final float NORMAL = 1.0f;
+	public static final float RETINA = 2.0f;
+	public static final float PRINT = 300 / DPI;
+
+	/**
+	 * Converts a LaTex formula to an icon
+	 *
+	 * @param formula
+	 * 		The LaTex formula
+	 * @return
+	 * 		The icon with the equation
+	 */
+	public static TeXIcon createIcon(String formula) {
+		TeXFormula fomule = new TeXFormula(formula);
+		return fomule.createTeXIcon(TeXConstants.STYLE_DISPLAY, SIZE);
+	}
+
+	/**
+	 * Converts the atom of an equation to an icon.
+	 * No LaTex string has to be parsed.
+	 *
+	 * @param atom
+	 * 		The atom, e.g. from AtomBuilder
+	 * @return
+	 * 		The icon with the equation
+	 */
+	public static TeXIcon createIcon(Atom atom) {
+		TeXFormula fomule = new TeXFormula();
+		fomule.add(atom);
+		return fomule.createTeXIcon(TeXConstants.STYLE_DISPLAY, SIZE);
+	}
+
+	/**
+	 * Converts an excel formula to an icon
+	 *
+	 * The formula is parsed and its atoms are built directly. Only if
+	 * this fails, the formula is converted with Excel2LaTex.
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @return
+	 * 		The icon with the equation
+	 */
+	public static TeXIcon createExcelIcon(String excelFormula) {
+		return createExcelIcon(excelFormula, null);
+	}
+
+	/**
+	 * Converts an excel formula to an icon and displays the defined
+	 * names with their display formula
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @param symbols
+	 * 		The defined names or null
+	 * @return
+	 * 		The icon with the equation
+	 */
+	public static TeXIcon createExcelIcon(String excelFormula, SymbolTable symbols) {
+		try {
+			FormulaNode node = FormulaParser.parse(excelFormula, symbols);
+			return createIcon(AtomBuilder.build(node, hasEqualsSign(excelFormula), symbols));
+		} catch (IllegalArgumentException e) {
+			return createIcon(WorkbookConverter.convert(excelFormula, symbols));
+		}
+	}
+
+	/**
+	 * Checks, whether an excel formula starts with a "="
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @return
+	 * 		True, if the first character is a "="
+	 */
+	public static boolean hasEqualsSign(String excelFormula) {
+		return excelFormula.trim().startsWith("=");
+	}
+
+	/**
+	 * Paints an icon into a new image with transparent background
+	 *
+	 * @param ti
+	 * 		The icon with the equation
+	 * @return
+	 * 		The image
+	 */
+	public static BufferedImage paint(TeXIcon ti) {
+		BufferedImage image = new BufferedImage(Math.max(1, ti.getIconWidth()), Math.max(1, ti.getIconHeight()),
+				BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = image.createGraphics();
+		ti.paintIcon(null, g2, 0, 0);
+		g2.dispose();
+		return image;
+	}
+
+	/**
+	 * Paints an icon at several scale factors. The equation is laid out
+	 * only once. All images share one buffer: they are parts of one
+	 * large image with all variants, one below the other.
+	 *
+	 * @param ti
+	 * 		The icon with the equation
+	 * @param scales
+	 * 		The scale factors, e.g. THUMBNAIL, NORMAL, RETINA or
+	 * 		scale(dpi) for a resolution
+	 * @return
+	 * 		One image per scale factor
+	 */
+	public static BufferedImage[] paint(TeXIcon ti, float... scales) {
+		int[] widths = new int[scales.length];
+		int[] heights = new int[scales.length];
+		int width = 1;
+		int height = 0;
+		for (int i = 0; i < scales.length; i++) {
+			widths[i] = Math.max(1, (int) Math.ceil(ti.getIconWidth() * scales[i]));
+			heights[i] = Math.max(1, (int) Math.ceil(ti.getIconHeight() * scales[i]));
+			width = Math.max(width, widths[i]);
+			height += heights[i];
+		}
+
+		BufferedImage buffer = new BufferedImage(width, Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+		BufferedImage[] images = new BufferedImage[scales.length];
+		Graphics2D g2 = buffer.createGraphics();
+		int y = 0;
+		for (int i = 0; i < scales.length; i++) {
+			Graphics2D g = (Graphics2D) g2.create(0, y, widths[i], heights[i]);
+			g.scale(scales[i], scales[i]);
+			ti.paintIcon(null, g, 0, 0);
+			g.dispose();
+
+			images[i] = buffer.getSubimage(0, y, widths[i], heights[i]);
+			y += heights[i];
+		}
+		g2.dispose();
+		return images;
+	}
+
+	/**
+	 * Gets the scale factor of a resolution
+	 *
+	 * @param dpi
+	 * 		The resolution in dots per inch, e.g. 300 for print
+	 * @return
+	 * 		The scale factor
+	 */
+	public static float scale(float dpi) {
+		return dpi / DPI;
+	}
+
+	/**
+	 * Converts a LaTex formula to images of several scale factors
+	 *
+	 * @param formula
+	 * 		The LaTex formula
+	 * @param scales
+	 * 		The scale factors
+	 * @return
+	 * 		One image per scale factor
+	 */
+	public static BufferedImage[] render(String formula, float... scales) {
+		return paint(createIcon(formula), scales);
+	}
+
+	/**
+	 * Converts an excel formula to images of several scale factors
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @param scales
+	 * 		The scale factors
+	 * @return
+	 * 		One image per scale factor
+	 */
+	public static BufferedImage[] renderExcel(String excelFormula, float... scales) {
+		return paint(createExcelIcon(excelFormula), scales);
+	}
+
+	/**
+	 * Converts a LaTex formula to an image
+	 *
+	 * @param formula
+	 * 		The LaTex formula
+	 * @return
+	 * 		The image
+	 */
+	public static BufferedImage render(String formula) {
+		return paint(createIcon(formula));
+	}
+
+	/**
+	 * Converts an excel formula to an image
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @return
+	 * 		The image
+	 */
+	public static BufferedImage renderExcel(String excelFormula) {
+		return paint(createExcelIcon(excelFormula));
+	}
+}
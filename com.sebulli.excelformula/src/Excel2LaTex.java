@@ -19,28 +19,271 @@
  */
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Converts an excel formula to a latex one
  * 
+ * The converter keeps the working string in a reusable context, so one
+ * instance must not be used by more than one thread at a time.
+ * 
  * @author Gerd Bartelt
  *
  */
 public class Excel2LaTex {
 
-	// Working String with the formula
-	private String s;
+	// Working buffers with the formula
+	private final ConversionContext ctx = new ConversionContext();
 	
 	// Counts the start "«" and end tags "»"
 	// The Java Editor MUST be set to UTF-8 !!
 	private int tags = 0;
 
+	// The defined names of the workbook or null
+	private SymbolTable symbols = null;
+
+	// Marks a defined name in the working text. It is followed by the
+	// index of its display formula.
+	private static final char SYMBOL = '\uE000';
+
+	// The display formulas of the replaced names
+	private final List<String> displays = new ArrayList<String>();
+
+	// The features, that are searched by one scan before the conversion.
+	// Function names are found like ConversionContext.indexOfFunction()
+	// does, as the end of any text before an open bracket.
+	private static final String[] FEATURES = {
+		"ADRESSE(", "INDIREKT(", "WURZEL(", "SUMME(", "WENN(", "UND(", "ODER(",
+		"ADDRESS(", "INDIRECT(", "ABS(", "AND(", "OR(", "IF(", "SQRT(", "EXP(",
+		"SIN(", "COS(", "TAN(", "SINH(", "COSH(", "TANH(", "ARCSIN(", "ARCCOS(", "ARCTAN(",
+		"LN(", "LG(", "LOG(", "MIN(", "MAX(", "^(", "SUM(", "PI(",
+		"^", "/", ":", "*"
+	};
+
+	// Index of the first feature, that is one character
+	private static final int FIRST_CHARACTER = 32;
+
+	// One bit per feature
+	private static final long ADRESSE = feature("ADRESSE(");
+	private static final long INDIREKT = feature("INDIREKT(");
+	private static final long WURZEL = feature("WURZEL(");
+	private static final long SUMME = feature("SUMME(");
+	private static final long WENN = feature("WENN(");
+	private static final long UND = feature("UND(");
+	private static final long ODER = feature("ODER(");
+	private static final long ADDRESS = feature("ADDRESS(");
+	private static final long INDIRECT = feature("INDIRECT(");
+	private static final long ABS = feature("ABS(");
+	private static final long AND = feature("AND(");
+	private static final long OR = feature("OR(");
+	private static final long IF = feature("IF(");
+	private static final long SQRT = feature("SQRT(");
+	private static final long EXP = feature("EXP(");
+	private static final long SIN = feature("SIN(");
+	private static final long COS = feature("COS(");
+	private static final long TAN = feature("TAN(");
+	private static final long SINH = feature("SINH(");
+	private static final long COSH = feature("COSH(");
+	private static final long TANH = feature("TANH(");
+	private static final long ARCSIN = feature("ARCSIN(");
+	private static final long ARCCOS = feature("ARCCOS(");
+	private static final long ARCTAN = feature("ARCTAN(");
+	private static final long LN = feature("LN(");
+	private static final long LG = feature("LG(");
+	private static final long LOG = feature("LOG(");
+	private static final long MIN = feature("MIN(");
+	private static final long MAX = feature("MAX(");
+	private static final long ROOT = feature("^(");
+	private static final long SUM = feature("SUM(");
+	private static final long PI = feature("PI(");
+	private static final long POWER = feature("^");
+	private static final long DIVISION = feature("/");
+	private static final long RANGE = feature(":");
+	private static final long MULTIPLICATION = feature("*");
+
+	// The features of the actual formula
+	private long present = 0;
+
+	// Number of replacements of the actual formula and its limit. A pass
+	// may find the same operator again and again, e.g. in a text.
+	private int steps = 0;
+	private int maxSteps = 0;
+
+	// Number of formulas, that contained a feature
+	private final long[] featureCounts = new long[FEATURES.length];
+
+	// Statistics of all converted formulas
+	private long formulas = 0;
+	private long passes = 0;
+	private long skippedPasses = 0;
+
 	/**
 	 * Constructor
 	 */
 	public Excel2LaTex () {
 	}
 
+	/**
+	 * Gets the bit of a feature
+	 */
+	private static long feature(String name) {
+		for (int i = 0; i < FEATURES.length; i++) {
+			if (FEATURES[i].equals(name))
+				return 1L << i;
+		}
+		throw new IllegalArgumentException("Unknown feature " + name);
+	}
+
+	/**
+	 * Searches all function names and operators of the working string
+	 * in one scan.
+	 * A feature, that is not found, can not be created by the passes
+	 * before the one that converts it, so this pass can be skipped.
+	 *
+	 * @return
+	 * 		One bit per found feature
+	 */
+	private long scanFeatures() {
+
+		char[] text = ctx.text;
+		long found = 0;
+
+		for (int i = 0; i < ctx.length; i++) {
+			switch (text[i]) {
+
+			// Search all function names, that end before this bracket
+			case '(':
+				for (int k = 0; k < FIRST_CHARACTER; k++) {
+					int start = i + 1 - FEATURES[k].length();
+					if (((found & (1L << k)) == 0) && (start >= 0) && ctx.matches(start, FEATURES[k]))
+						found |= 1L << k;
+				}
+				break;
+			case '^': found |= POWER; break;
+			case '/': found |= DIVISION; break;
+			case ':': found |= RANGE; break;
+			case '*': found |= MULTIPLICATION; break;
+			}
+		}
+
+		// The German function names are converted to the English ones
+		if ((found & ADRESSE) != 0) found |= ADDRESS;
+		if ((found & INDIREKT) != 0) found |= INDIRECT;
+		if ((found & WURZEL) != 0) found |= SQRT;
+		if ((found & SUMME) != 0) found |= SUM;
+		if ((found & WENN) != 0) found |= IF;
+		if ((found & UND) != 0) found |= AND;
+		if ((found & ODER) != 0) found |= OR;
+
+		return found;
+	}
+
+	/**
+	 * Checks, whether a pass is necessary and counts it
+	 *
+	 * @param feature
+	 * 		The feature, that is converted by the pass
+	 * @return
+	 * 		True, if the feature was found in the formula
+	 */
+	private boolean has(long feature) {
+		if ((present & feature) != 0) {
+			passes++;
+			return true;
+		}
+		skippedPasses++;
+		return false;
+	}
+
+	/**
+	 * Checks, whether a function pass is necessary and converts it
+	 */
+	private void convertFunctions(long feature, String op, String latexOp, boolean keepBrackets) {
+		if (has(feature))
+			while (step(convertFunction(op, latexOp, keepBrackets)));
+	}
+
+	/**
+	 * Counts a replacement of a pass. A formula, that needs more
+	 * replacements than it could contain operators and functions, is
+	 * not converted, so a pass can't run forever.
+	 * The conversion can also be cancelled by interrupting the thread.
+	 *
+	 * @param replaced
+	 * 		True, if the pass replaced something
+	 * @return
+	 * 		True, if the pass continues
+	 * @throws IllegalArgumentException
+	 * 		If the formula needs too many replacements
+	 * @throws IllegalStateException
+	 * 		If the thread was interrupted
+	 */
+	private boolean step(boolean replaced) {
+		if (!replaced)
+			return false;
+		if (++steps > maxSteps)
+			throw new IllegalArgumentException("Formula can not be converted: " + ctx.getString());
+		if (Thread.currentThread().isInterrupted())
+			throw new IllegalStateException("Conversion interrupted");
+		return true;
+	}
+
+	/**
+	 * Counts the features of the actual formula
+	 */
+	private void countFeatures() {
+		formulas++;
+		for (int i = 0; i < FEATURES.length; i++) {
+			if ((present & (1L << i)) != 0)
+				featureCounts[i]++;
+		}
+	}
+
+	/**
+	 * Gets the number of converted formulas, that contained a feature
+	 *
+	 * @param feature
+	 * 		The function name with an open bracket like "SUM(" or an
+	 * 		operator like "^"
+	 * @return
+	 * 		The number of formulas
+	 */
+	public long getFeatureCount(String feature) {
+		for (int i = 0; i < FEATURES.length; i++) {
+			if (FEATURES[i].equals(feature))
+				return featureCounts[i];
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the statistics of all converted formulas
+	 *
+	 * @return
+	 * 		The statistics as one line
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%d formulas: %d passes, %d skipped (%.1f%%)", formulas, passes, skippedPasses,
+				(passes + skippedPasses == 0) ? 0.0 : skippedPasses * 100.0 / (passes + skippedPasses)));
+		for (int i = 0; i < FEATURES.length; i++) {
+			if (featureCounts[i] != 0)
+				report.append(", ").append(FEATURES[i]).append(' ').append(featureCounts[i]);
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Sets the defined names. Names with a display formula are
+	 * replaced by it.
+	 * 
+	 * @param symbols
+	 * 		The defined names or null
+	 */
+	public void setSymbols (SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
 	/**
 	 * Checks, whether the next character is part of the actual variable, or
 	 * whether it is a new operator.
@@ -52,7 +295,7 @@ public class Excel2LaTex {
 	 * @return
 	 * 		False, if it is still the actual variable name
 	 */
-	private boolean noVar(char c, String op) {
+	private boolean noVar(char c, char op) {
 
 		// Count the start and end tags
 		if (c=='«')
@@ -80,7 +323,7 @@ public class Excel2LaTex {
 		// if the division operator is used, the "^" operator 
 		// does not separate a block
 		case '^':
-				return (!op.equals("/"));
+				return (op != '/');
 				
 		default: 
 				return false;
@@ -88,27 +331,31 @@ public class Excel2LaTex {
 	}
 	
 	/**
-	 * Checks, whether a strings starts with a bracket and
+	 * Checks, whether a part of the working string starts with a bracket and
 	 * the bracket is not closed
 	 * 
-	 * @param s
-	 * 		The string to check
+	 * @param start
+	 * 		Start of the part to check
+	 * @param end
+	 * 		End of the part to check
 	 * @return
 	 * 		True, if it starts with an open bracket
 	 */
-	private boolean startsWithOpenBracket(String s) {
+	private boolean startsWithOpenBracket(int start, int end) {
+
+		char[] text = ctx.text;
 
 		// Exit, if the string does not start with a bracket
-		if (!s.startsWith("("))
+		if ((start >= end) || (text[start] != '('))
 			return false;
 
 		// Count the brackets
 		int brackets = 0;
 		
-		for (int i = 0; i< s.length(); i++) {
+		for (int i = start; i< end; i++) {
 
 			// Get the next character
-			char c = s.charAt(i);
+			char c = text[i];
 		
 			// Count up on every "("
 			if ( c == '(')
@@ -128,27 +375,31 @@ public class Excel2LaTex {
 	}
 	
 	/**
-	 * Checks, whether a strings ends with a bracket and
+	 * Checks, whether a part of the working string ends with a bracket and
 	 * the bracket is not closed
 	 * 
-	 * @param s
-	 * 		The string to check
+	 * @param start
+	 * 		Start of the part to check
+	 * @param end
+	 * 		End of the part to check
 	 * @return
 	 * 		True, if it ends with an open bracket
 	 */
-	private boolean endsWithOpenBracket(String s) {
+	private boolean endsWithOpenBracket(int start, int end) {
+
+		char[] text = ctx.text;
 
 		// Exit, if the string does not start with a bracket
-		if (!s.endsWith(")"))
+		if ((start >= end) || (text[end-1] != ')'))
 			return false;
 
 		// Count the brackets
 		int brackets = 0;
 
-		for (int i = s.length()-1; i>=0; i--) {
+		for (int i = end-1; i>=start; i--) {
 
 			// Get the next character
-			char c = s.charAt(i);
+			char c = text[i];
 
 			// Count up on every ")"
 			if ( c == ')')
@@ -169,24 +420,30 @@ public class Excel2LaTex {
 	
 	
 	/**
-	 * Remove unused brackets
-	 * 
-	 * @param s
-	 * 		The string with brackets
+	 * Remove unused brackets.
+	 * The result is returned in ctx.rangeStart and ctx.rangeEnd.
 	 * 
-	 * @return
-	 * 		The optimized string
+	 * @param start
+	 * 		Start of the part with brackets
+	 * @param end
+	 * 		End of the part with brackets
 	 */
-	private String removeBrackets(String s) {
+	private void removeBrackets(int start, int end) {
+
+		char[] text = ctx.text;
+
+		// Exit with the original part by default
+		ctx.rangeStart = start;
+		ctx.rangeEnd = end;
 
 		// Count the open brackets
 		int brackets = 0;
 		boolean found = false;
 		
-		for (int i = 0; i< s.length(); i++) {
+		for (int i = start; i< end; i++) {
 
 			// Get the next character
-			char c = s.charAt(i);
+			char c = text[i];
 			
 			// Count up on every "("
 			if ( c == '(') {
@@ -201,27 +458,31 @@ public class Excel2LaTex {
 				
 				// Exit, if more brackets are closes than opened
 				if (brackets < 0) {
-					return s;
+					return;
 				}
 			}
 		}
 
-		// Exit with the original string, if more brackets are opened
+		// Exit with the original part, if more brackets are opened
 		// than closed
 		if (brackets != 0)
-			return s;
+			return;
 		
-		// Exit with the original string, if no brackets are found
+		// Exit with the original part, if no brackets are found
 		if (!found)
-			return s;
+			return;
 		
 		// Remove the leading and trailing brackets 
-		String st = s.trim();
-		if (st.startsWith("(") && st.endsWith(")"))
-			return st.substring(1,st.length()-1);
-		
-		// Exit with the original string
-		return s;
+		int st = start;
+		int en = end;
+		while ((st < en) && (text[st] <= ' '))
+			st++;
+		while ((st < en) && (text[en-1] <= ' '))
+			en--;
+		if ((en - st >= 2) && (text[st] == '(') && (text[en-1] == ')')) {
+			ctx.rangeStart = st + 1;
+			ctx.rangeEnd = en - 1;
+		}
 	}
 	
 	/**
@@ -234,20 +495,22 @@ public class Excel2LaTex {
 	 * @return
 	 * 		True, if at least one operator was replaced
 	 */
-	private boolean convertOperator(String op, String latexOp) {
+	private boolean convertOperator(char op, String latexOp) {
 		
 		// Position of the operator
-		int pos = s.indexOf(op);
+		int pos = ctx.indexOf(op);
 
 		// Not found, exit with false
 		if (pos < 0)
 			return false;
 		
+		char[] text = ctx.text;
+
 		// Count the brackets
 		int brackets;
 		
-		// String before the operator
-		String pre ="";
+		// Part before the operator
+		int preStart = pos;
 		brackets = 0; 
 		
 		// Reset the open tag counter
@@ -257,7 +520,7 @@ public class Excel2LaTex {
 		for (int i = pos-1; i>= 0; i--) {
 			
 			// Get the next character
-			char c = s.charAt(i);
+			char c = text[i];
 			
 			// Count up on every ")"
 			if ( c == ')')
@@ -281,8 +544,8 @@ public class Excel2LaTex {
 					break;
 			}
 
-			// Collect the characters to a string
-			pre = c + pre; 
+			// Collect the characters to the part
+			preStart = i; 
 				
 		}
 		
@@ -290,15 +553,15 @@ public class Excel2LaTex {
 		// Reset the bracket counter
 		brackets = 0; 
 
-		// String after the operator
-		String post ="";
+		// Part after the operator
+		int postEnd = pos+1;
 		tags = 0;
 
 		// Search all characters after the operator
-		for (int i = pos+1; i < s.length(); i++) {
+		for (int i = pos+1; i < ctx.length; i++) {
 
 			// Get the next character
-			char c = s.charAt(i);
+			char c = text[i];
 
 			// Count up on every "("
 			if ( c == '(')
@@ -322,55 +585,68 @@ public class Excel2LaTex {
 					break;
 			}
 			
-			// Collect the characters to a string
-			post = post + c;
+			// Collect the characters to the part
+			postEnd = i+1;
 		}
 
-		// Generate the string to replace
-		String target = pre + op + post;
+		// The parts before and after the operator
+		int preEnd = pos;
+		int postStart = pos+1;
+
+		// The part to replace
+		int targetStart = preStart;
+		int targetEnd = postEnd;
 
 		// Remove the leading and trailing brackets
-		if (startsWithOpenBracket(pre) && endsWithOpenBracket(post)) {
-			pre = pre.substring(1, pre.length());
-			post = post.substring(0, post.length()-1);
+		if (startsWithOpenBracket(preStart, preEnd) && endsWithOpenBracket(postStart, postEnd)) {
+			preStart++;
+			postEnd--;
 		}
 
 		// Remove the leading bracket
-		if (startsWithOpenBracket(pre)) {
-			pre = pre.substring(1, pre.length());
-			target = target.substring(1, target.length());
+		if (startsWithOpenBracket(preStart, preEnd)) {
+			preStart++;
+			targetStart++;
 		}
 
 		// Remove the trailing bracket
-		if (endsWithOpenBracket(post)) {
-			post = post.substring(0, post.length()-1);
-			target = target.substring(0, target.length()-1);
+		if (endsWithOpenBracket(postStart, postEnd)) {
+			postEnd--;
+			targetEnd--;
 		}
 		
 		// Remove leading and trailing brackets
-		pre = removeBrackets(pre);
-		post = removeBrackets(post);
+		removeBrackets(preStart, preEnd);
+		preStart = ctx.rangeStart;
+		preEnd = ctx.rangeEnd;
+		removeBrackets(postStart, postEnd);
+		postStart = ctx.rangeStart;
+		postEnd = ctx.rangeEnd;
 
 		// Generate the replacement
-		String replacement = "«" + latexOp + " {" + pre+ "} {" + post + "}»";
+		StringBuilder replacement = ctx.replacement;
+		replacement.setLength(0);
 		
 		// Convert ^(1/x) to square roots
-		if (op.equals("^")) {
+		if (op == '^') {
 			
 			// Search for the "1/"
-			if (post.startsWith("1/")) {
+			if ((postEnd - postStart >= 2) && (text[postStart] == '1') && (text[postStart+1] == '/')) {
 				
 				// Replace it by a square root
-				s= s.replace(target, "$$tmp$$");
-				target = "$$tmp$$";
-				replacement = "« \\sqrt [" + post.substring(2) + "]{" + pre+ "}»";
+				replacement.append("« \\sqrt [").append(text, postStart + 2, postEnd - postStart - 2);
+				replacement.append("]{").append(text, preStart, preEnd - preStart).append("}»");
 			}
 			else
 				return false;	
 		}
+		else {
+			replacement.append('«').append(latexOp).append(" {").append(text, preStart, preEnd - preStart);
+			replacement.append("} {").append(text, postStart, postEnd - postStart).append("}»");
+		}
 
 		// Replace it
-		s= s.replace(target, replacement);
+		ctx.replace(targetStart, targetEnd, replacement);
 		return true;
 	}
 	
@@ -389,31 +665,33 @@ public class Excel2LaTex {
 	private boolean convertFunction(String op, String latexOp, boolean keepBrackets) {
 
 		// Get the start position of the function name
-		int pos = s.indexOf(op+"(");
-
-		// Get the end position of the function name
-		int pos2 = s.indexOf(op+"(") + op.length()+1;
+		int pos = ctx.indexOfFunction(op);
 
 		// Not found, exit with false
 		if (pos < 0)
 			return false;
 		
+		// Get the end position of the function name
+		int pos2 = pos + op.length()+1;
+
+		char[] text = ctx.text;
+
 		// Count the open brackets
 		int brackets = 1;
 		
-		// Collect all parameters
-		ArrayList<String> params = new ArrayList<String>();
-		params.add("");
+		// Collect the offsets of all parameters
+		ctx.params = 0;
+		ctx.addParam(pos2);
 		
-		// String with all parameters
-		String param = "";
-		int parami=0;
+		// End of the string with all parameters
+		int paramEnd = pos2;
+		boolean closed = false;
 		
 		// Search all characters after the funtion name
-		for (int i = pos2; i < s.length(); i++) {
+		for (int i = pos2; i < ctx.length; i++) {
 			
 			// Get the next character
-			char c = s.charAt(i);
+			char c = text[i];
 
 			// Count up on every "("
 			if ( c == '(')
@@ -425,6 +703,7 @@ public class Excel2LaTex {
 
 				// If all brackets are closed  exit the loop
 				if (brackets <= 0) {
+					closed = true;
 					break;
 				}
 			}
@@ -433,77 +712,149 @@ public class Excel2LaTex {
 			if ((brackets == 1) && (c==';')) {
 
 				// Count the function parameters
-				parami++;
-				params.add("");
+				ctx.addParam(i+1);
 			}
 			else {
-				// Set the parameter name
-				params.set(parami, params.get(parami) + c); 
+				// Extend the actual parameter
+				ctx.paramEnd[ctx.params-1] = i+1; 
 			}
 			
-			// Generate also the parameter string with all parameters
-			param = param + c;
+			// Extend also the string with all parameters
+			paramEnd = i+1;
 				
 		}
 		
-		// Generate the text to replace
-		String target = op+"(" +  param + ")";
+		// The text to replace is the function with its parameters.
+		// If the closing bracket is missing, e.g. of a function name in
+		// a text, the function is not converted.
+		if (!closed)
+			return false;
 		
-		// Add brackets
-		if (keepBrackets)
-			param = "(" + param +")";
-
 		// Generate the replacement with start and end tags
-		String replacement = "«" + latexOp + " {" + param+ "}»";
+		StringBuilder replacement = ctx.replacement;
+		replacement.setLength(0);
+		int paramLength = paramEnd - pos2;
 
-		// The ABS function is replaced by a | operator
-		if (latexOp.equals("|"))
-			replacement = "«|" + param+ "|»";
-		
 		// Convert logical operations AND and OR
 		if (op.equals("AND") || op.equals("OR")) {
-			replacement = "«(";
-			for (String par : params) {
-				replacement += par+ " " + latexOp + " ";
+			replacement.append("«(");
+			for (int i = 0; i < ctx.params; i++) {
+				if (i > 0)
+					replacement.append(' ').append(latexOp).append(' ');
+				replacement.append(text, ctx.paramStart[i], ctx.paramEnd[i] - ctx.paramStart[i]);
 			}
-			replacement = replacement.substring(0, replacement.length()-latexOp.length()-1);
-			replacement += ")»";
-			
+			replacement.append(" )»");
 		}
 		
 		// Convert the IF function to a latex case
-		if (op.equals("IF") && (params.size()==3)) {
-			replacement = "« \\begin{cases}";
-			replacement += params.get(1)+ " & \\text { if } ";
-			replacement += params.get(0) + ",\\\\";
+		else if (op.equals("IF") && (ctx.params==3)) {
+			replacement.append("« \\begin{cases}");
+			appendParam(1);
+			replacement.append(" & \\text { if } ");
+			appendParam(0);
+			replacement.append(",\\\\");
 			
-			replacement += params.get(2)+ " & \\text { other cases }";
-			replacement += "\\end{cases}»";
+			appendParam(2);
+			replacement.append(" & \\text { other cases }");
+			replacement.append("\\end{cases}»");
 		}
 
 		// Convert the SUM function
-		if (op.equals("SUM") ) {
-			String[] sumparams = param.split(":");
-			if (sumparams.length == 2) {
-				replacement = "« \\sum_ ";
-				replacement += "{" + sumparams[0] + "}";
-				replacement += "^";
-				replacement += "{" + sumparams[1] + "}";
-//				replacement += " {\\dots}";
-				replacement += " {}";
-				replacement += " »";
-			}
+		else if (op.equals("SUM") && appendSumParams(pos2, paramEnd)) {
 		}
 
 		// Convert the EXP funtion
-		if (op.equals("EXP") ) {
-			replacement = "« e^";
-			replacement += "{" + param + "}";
-			replacement += " »";
+		else if (op.equals("EXP") ) {
+			replacement.append("« e^");
+			replacement.append('{').append(text, pos2, paramLength).append('}');
+			replacement.append(" »");
+		}
+
+		// The ABS function is replaced by a | operator
+		else if (latexOp.equals("|")) {
+			replacement.append("«|");
+			appendParamString(pos2, paramEnd, keepBrackets);
+			replacement.append("|»");
+		}
+
+		else {
+			replacement.append('«').append(latexOp).append(" {");
+			appendParamString(pos2, paramEnd, keepBrackets);
+			replacement.append("}»");
 		}
 
 		// Replace the text
-		s = s.replace(target, replacement);
+		ctx.replace(pos, paramEnd + 1, replacement);
+		return true;
+	}
+
+	/**
+	 * Appends one function parameter to the replacement
+	 * 
+	 * @param i
+	 * 		Index of the parameter
+	 */
+	private void appendParam(int i) {
+		ctx.replacement.append(ctx.text, ctx.paramStart[i], ctx.paramEnd[i] - ctx.paramStart[i]);
+	}
+
+	/**
+	 * Appends the string with all parameters to the replacement
+	 * 
+	 * @param start
+	 * 		Start of the parameters
+	 * @param end
+	 * 		End of the parameters
+	 * @param keepBrackets
+	 * 		True, if the parameters are set in brackets
+	 */
+	private void appendParamString(int start, int end, boolean keepBrackets) {
+		StringBuilder replacement = ctx.replacement;
+		if (keepBrackets)
+			replacement.append('(');
+		replacement.append(ctx.text, start, end - start);
+		if (keepBrackets)
+			replacement.append(')');
+	}
+
+	/**
+	 * Appends the sum of a range like "A1:C6" to the replacement
+	 * 
+	 * @param start
+	 * 		Start of the parameters
+	 * @param end
+	 * 		End of the parameters
+	 * @return
+	 * 		False, if the parameter is no range with a start and an end
+	 */
+	private boolean appendSumParams(int start, int end) {
+		char[] text = ctx.text;
+
+		// Ignore trailing empty parts, like String.split()
+		int last = end;
+		while ((last > start) && (text[last-1] == ':'))
+			last--;
+
+		// The parameter must have exactly 2 parts
+		int colon = -1;
+		for (int i = start; i < last; i++) {
+			if (text[i] == ':') {
+				if (colon >= 0)
+					return false;
+				colon = i;
+			}
+		}
+		if (colon < 0)
+			return false;
+
+		StringBuilder replacement = ctx.replacement;
+		replacement.append("« \\sum_ ");
+		replacement.append('{').append(text, start, colon - start).append('}');
+		replacement.append('^');
+		replacement.append('{').append(text, colon + 1, last - colon - 1).append('}');
+//		replacement.append(" {\\dots}");
+		replacement.append(" {}");
+		replacement.append(" »");
 		return true;
 	}
 	
@@ -532,86 +883,80 @@ public class Excel2LaTex {
 	/**
 	 * Adds prefix \\big ... to a bracket, depending on its position
 	 * 
-	 * @param s
-	 * 		The string part to convert
+	 * @param start
+	 * 		Start of the string part to convert
+	 * @param end
+	 * 		End of the string part to convert
 	 * @param maxdeep
 	 * 		The maximum deep of the brackets
-	 * @return
-	 * 		The converted string
 	 */
-	private String formatBracketsPart(String s, int maxdeep) {
+	private void formatBracketsPart(int start, int end, int maxdeep) {
 		
 		int i;
 		char c;
+		char[] text = ctx.text;
 		
 		// The deep
 		int deep = maxdeep;
 		
-		// Temporary string
-		String part ="";
+		// The converted part
+		StringBuilder part = ctx.replacement;
 
 		// Get all characters
-		for (i=0; i<s.length();i++) {
+		for (i=start; i<end;i++) {
 			
 			// Get the next character
-			c = s.charAt(i);
+			c = text[i];
 			
 			// Add the prefix before opening brackets
 			if (c == '(') {
-				part += getPraefix(deep) + c ;
+				part.append(getPraefix(deep)).append(c);
 				deep--;
 			}
 
 			// Add the prefix before closing brackets
 			else if (c == ')') {
 				deep++;
-				part += getPraefix(deep) + c ;
+				part.append(getPraefix(deep)).append(c);
 			}
 			
 			// Add no prefix
 			else {
-				part += c;
+				part.append(c);
 			}
 			
 		}
-		
-		// Return the converted string
-		return part;
 	}
 	
 	
 	/**
-	 * Search all brackets, split the string into blocks and
+	 * Search all brackets, split the working string into blocks and
 	 * count the maximum bracket deep of this block
-	 *  
-	 * @param s
-	 * 		The string to convert
-	 * @return
-	 * 		The converted string
 	 */
-	private String formatBrackets(String s) {
+	private void formatBrackets() {
 		
 		int i;
 		char c;
+		char[] text = ctx.text;
 		
 		// Count the bracket deep
 		int deep = 0;
 		
-		// Part of the string
-		String part ="";
+		// Start of the actual part of the string
+		int part = 0;
 		
 		// The maximum deep
 		int maxdeep = 0;
 		
 		// The converted string
-		String snew = "";
+		StringBuilder snew = ctx.replacement;
+		snew.setLength(0);
 		
 		// Get all characters of the string
-		for (i=0; i<s.length();i++) {
+		for (i=0; i<ctx.length;i++) {
 			
 			// Get the next character
-			c = s.charAt(i);
-			part += c;
+			c = text[i];
 			
 			// If an open bracket is detected, increase the bracket deep
 			if (c == '(') {
@@ -629,18 +974,99 @@ public class Excel2LaTex {
 				
 				// If all brackets are closed, than format this part
 				if (deep ==0 ) {
-					snew += formatBracketsPart(part,maxdeep);
+					formatBracketsPart(part, i+1, maxdeep);
 
 					// Reset maximum deep and part string for the next block
 					maxdeep = 0;
-					part = "";
+					part = i+1;
 				}
 			}
 			
 		}
 		
-		// Return the converted string
-		return snew + part;
+		// Use the converted string
+		snew.append(text, part, ctx.length - part);
+		ctx.set(snew);
+	}
+	
+	/**
+	 * Replaces all defined names, that have a display formula, by a
+	 * placeholder between a start and end tag, so it is handled like
+	 * one variable. The display formula is inserted only after all
+	 * operators are converted, so its "^" or "/" are not converted.
+	 */
+	private void replaceSymbols() {
+		
+		char[] text = ctx.text;
+		StringBuilder snew = ctx.replacement;
+		snew.setLength(0);
+		displays.clear();
+		boolean quoted = false;
+		
+		int i = 0;
+		while (i < ctx.length) {
+			char c = text[i];
+			
+			// Do not replace anything in string literals
+			if (c == '"')
+				quoted = !quoted;
+			
+			if (quoted || !FormulaParser.isNamePart(c)) {
+				snew.append(c);
+				i++;
+				continue;
+			}
+
+			// Get the whole name
+			int end = i + 1;
+			while ((end < ctx.length) && FormulaParser.isNamePart(text[end]))
+				end++;
+			
+			// Names of functions are not replaced
+			int id = -1;
+			if (FormulaParser.isNameStart(c) && ((end == ctx.length) || (text[end] != '(')))
+				id = symbols.lookup(text, i, end);
+			
+			String display = (id >= 0) ? symbols.getDisplay(id) : null;
+			if (display != null) {
+				snew.append('«').append(SYMBOL).append(displays.size()).append('»');
+				displays.add(display);
+			}
+			else
+				snew.append(text, i, end - i);
+			i = end;
+		}
+		
+		if (!displays.isEmpty())
+			ctx.set(snew);
+	}
+	
+	/**
+	 * Inserts the display formulas of the defined names for their
+	 * placeholders
+	 */
+	private void insertSymbols() {
+		
+		char[] text = ctx.text;
+		StringBuilder snew = ctx.replacement;
+		snew.setLength(0);
+		
+		int i = 0;
+		while (i < ctx.length) {
+			char c = text[i++];
+			if (c != SYMBOL) {
+				snew.append(c);
+				continue;
+			}
+			
+			// The index of the display formula
+			int index = 0;
+			while ((i < ctx.length) && (text[i] >= '0') && (text[i] <= '9'))
+				index = 10 * index + (text[i++] - '0');
+			// In a group like in LaTeXWriter, e.g. for an exponent of the name
+			snew.append('{').append(displays.get(index)).append('}');
+		}
+		ctx.set(snew);
 	}
 	
 	/**
@@ -653,7 +1079,9 @@ public class Excel2LaTex {
 	 */
 	public String convert (String excelString) {
 
-		s = excelString;
+		ctx.set(excelString);
+		steps = 0;
+		maxSteps = 2 * excelString.length() + 16;
 
 		// Some tests
 		//s = "1/ (3+4)";
@@ -665,75 +1093,94 @@ public class Excel2LaTex {
 		// s = "(SUMME(A1:B2))^(1/3)";
 
 		
+		// Search all features of the formula once
+		present = scanFeatures();
+
 		// Convert German function names
-		s= s.replace("ADRESSE(", "ADDRESS(");
-		s= s.replace("INDIREKT(", "INDIRECT(");
-		s= s.replace("WURZEL(", "SQRT(");
-		s= s.replace("SUMME(", "SUM(");
-		s= s.replace("WENN(", "IF(");
-		s= s.replace("UND(", "AND(");
-		s= s.replace("ODER(", "OR(");
+		if (has(ADRESSE)) ctx.replace("ADRESSE(", "ADDRESS(");
+		if (has(INDIREKT)) ctx.replace("INDIREKT(", "INDIRECT(");
+		if (has(WURZEL)) ctx.replace("WURZEL(", "SQRT(");
+		if (has(SUMME)) ctx.replace("SUMME(", "SUM(");
+		if (has(WENN)) ctx.replace("WENN(", "IF(");
+		if (has(UND)) ctx.replace("UND(", "AND(");
+		if (has(ODER)) ctx.replace("ODER(", "OR(");
+		
+		// Replace the defined names by placeholders for their display formula
+		displays.clear();
+		if (symbols != null)
+			replaceSymbols();
+		countFeatures();
 		
 		// Convert the ABS function to an ABS operator
-		while (convertFunction("ABS", "|", false));
+		convertFunctions(ABS, "ABS", "|", false);
 
 		// Convert logical functions
-		while (convertFunction("AND", "\\wedge", false));
-		while (convertFunction("OR", "\\vee", false));
-		while (convertFunction("IF", "", false));
+		convertFunctions(AND, "AND", "\\wedge", false);
+		convertFunctions(OR, "OR", "\\vee", false);
+		convertFunctions(IF, "IF", "", false);
 
 		// Convert functions
-		while (convertFunction("SQRT", "\\sqrt", false));
-		while (convertFunction("EXP", "", false));
-		while (convertFunction("SIN", "\\sin", true));
-		while (convertFunction("COS", "\\cos", true));
-		while (convertFunction("TAN", "\\tan", true));
-		while (convertFunction("SINH", "\\sinh", true));
-		while (convertFunction("COSH", "\\cosh", true));
-		while (convertFunction("TANH", "\\tanh", true));
-		while (convertFunction("ARCSIN", "\\arcsin", true));
-		while (convertFunction("ARCCOS", "\\arccos", true));
-		while (convertFunction("ARCTAN", "\\arctan", true));
+		convertFunctions(SQRT, "SQRT", "\\sqrt", false);
+		convertFunctions(EXP, "EXP", "", false);
+		convertFunctions(SIN, "SIN", "\\sin", true);
+		convertFunctions(COS, "COS", "\\cos", true);
+		convertFunctions(TAN, "TAN", "\\tan", true);
+		convertFunctions(SINH, "SINH", "\\sinh", true);
+		convertFunctions(COSH, "COSH", "\\cosh", true);
+		convertFunctions(TANH, "TANH", "\\tanh", true);
+		convertFunctions(ARCSIN, "ARCSIN", "\\arcsin", true);
+		convertFunctions(ARCCOS, "ARCCOS", "\\arccos", true);
+		convertFunctions(ARCTAN, "ARCTAN", "\\arctan", true);
 
 		// Convert functions
-		while (convertFunction("LN", "\\ln", true));
-		while (convertFunction("LG", "\\lg", true));
-		while (convertFunction("LOG", "\\log", true));
+		convertFunctions(LN, "LN", "\\ln", true);
+		convertFunctions(LG, "LG", "\\lg", true);
+		convertFunctions(LOG, "LOG", "\\log", true);
 
 		// Convert functions
-		while (convertFunction("MIN", "\\min", true));
-		while (convertFunction("MAX", "\\max", true));
+		convertFunctions(MIN, "MIN", "\\min", true);
+		convertFunctions(MAX, "MAX", "\\max", true);
 
-		// Convert operators
-		while (convertOperator("^", "\\sqrt"));
-		while (convertFunction("^", "^",  false));
+		// Convert operators.
+		// The "^" of an EXP function is never converted to a root,
+		// so only the operators of the formula itself are searched.
+		if (has(POWER))
+			while (step(convertOperator('^', "\\sqrt")));
+		convertFunctions(ROOT, "^", "^",  false);
 
 		// Convert SUM function
-		while (convertFunction("SUM", "\\sum", false));
+		convertFunctions(SUM, "SUM", "\\sum", false);
 
 		// Convert operators
-		while (convertOperator("/", "\\frac"));
+		if (has(DIVISION))
+			while (step(convertOperator('/', "\\frac")));
 		
 		// Replace some special characters and texts
-		s = s.replace(":", " \\dots ");
-		s = s.replace("*PI()", " \\pi ");
-		s = s.replace("PI()", " \\pi ");
-		s = s.replace("*", " \\cdot ");
+		if (has(RANGE))
+			ctx.replace(":", " \\dots ");
+		if (has(PI)) {
+			ctx.replace("*PI()", " \\pi ");
+			ctx.replace("PI()", " \\pi ");
+		}
+		if (has(MULTIPLICATION))
+			ctx.replace("*", " \\cdot ");
 
 		// Format the brackets
-		s = formatBrackets(s);
+		formatBrackets();
 		
 		// Some funtions that are not supported
-		if (s.contains("INDIRECT(") || 
-			s.contains("ADDRESS(") )
-			s= "\\text{willst mich testen ?? }";
+		if ((((present & INDIRECT) != 0) && (ctx.indexOf("INDIRECT(", 0) >= 0)) || 
+			(((present & ADDRESS) != 0) && (ctx.indexOf("ADDRESS(", 0) >= 0)) )
+			return "\\text{willst mich testen ?? }";
+
+		// Insert the display formulas of the defined names
+		if (!displays.isEmpty())
+			insertSymbols();
 
 		// Remove the start and end tags
-		s = s.replace('«',' ');
-    	s = s.replace('»',' ');
+		ctx.replace('«',' ');
+    	ctx.replace('»',' ');
 
-		return s;
+		return ctx.getString();
 	}
 }
-
-
@@ -23,11 +23,18 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.net.MalformedURLException;
+import java.net.URL;
 
 import javax.swing.JApplet;
 import javax.swing.JButton;
+import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
+import javax.swing.event.CaretEvent;
+import javax.swing.event.CaretListener;
 
 
 /**
@@ -59,6 +66,12 @@ public class ExcelFormula extends JApplet implements ActionListener {
 	
 	// Control that displays the equation
 	private Equation equation;
+	
+	// Scroll pane with the equation
+	private JScrollPane equationScrollPane;
+	
+	// The excel formula of the displayed equation, if it was parsed
+	private String displayedFormula = null;
 
     
     /**
@@ -67,8 +80,14 @@ public class ExcelFormula extends JApplet implements ActionListener {
      */
     private void createGUI() {
 
-    	// Creates a main panel with a background image
-    	mainPanel = new ImagePanel (this.getImage (this.getCodeBase(), "pics/xl.png"));
+    	// Creates a main panel with a background image,
+    	// that is loaded in the background
+    	try {
+    		mainPanel = new ImagePanel (new URL(this.getCodeBase(), "pics/xl.png"));
+    	} catch (MalformedURLException e) {
+    		System.err.println("Invalid code base " + this.getCodeBase());
+    		return;
+    	}
     	setContentPane(mainPanel); 
 
         //The Excel formula field
@@ -99,6 +118,14 @@ public class ExcelFormula extends JApplet implements ActionListener {
 			}
         });
         
+        // Highlight the part of the equation at the caret
+        excelFormulaField.addCaretListener(new CaretListener() {
+			@Override
+			public void caretUpdate(CaretEvent e) {
+				highlight();
+			}
+        });
+        
         // Set the size and position 
         excelFormulaField.setBounds(200, 117, 650, 20);
 
@@ -118,7 +145,25 @@ public class ExcelFormula extends JApplet implements ActionListener {
 
         // Create the equation control
         equation = new Equation(this); 
-        equation.setLocation(54, 194);
+        
+        // A click into the equation selects its part of the excel formula
+        equation.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				FormulaNode node = equation.getNodeAt(e.getX(), e.getY());
+				if ((node != null) && excelFormulaField.getText().equals(displayedFormula)) {
+					excelFormulaField.requestFocusInWindow();
+					excelFormulaField.select(node.start, node.end);
+				}
+			}
+        });
+        
+        // Large equations can be scrolled
+        equationScrollPane = new JScrollPane(equation);
+        equationScrollPane.setBounds(54, 194, 752, 416);
+        equationScrollPane.setBorder(javax.swing.BorderFactory.createEmptyBorder());
+        equationScrollPane.setOpaque(false);
+        equationScrollPane.getViewport().setOpaque(false);
         
         mainPanel.add(excelFormulaField);
 
@@ -127,7 +172,7 @@ public class ExcelFormula extends JApplet implements ActionListener {
 //        mainPanel.add(excelButton);
 //        mainPanel.add(latexButton);
 
-        mainPanel.add(equation);
+        mainPanel.add(equationScrollPane);
         mainPanel.setBackground (Color.white);
 
         // Do a first conversion of the demo formula
@@ -139,16 +184,38 @@ public class ExcelFormula extends JApplet implements ActionListener {
      * Do the conversion and display the result
      */
     private void calc() {
+    	String excelFormula = excelFormulaField.getText();
 
-    	// Convert the excel formula
-    	String result = excel2LaTex.convert(excelFormulaField.getText());
+    	// Display the result as mathematical equation.
+    	// The atoms are built from the parsed formula. If it can't
+    	// be parsed, it is converted to a LaTex string.
+    	// This repaints only the region of the equation.
+    	try {
+    		equation.setFormula(FormulaParser.parse(excelFormula), EquationRenderer.hasEqualsSign(excelFormula));
+    		displayedFormula = excelFormula;
+    	} catch (IllegalArgumentException e) {
+    		equation.setFormula(excel2LaTex.convert(excelFormula));
+    		displayedFormula = null;
+    	}
+    	highlight();
     	
-    	// Display the result in a text field
-    	latexFormulaField.setText(result);
-    	
-    	// Display the result as mathematical equation
-    	equation.setFormula(result);
-    	this.repaint();
+    	// Display the LaTex formula in a text field. The field is only
+    	// shown for debugging, so it is not converted on every keystroke.
+    	if (latexFormulaField.isShowing())
+    		latexFormulaField.setText(excel2LaTex.convert(excelFormula));
+    }
+    
+    
+    /**
+     * Highlights the part of the equation at the caret or the selection.
+     * Nothing is highlighted, if the formula was changed since the
+     * last conversion.
+     */
+    private void highlight() {
+    	if (excelFormulaField.getText().equals(displayedFormula))
+    		equation.highlight(excelFormulaField.getSelectionStart(), excelFormulaField.getSelectionEnd());
+    	else
+    		equation.clearHighlight();
     }
     
     
@@ -180,9 +247,7 @@ public class ExcelFormula extends JApplet implements ActionListener {
     	
     	// The button ">>" was pressed
 	    if (action.equals(">>")) {
-	    	String result = excel2LaTex.convert(excelFormulaField.getText());
-	    	latexFormulaField.setText(result);
-	    	equation.setFormula(result);
+	    	calc();
 	    }
 	    
 	    // The button "latex" was pressed
@@ -0,0 +1,199 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/**
+ * One formula cell of a workbook together with its converted
+ * LaTex formula
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class FormulaCell implements Comparable<FormulaCell> {
+
+	// Position of the sheet in the workbook
+	private final int sheet;
+
+	// Name of the sheet
+	private final String sheetName;
+
+	// Row and column, both starting with 0
+	private final int row;
+	private final int column;
+
+	// The excel formula
+	private final String formula;
+
+	// The value that was cached in the workbook
+	private final String value;
+
+	// The converted formula
+	private volatile String latex;
+
+	/**
+	 * Constructor
+	 *
+	 * @param sheet
+	 * 		Position of the sheet in the workbook
+	 * @param sheetName
+	 * 		Name of the sheet
+	 * @param row
+	 * 		The row, starting with 0
+	 * @param column
+	 * 		The column, starting with 0
+	 * @param formula
+	 * 		The excel formula
+	 * @param value
+	 * 		The cached value or null
+	 */
+	public FormulaCell(int sheet, String sheetName, int row, int column, String formula, String value) {
+		this.sheet = sheet;
+		this.sheetName = sheetName;
+		this.row = row;
+		this.column = column;
+		this.formula = formula;
+		this.value = value;
+	}
+
+	public int getSheet() {
+		return sheet;
+	}
+
+	public String getSheetName() {
+		return sheetName;
+	}
+
+	public int getRow() {
+		return row;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	public String getFormula() {
+		return formula;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public String getLatex() {
+		return latex;
+	}
+
+	public void setLatex(String latex) {
+		this.latex = latex;
+	}
+
+	/**
+	 * Gets the name of the cell like "B12"
+	 *
+	 * @return
+	 * 		The cell name
+	 */
+	public String getCellName() {
+		return columnName(column) + (row + 1);
+	}
+
+	/**
+	 * Converts a column index to the column letters
+	 *
+	 * @param column
+	 * 		The column, starting with 0
+	 * @return
+	 * 		The column letters, e.g. "A" or "AB"
+	 */
+	public static String columnName(int column) {
+		String name = "";
+
+		// Bijective base 26
+		for (int c = column + 1; c > 0; c = (c - 1) / 26) {
+			name = (char)('A' + (c - 1) % 26) + name;
+		}
+		return name;
+	}
+
+	/**
+	 * Gets the column of a cell name like "AB12"
+	 *
+	 * @param cellName
+	 * 		The cell name
+	 * @return
+	 * 		The column, starting with 0 or -1, if there are no letters
+	 */
+	public static int parseColumn(String cellName) {
+		int column = 0;
+		int i;
+
+		for (i = 0; i < cellName.length(); i++) {
+			char c = cellName.charAt(i);
+
+			// Ignore absolute references
+			if (c == '$')
+				continue;
+			if (c < 'A' || c > 'Z')
+				break;
+			column = column * 26 + (c - 'A' + 1);
+		}
+		return column - 1;
+	}
+
+	/**
+	 * Gets the row of a cell name like "AB12"
+	 *
+	 * @param cellName
+	 * 		The cell name
+	 * @return
+	 * 		The row, starting with 0 or -1, if there are no digits
+	 */
+	public static int parseRow(String cellName) {
+		int row = 0;
+		boolean found = false;
+
+		for (int i = 0; i < cellName.length(); i++) {
+			char c = cellName.charAt(i);
+			if (c >= '0' && c <= '9') {
+				row = row * 10 + (c - '0');
+				found = true;
+			}
+		}
+		return found ? row - 1 : -1;
+	}
+
+	/**
+	 * Order by sheet, row and column
+	 */
+	@Override
+	public int compareTo(FormulaCell o) {
+		if (sheet != o.sheet)
+			return sheet < o.sheet ? -1 : 1;
+		if (row != o.row)
+			return row < o.row ? -1 : 1;
+		if (column != o.column)
+			return column < o.column ? -1 : 1;
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return sheetName + "!" + getCellName();
+	}
+}
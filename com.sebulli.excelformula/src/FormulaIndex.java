@@ -0,0 +1,618 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index of the structure of many formulas
+ *
+ * Every formula cell gets an id. For every function, operator and
+ * structural fingerprint the index has a sorted list of the cells,
+ * that contain it. A query intersects these lists.
+ *
+ * The keys are:
+ * 	"F:EXP"		The function EXP, or "F:ROOT" for a root like x^(1/n)
+ * 	"O:^"		The operator ^, or "U:-" for a negative sign
+ * 	"A:IF>EXP"	An EXP somewhere inside an IF
+ * 	"S:(x^(#/#))"	The shape of a part of the formula, see shape()
+ *
+ * The index can be filled by several threads. The lists are sorted
+ * before the first query.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class FormulaIndex {
+
+	// Identifies the index file
+	private static final int MAGIC = 0x46494458;
+	private static final int VERSION = 1;
+
+	// Depth of the shape fingerprints
+	private static final int SHAPE_DEPTH = 2;
+
+	// The operators of a query
+	private static final String[] OPERATORS = { "+", "-", "*", "/", "^", "&", "=", "<", ">", "<=", ">=", "<>" };
+
+	// The sheet names
+	private final List<String> sheetNames = new ArrayList<String>();
+	private final Map<String, Integer> sheetIds = new HashMap<String, Integer>();
+
+	// Sheet, row and column by cell id
+	private int[] cellSheets = new int[64];
+	private int[] cellRows = new int[64];
+	private int[] cellColumns = new int[64];
+	private int size = 0;
+
+	// The posting lists by key
+	private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+	private int[][] postings = new int[64][];
+	private int[] lengths = new int[64];
+
+	// True, if all posting lists are sorted
+	private boolean sorted = true;
+
+	/**
+	 * Adds a formula cell
+	 *
+	 * @param id
+	 * 		The id of the cell. All ids should be used, starting with 0.
+	 * @param cell
+	 * 		The cell
+	 * @param node
+	 * 		The parsed formula, or null if it could not be parsed
+	 */
+	public void add(int id, FormulaCell cell, FormulaNode node) {
+		Set<String> keys = new HashSet<String>();
+		if (node != null)
+			collect(node, new ArrayList<String>(), keys);
+		add(id, cell, keys);
+	}
+
+	/**
+	 * Adds the keys of a cell
+	 */
+	private synchronized void add(int id, FormulaCell cell, Set<String> keys) {
+		if (id >= cellSheets.length) {
+			int n = Math.max(id + 1, cellSheets.length * 2);
+			cellSheets = Arrays.copyOf(cellSheets, n);
+			cellRows = Arrays.copyOf(cellRows, n);
+			cellColumns = Arrays.copyOf(cellColumns, n);
+		}
+
+		Integer sheet = sheetIds.get(cell.getSheetName());
+		if (sheet == null) {
+			sheet = sheetNames.size();
+			sheetNames.add(cell.getSheetName());
+			sheetIds.put(cell.getSheetName(), sheet);
+		}
+		cellSheets[id] = sheet;
+		cellRows[id] = cell.getRow();
+		cellColumns[id] = cell.getColumn();
+		size = Math.max(size, id + 1);
+
+		for (String key : keys)
+			append(key, id);
+	}
+
+	/**
+	 * Appends a cell id to the posting list of a key
+	 */
+	private void append(String key, int id) {
+		Integer k = keyIds.get(key);
+		if (k == null) {
+			k = keyIds.size();
+			keyIds.put(key, k);
+			if (k == postings.length) {
+				postings = Arrays.copyOf(postings, k * 2);
+				lengths = Arrays.copyOf(lengths, k * 2);
+			}
+			postings[k] = new int[4];
+		}
+
+		int[] list = postings[k];
+		int n = lengths[k];
+		if (n == list.length)
+			list = postings[k] = Arrays.copyOf(list, n * 2);
+		if (n > 0 && list[n - 1] > id)
+			sorted = false;
+		list[n] = id;
+		lengths[k] = n + 1;
+	}
+
+	/**
+	 * Collects all keys of a node and its children
+	 *
+	 * @param node
+	 * 		The node
+	 * @param ancestors
+	 * 		The labels of the enclosing functions and operators
+	 * @param keys
+	 * 		The collected keys
+	 */
+	private static void collect(FormulaNode node, List<String> ancestors, Set<String> keys) {
+		node = node.unwrap();
+		String label = label(node);
+
+		if (label != null) {
+			if (node.type == FormulaNode.FUNCTION || label.equals("ROOT"))
+				keys.add("F:" + label);
+			if (node.type == FormulaNode.BINARY)
+				keys.add("O:" + node.text);
+			else if (node.type == FormulaNode.UNARY)
+				keys.add("U:" + node.text);
+			for (String ancestor : ancestors)
+				keys.add("A:" + ancestor + ">" + label);
+			keys.add("S:" + shape(node));
+			ancestors.add(label);
+		}
+
+		for (FormulaNode child : node.children)
+			collect(child, ancestors, keys);
+
+		if (label != null)
+			ancestors.remove(ancestors.size() - 1);
+	}
+
+	/**
+	 * Gets the label of a function or operator
+	 *
+	 * @return
+	 * 		The function name, the operator, "ROOT" or null for other nodes
+	 */
+	private static String label(FormulaNode node) {
+		switch (node.type) {
+		case FormulaNode.FUNCTION:
+			return node.text;
+		case FormulaNode.BINARY:
+			if (node.text.equals("^") && AtomBuilder.rootIndex(node) != null)
+				return "ROOT";
+			return node.text;
+		case FormulaNode.UNARY:
+			return node.text;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the shape of a part of a formula. Numbers are written as "#",
+	 * names and ranges as "x", texts as "t" and brackets are removed.
+	 * Parts deeper than SHAPE_DEPTH are written as "_".
+	 *
+	 * @param node
+	 * 		The node
+	 * @return
+	 * 		The shape, e.g. "(x^(#/#))" for A1^(1/3)
+	 */
+	public static String shape(FormulaNode node) {
+		StringBuilder sb = new StringBuilder();
+		shape(node.unwrap(), SHAPE_DEPTH, sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the shape of a node
+	 */
+	private static void shape(FormulaNode node, int depth, StringBuilder sb) {
+		node = node.unwrap();
+		switch (node.type) {
+		case FormulaNode.NUMBER:
+			sb.append('#');
+			return;
+		case FormulaNode.NAME:
+		case FormulaNode.RANGE:
+			sb.append('x');
+			return;
+		case FormulaNode.TEXT:
+			sb.append('t');
+			return;
+		}
+
+		if (depth < 0) {
+			sb.append('_');
+			return;
+		}
+
+		switch (node.type) {
+		case FormulaNode.UNARY:
+			sb.append(node.text);
+			shape(node.child(0), depth - 1, sb);
+			break;
+		case FormulaNode.BINARY:
+			sb.append('(');
+			shape(node.child(0), depth - 1, sb);
+			sb.append(node.text);
+			shape(node.child(1), depth - 1, sb);
+			sb.append(')');
+			break;
+		case FormulaNode.FUNCTION:
+			sb.append(node.text).append('(');
+			for (int i = 0; i < node.children.length; i++) {
+				if (i > 0)
+					sb.append(';');
+				shape(node.child(i), depth - 1, sb);
+			}
+			sb.append(')');
+			break;
+		}
+	}
+
+	/**
+	 * Finds the cells, that contain all keys
+	 *
+	 * @param keys
+	 * 		The keys like "F:EXP" or "A:IF>EXP"
+	 * @return
+	 * 		The sorted ids of the cells
+	 */
+	public synchronized int[] find(String... keys) {
+		sort();
+		if (keys.length == 0)
+			return new int[0];
+
+		// Start with the shortest list
+		int[] k = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			Integer id = keyIds.get(keys[i]);
+			if (id == null)
+				return new int[0];
+			k[i] = id;
+		}
+		for (int i = 1; i < k.length; i++) {
+			for (int j = i; j > 0 && lengths[k[j]] < lengths[k[j - 1]]; j--) {
+				int t = k[j];
+				k[j] = k[j - 1];
+				k[j - 1] = t;
+			}
+		}
+
+		int[] result = Arrays.copyOf(postings[k[0]], lengths[k[0]]);
+		int n = result.length;
+		for (int i = 1; i < k.length && n > 0; i++)
+			n = intersect(result, n, postings[k[i]], lengths[k[i]]);
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Finds the cells of a query. The query has one or more terms,
+	 * separated by spaces:
+	 * 	"EXP"			Cells with the function EXP
+	 * 	"^"			Cells with the operator ^
+	 * 	"IF>EXP"		Cells with an EXP inside an IF
+	 * 	"ROOT>ROOT"		Cells with nested roots like (x^(1/2))^(1/3)
+	 * 	"shape:A1^(1/3)"	Cells with a part of the same shape
+	 * 	"U:-"			Cells with the key "U:-"
+	 *
+	 * @param query
+	 * 		The query
+	 * @return
+	 * 		The sorted ids of the cells
+	 * @throws IllegalArgumentException
+	 * 		If a shape can not be parsed
+	 */
+	public int[] query(String query) {
+		List<String> keys = new ArrayList<String>();
+		for (String term : query.trim().split("\\s+")) {
+			if (term.length() == 0)
+				continue;
+			if (term.length() > 2 && term.charAt(1) == ':' && "FOUAS".indexOf(term.charAt(0)) >= 0)
+				keys.add(term);
+			else if (term.startsWith("shape:"))
+				keys.add("S:" + shape(FormulaParser.parse(term.substring(6))));
+			else if (term.indexOf('>') > 0 && term.indexOf('>') < term.length() - 1) {
+				int i = term.indexOf('>');
+				keys.add("A:" + label(term.substring(0, i)) + ">" + label(term.substring(i + 1)));
+			}
+			else if (Arrays.asList(OPERATORS).contains(term))
+				keys.add("O:" + term);
+			else
+				keys.add("F:" + label(term));
+		}
+		return find(keys.toArray(new String[keys.size()]));
+	}
+
+	/**
+	 * Gets the label of a function or operator of a query
+	 */
+	private static String label(String term) {
+		if (Arrays.asList(OPERATORS).contains(term))
+			return term;
+		return FormulaParser.translate(term.toUpperCase());
+	}
+
+	/**
+	 * Intersects a list with another one
+	 *
+	 * @param a
+	 * 		The first list. It is overwritten with the result.
+	 * @param n
+	 * 		Length of the first list
+	 * @param b
+	 * 		The longer list
+	 * @param m
+	 * 		Length of the longer list
+	 * @return
+	 * 		Length of the result
+	 */
+	private static int intersect(int[] a, int n, int[] b, int m) {
+		int count = 0;
+		int j = 0;
+		for (int i = 0; i < n && j < m; i++) {
+
+			// Gallop to the first element, that is not smaller
+			int step = 1;
+			int low = j;
+			while (j < m && b[j] < a[i]) {
+				low = j;
+				j += step;
+				step <<= 1;
+			}
+			if (j > low)
+				j = lowerBound(b, low, Math.min(j, m), a[i]);
+
+			if (j < m && b[j] == a[i])
+				a[count++] = a[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the first element, that is not smaller than a value
+	 */
+	private static int lowerBound(int[] b, int low, int high, int value) {
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (b[mid] < value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Sorts all posting lists, if cells were added out of order
+	 */
+	private void sort() {
+		if (sorted)
+			return;
+		for (int k = 0; k < keyIds.size(); k++)
+			Arrays.sort(postings[k], 0, lengths[k]);
+		sorted = true;
+	}
+
+	/**
+	 * Gets the number of cells
+	 *
+	 * @return
+	 * 		The number of cells
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of keys
+	 *
+	 * @return
+	 * 		The number of different keys
+	 */
+	public synchronized int getKeyCount() {
+		return keyIds.size();
+	}
+
+	/**
+	 * Gets the name of a cell
+	 *
+	 * @param id
+	 * 		The id of the cell
+	 * @return
+	 * 		The name like "Sheet1!B3"
+	 */
+	public synchronized String getCellName(int id) {
+		return sheetNames.get(cellSheets[id]) + "!" + FormulaCell.columnName(cellColumns[id]) + (cellRows[id] + 1);
+	}
+
+	/**
+	 * Saves the index
+	 *
+	 * @param file
+	 * 		The index file
+	 * @throws IOException
+	 * 		If the file can not be written
+	 */
+	public synchronized void save(File file) throws IOException {
+		sort();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(sheetNames.size());
+			for (String name : sheetNames)
+				out.writeUTF(name);
+
+			out.writeInt(size);
+			for (int id = 0; id < size; id++) {
+				writeVarInt(out, cellSheets[id]);
+				writeVarInt(out, cellRows[id]);
+				writeVarInt(out, cellColumns[id]);
+			}
+
+			// The lists are stored as differences of the ids
+			out.writeInt(keyIds.size());
+			for (Map.Entry<String, Integer> entry : keyIds.entrySet()) {
+				int k = entry.getValue();
+				out.writeUTF(entry.getKey());
+				writeVarInt(out, lengths[k]);
+				int last = 0;
+				for (int i = 0; i < lengths[k]; i++) {
+					writeVarInt(out, postings[k][i] - last);
+					last = postings[k][i];
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads an index
+	 *
+	 * @param file
+	 * 		The index file
+	 * @return
+	 * 		The index
+	 * @throws IOException
+	 * 		If the file can not be read or is no index
+	 */
+	public static FormulaIndex load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Invalid index " + file);
+
+			FormulaIndex index = new FormulaIndex();
+			int sheets = in.readInt();
+			for (int i = 0; i < sheets; i++) {
+				String name = in.readUTF();
+				index.sheetIds.put(name, i);
+				index.sheetNames.add(name);
+			}
+
+			int n = in.readInt();
+			index.size = n;
+			index.cellSheets = new int[Math.max(n, 1)];
+			index.cellRows = new int[Math.max(n, 1)];
+			index.cellColumns = new int[Math.max(n, 1)];
+			for (int id = 0; id < n; id++) {
+				index.cellSheets[id] = readVarInt(in);
+				index.cellRows[id] = readVarInt(in);
+				index.cellColumns[id] = readVarInt(in);
+			}
+
+			int keys = in.readInt();
+			index.postings = new int[Math.max(keys, 1)][];
+			index.lengths = new int[Math.max(keys, 1)];
+			for (int k = 0; k < keys; k++) {
+				index.keyIds.put(in.readUTF(), k);
+				int length = readVarInt(in);
+				int[] list = new int[Math.max(length, 1)];
+				int last = 0;
+				for (int i = 0; i < length; i++) {
+					last += readVarInt(in);
+					list[i] = last;
+				}
+				index.postings[k] = list;
+				index.lengths[k] = length;
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a positive number with 7 bits per byte
+	 */
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads a positive number with 7 bits per byte
+	 */
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid number in index");
+	}
+
+	/**
+	 * Creates the index of a workbook or searches an index
+	 *
+	 * @param args
+	 * 		The index file, optionally the workbook to index, and the
+	 * 		queries, each after a "-q"
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: FormulaIndex index.bin [workbook.xlsx] [-q query]...");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		int next = 1;
+		FormulaIndex index;
+
+		// Index a workbook while it is converted
+		if (!args[1].equals("-q")) {
+			WorkbookReader reader = new WorkbookReader(new File(args[1]));
+			index = new FormulaIndex();
+			WorkbookConverter converter = new WorkbookConverter();
+			converter.setSymbols(reader.readSymbols());
+			converter.setIndex(index);
+			converter.convert(reader.read());
+			index.save(file);
+			System.err.println(converter.getReport());
+			System.err.println(index.size() + " cells, " + index.getKeyCount() + " keys saved in " + file);
+			next = 2;
+		}
+		else
+			index = FormulaIndex.load(file);
+
+		for (int i = next; i + 1 < args.length; i += 2) {
+			if (!args[i].equals("-q"))
+				continue;
+			long start = System.nanoTime();
+			int[] ids = index.query(args[i + 1]);
+			long time = System.nanoTime() - start;
+
+			System.out.println(String.format("%s: %d cells in %.3f ms", args[i + 1], ids.length, time / 1.0e6));
+			for (int j = 0; j < ids.length && j < 20; j++)
+				System.out.println("\t" + index.getCellName(ids[j]));
+			if (ids.length > 20)
+				System.out.println("\t...");
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+
+/**
+ * Displays many excel formulas with their equations in a table
+ *
+ * The table only paints the visible rows, and the renderer converts
+ * and renders an equation only when its row becomes visible. This is
+ * done on background threads. Until it is ready, a placeholder is
+ * displayed. The rendered equations are kept in a bounded cache.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class FormulaListView extends JScrollPane {
+
+	private static final long serialVersionUID = -1618026377003574235L;
+
+	// Maximum number of cached equations
+	private static final int MAX_CACHED = 500;
+
+	// Height of a row without an equation
+	private static final int ROW_HEIGHT = 24;
+
+	// Maximum height of a row
+	private static final int MAX_ROW_HEIGHT = 200;
+
+	// Marks an equation that could not be rendered
+	private static final BufferedImage FAILED = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+	// The formulas
+	private final List<String> formulas = new ArrayList<String>();
+
+	// The table
+	private final JTable table;
+	private final FormulaTableModel model = new FormulaTableModel();
+
+	// The rendered equations by formula, the least recently used one is removed first.
+	// Only used on the event dispatching thread.
+	private final Map<String, BufferedImage> cache = new LinkedHashMap<String, BufferedImage>(MAX_CACHED, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	// Formulas that are rendered at the moment
+	private final Set<String> pending = new HashSet<String>();
+
+	// The visible rows, read by the background threads
+	private volatile int firstVisible = 0;
+	private volatile int lastVisible = -1;
+
+	// The background threads
+	private final ExecutorService renderer = Executors.newFixedThreadPool(
+			Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FormulaListView renderer");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+
+	/**
+	 * Constructor
+	 */
+	public FormulaListView() {
+		table = new JTable(model);
+		table.setRowHeight(ROW_HEIGHT);
+		table.getColumnModel().getColumn(0).setPreferredWidth(250);
+		table.getColumnModel().getColumn(1).setPreferredWidth(550);
+		table.getColumnModel().getColumn(1).setCellRenderer(new EquationCellRenderer());
+		setViewportView(table);
+
+		// Track the visible rows while scrolling
+		getViewport().addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				int[] rows = getVisibleRows();
+				firstVisible = rows[0];
+				lastVisible = rows[1];
+			}
+		});
+	}
+
+	/**
+	 * Sets the formulas to display
+	 *
+	 * @param newFormulas
+	 * 		The excel formulas
+	 */
+	public void setFormulas(List<String> newFormulas) {
+		formulas.clear();
+		formulas.addAll(newFormulas);
+		model.fireTableDataChanged();
+		table.setRowHeight(ROW_HEIGHT);
+	}
+
+	/**
+	 * Renders a formula in the background
+	 *
+	 * @param formula
+	 * 		The excel formula
+	 * @param row
+	 * 		The row of the formula
+	 */
+	private void requestEquation(final String formula, final int row) {
+		if (!pending.add(formula))
+			return;
+
+		// The renderer is called while painting, so the row is visible now
+		int[] rows = getVisibleRows();
+		firstVisible = rows[0];
+		lastVisible = rows[1];
+
+		renderer.execute(new Runnable() {
+			public void run() {
+
+				// Skip it, if it was scrolled out of view in the meantime
+				if (row < firstVisible || row > lastVisible) {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							pending.remove(formula);
+						}
+					});
+					return;
+				}
+
+				BufferedImage image;
+				try {
+					image = EquationRenderer.renderExcel(formula);
+				} catch (Exception e) {
+					image = FAILED;
+				}
+
+				// Display it
+				final BufferedImage result = image;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						pending.remove(formula);
+						cache.put(formula, result);
+						updateRows(formula, result);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Gets the first and the last visible row
+	 *
+	 * @return
+	 * 		The first and the last row or {0, -1}, if no row is visible
+	 */
+	private int[] getVisibleRows() {
+		Rectangle r = table.getVisibleRect();
+		int first = table.rowAtPoint(r.getLocation());
+		int last = table.rowAtPoint(new java.awt.Point(r.x, r.y + r.height - 1));
+		if (first < 0)
+			return new int[] { 0, -1 };
+		if (last < 0)
+			last = formulas.size() - 1;
+		return new int[] { first, last };
+	}
+
+	/**
+	 * Repaints the visible rows of a formula and adjusts their heights
+	 *
+	 * @param formula
+	 * 		The excel formula
+	 * @param image
+	 * 		The rendered equation
+	 */
+	private void updateRows(String formula, BufferedImage image) {
+		int height = getRowHeight(image);
+		int[] rows = getVisibleRows();
+		for (int row = rows[0]; row <= rows[1]; row++) {
+			if (!formula.equals(formulas.get(row)))
+				continue;
+			if (table.getRowHeight(row) != height)
+				table.setRowHeight(row, height);
+			else
+				table.repaint(table.getCellRect(row, 1, false));
+		}
+	}
+
+	/**
+	 * Gets the height of a row with an equation
+	 *
+	 * @param image
+	 * 		The rendered equation
+	 * @return
+	 * 		The row height in pixel
+	 */
+	private static int getRowHeight(BufferedImage image) {
+		return Math.min(MAX_ROW_HEIGHT, Math.max(ROW_HEIGHT, image.getHeight() + 4));
+	}
+
+	/**
+	 * Adjusts the height of a row later, because it can't be changed
+	 * while the table is painted
+	 *
+	 * @param formula
+	 * 		The excel formula of the row
+	 * @param row
+	 * 		The row
+	 * @param height
+	 * 		The row height in pixel
+	 */
+	private void setRowHeightLater(final String formula, final int row, final int height) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				// The formulas may have changed in the meantime
+				if (row < formulas.size() && formula.equals(formulas.get(row)) && table.getRowHeight(row) != height)
+					table.setRowHeight(row, height);
+			}
+		});
+	}
+
+	/**
+	 * The table model with the formulas and their equations
+	 */
+	private class FormulaTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+
+		public int getRowCount() {
+			return formulas.size();
+		}
+
+		public int getColumnCount() {
+			return 2;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return (column == 0) ? "Excel" : "LaTex";
+		}
+
+		public Object getValueAt(int row, int column) {
+			return formulas.get(row);
+		}
+	}
+
+	/**
+	 * Displays the rendered equation or a placeholder
+	 */
+	private class EquationCellRenderer extends DefaultTableCellRenderer {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+				boolean hasFocus, int row, int column) {
+			super.getTableCellRendererComponent(table, null, isSelected, hasFocus, row, column);
+			setVerticalAlignment(SwingConstants.CENTER);
+
+			String formula = (String) value;
+			BufferedImage image = cache.get(formula);
+
+			if (image == null) {
+				// Placeholder until the equation is rendered
+				setIcon(null);
+				setText("…");
+				requestEquation(formula, row);
+			}
+			else if (image == FAILED) {
+				setIcon(null);
+				setText("?");
+			}
+			else {
+				setIcon(new ImageIcon(image));
+				setText(null);
+			}
+
+			// A row, that is scrolled into view later or that has the
+			// formula of an other row, gets its height from the cache
+			if ((image != null) && (table.getRowHeight(row) != getRowHeight(image)))
+				setRowHeightLater(formula, row, getRowHeight(image));
+			return this;
+		}
+	}
+
+	/**
+	 * Opens a window, where formulas can be pasted, one per line
+	 *
+	 * @param args
+	 * 		Not used
+	 */
+	public static void main(String[] args) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				final JTextArea input = new JTextArea();
+				final FormulaListView view = new FormulaListView();
+				JButton button = new JButton(">>");
+
+				// Display all lines of the text area
+				button.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						List<String> lines = new ArrayList<String>();
+						for (String line : input.getText().split("\n")) {
+							if (line.trim().length() > 0)
+								lines.add(line.trim());
+						}
+						view.setFormulas(lines);
+					}
+				});
+
+				JFrame frame = new JFrame("ExcelFormula");
+				frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+				frame.getContentPane().setLayout(new BorderLayout());
+				frame.getContentPane().add(new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(input), view),
+						BorderLayout.CENTER);
+				frame.getContentPane().add(button, BorderLayout.SOUTH);
+				frame.setSize(850, 650);
+				frame.setVisible(true);
+			}
+		});
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/**
+ * One node of a parsed excel formula
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class FormulaNode {
+
+	// The node types
+	public static final int NUMBER = 0;
+	public static final int TEXT = 1;
+	public static final int NAME = 2;
+	public static final int RANGE = 3;
+	public static final int PAREN = 4;
+	public static final int UNARY = 5;
+	public static final int BINARY = 6;
+	public static final int FUNCTION = 7;
+
+	// No children
+	private static final FormulaNode[] NONE = new FormulaNode[0];
+
+	// The type of the node
+	public final int type;
+
+	// Operator, function name, variable name or the text of the number
+	public final String text;
+
+	// The value of a number
+	public final double value;
+
+	// The operands or parameters
+	public final FormulaNode[] children;
+
+	// Position of the node in the excel formula [start, end)
+	public final int start;
+	public final int end;
+
+	// Id of a defined name in the symbol table or -1
+	public final int symbol;
+
+	/**
+	 * Constructor
+	 *
+	 * @param type
+	 * 		The node type
+	 * @param text
+	 * 		Operator, function name, variable name or number text
+	 * @param value
+	 * 		The value of a number
+	 * @param children
+	 * 		The operands or parameters
+	 * @param start
+	 * 		Start position in the excel formula
+	 * @param end
+	 * 		End position in the excel formula
+	 */
+	public FormulaNode(int type, String text, double value, FormulaNode[] children, int start, int end) {
+		this(type, text, value, children, start, end, -1);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param type
+	 * 		The node type
+	 * @param text
+	 * 		Operator, function name, variable name or number text
+	 * @param value
+	 * 		The value of a number
+	 * @param children
+	 * 		The operands or parameters
+	 * @param start
+	 * 		Start position in the excel formula
+	 * @param end
+	 * 		End position in the excel formula
+	 * @param symbol
+	 * 		Id of the defined name in the symbol table or -1
+	 */
+	public FormulaNode(int type, String text, double value, FormulaNode[] children, int start, int end, int symbol) {
+		this.type = type;
+		this.text = text;
+		this.value = value;
+		this.children = (children == null) ? NONE : children;
+		this.start = start;
+		this.end = end;
+		this.symbol = symbol;
+	}
+
+	/**
+	 * Gets an operand or parameter
+	 *
+	 * @param i
+	 * 		The index
+	 * @return
+	 * 		The child node
+	 */
+	public FormulaNode child(int i) {
+		return children[i];
+	}
+
+	/**
+	 * Removes all brackets around the node
+	 *
+	 * @return
+	 * 		The node without the enclosing brackets
+	 */
+	public FormulaNode unwrap() {
+		FormulaNode node = this;
+		while (node.type == PAREN)
+			node = node.children[0];
+		return node;
+	}
+
+	/**
+	 * Checks, whether this is a function or operator with the given name
+	 *
+	 * @param type
+	 * 		The node type
+	 * @param text
+	 * 		The function name or the operator
+	 * @return
+	 * 		True, if type and name match
+	 */
+	public boolean is(int type, String text) {
+		return (this.type == type) && this.text.equals(text);
+	}
+
+	/**
+	 * Creates the excel notation of the node
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		append(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the excel notation of the node
+	 *
+	 * @param sb
+	 * 		The string builder
+	 */
+	private void append(StringBuilder sb) {
+		switch (type) {
+		case NUMBER:
+		case NAME:
+			sb.append(text);
+			break;
+		case TEXT:
+			sb.append('"').append(text).append('"');
+			break;
+		case RANGE:
+			children[0].append(sb);
+			sb.append(':');
+			children[1].append(sb);
+			break;
+		case PAREN:
+			sb.append('(');
+			children[0].append(sb);
+			sb.append(')');
+			break;
+		case UNARY:
+			sb.append(text);
+			children[0].append(sb);
+			break;
+		case BINARY:
+			children[0].append(sb);
+			sb.append(text);
+			children[1].append(sb);
+			break;
+		case FUNCTION:
+			sb.append(text).append('(');
+			for (int i = 0; i < children.length; i++) {
+				if (i > 0)
+					sb.append(';');
+				children[i].append(sb);
+			}
+			sb.append(')');
+			break;
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses an excel formula into a tree of FormulaNodes
+ *
+ * The precedence of the operators is the one of Excel: negation,
+ * "^", "*" and "/", "+" and "-", "&" and the comparisons. German function
+ * names are translated like in Excel2LaTex.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class FormulaParser {
+
+	// German and English function names
+	private static final String[][] FUNCTION_NAMES = {
+		{ "ADRESSE", "ADDRESS" },
+		{ "INDIREKT", "INDIRECT" },
+		{ "WURZEL", "SQRT" },
+		{ "SUMME", "SUM" },
+		{ "WENN", "IF" },
+		{ "UND", "AND" },
+		{ "ODER", "OR" }
+	};
+
+	// The excel formula
+	private final String s;
+
+	// The defined names or null
+	private final SymbolTable symbols;
+
+	// The actual position
+	private int pos = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param s
+	 * 		The excel formula
+	 * @param symbols
+	 * 		The defined names or null
+	 */
+	private FormulaParser(String s, SymbolTable symbols) {
+		this.s = s;
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Parses an excel formula
+	 *
+	 * @param formula
+	 * 		The excel formula, with or without a leading "="
+	 * @return
+	 * 		The root node
+	 * @throws IllegalArgumentException
+	 * 		If the formula has a syntax error
+	 */
+	public static FormulaNode parse(String formula) {
+		return parse(formula, null);
+	}
+
+	/**
+	 * Parses an excel formula and marks the defined names
+	 *
+	 * @param formula
+	 * 		The excel formula, with or without a leading "="
+	 * @param symbols
+	 * 		The defined names or null
+	 * @return
+	 * 		The root node
+	 * @throws IllegalArgumentException
+	 * 		If the formula has a syntax error
+	 */
+	public static FormulaNode parse(String formula, SymbolTable symbols) {
+		FormulaParser parser = new FormulaParser(formula, symbols);
+
+		// Skip the leading "="
+		parser.skipSpaces();
+		if (parser.peek() == '=') {
+			parser.pos++;
+		}
+
+		FormulaNode node = parser.comparison();
+		parser.skipSpaces();
+		if (parser.pos < formula.length())
+			throw parser.error("Unexpected '" + parser.peek() + "'");
+		return node;
+	}
+
+	/**
+	 * Comparison operators
+	 */
+	private FormulaNode comparison() {
+		FormulaNode left = concatenation();
+		while (true) {
+			skipSpaces();
+			String op = null;
+			if (s.startsWith("<=", pos) || s.startsWith(">=", pos) || s.startsWith("<>", pos))
+				op = s.substring(pos, pos + 2);
+			else if (peek() == '<' || peek() == '>' || peek() == '=')
+				op = s.substring(pos, pos + 1);
+			if (op == null)
+				return left;
+			pos += op.length();
+			left = binary(op, left, concatenation());
+		}
+	}
+
+	/**
+	 * Text concatenation with "&"
+	 */
+	private FormulaNode concatenation() {
+		FormulaNode left = additive();
+		while (skipSpaces() == '&') {
+			pos++;
+			left = binary("&", left, additive());
+		}
+		return left;
+	}
+
+	/**
+	 * Operators "+" and "-"
+	 */
+	private FormulaNode additive() {
+		FormulaNode left = multiplicative();
+		char c;
+		while ((c = skipSpaces()) == '+' || c == '-') {
+			pos++;
+			left = binary(String.valueOf(c), left, multiplicative());
+		}
+		return left;
+	}
+
+	/**
+	 * Operators "*" and "/"
+	 */
+	private FormulaNode multiplicative() {
+		FormulaNode left = power();
+		char c;
+		while ((c = skipSpaces()) == '*' || c == '/') {
+			pos++;
+			left = binary(String.valueOf(c), left, power());
+		}
+		return left;
+	}
+
+	/**
+	 * Operator "^"
+	 */
+	private FormulaNode power() {
+		FormulaNode left = unary();
+		while (skipSpaces() == '^') {
+			pos++;
+			left = binary("^", left, unary());
+		}
+		return left;
+	}
+
+	/**
+	 * Sign operators
+	 */
+	private FormulaNode unary() {
+		char c = skipSpaces();
+		if (c == '-' || c == '+') {
+			int start = pos++;
+			FormulaNode operand = unary();
+			return new FormulaNode(FormulaNode.UNARY, String.valueOf(c), 0, new FormulaNode[] { operand }, start, operand.end);
+		}
+		return primary();
+	}
+
+	/**
+	 * Numbers, texts, brackets, names and functions
+	 */
+	private FormulaNode primary() {
+		char c = skipSpaces();
+		int start = pos;
+
+		// Brackets
+		if (c == '(') {
+			pos++;
+			FormulaNode inner = comparison();
+			expect(')');
+			return new FormulaNode(FormulaNode.PAREN, "()", 0, new FormulaNode[] { inner }, start, pos);
+		}
+
+		// Text
+		if (c == '"') {
+			int end = s.indexOf('"', pos + 1);
+			if (end < 0)
+				throw error("Missing '\"'");
+			pos = end + 1;
+			return new FormulaNode(FormulaNode.TEXT, s.substring(start + 1, end), 0, null, start, pos);
+		}
+
+		// Numbers
+		if (Character.isDigit(c) || (c == '.' && pos + 1 < s.length() && Character.isDigit(s.charAt(pos + 1))))
+			return number();
+
+		// Names and functions
+		if (isNameStart(c)) {
+			while (pos < s.length() && isNamePart(s.charAt(pos)))
+				pos++;
+			String name = s.substring(start, pos);
+
+			// Function with parameters
+			if (peek() == '(')
+				return function(translate(name.toUpperCase()), start);
+
+			// Range like A1:C6
+			FormulaNode node = name(name, start, pos);
+			if (peek() == ':') {
+				pos++;
+				int start2 = pos;
+				while (pos < s.length() && isNamePart(s.charAt(pos)))
+					pos++;
+				if (start2 == pos)
+					throw error("Missing end of range");
+				FormulaNode last = name(s.substring(start2, pos), start2, pos);
+				node = new FormulaNode(FormulaNode.RANGE, ":", 0, new FormulaNode[] { node, last }, start, pos);
+			}
+			return node;
+		}
+
+		if (pos >= s.length())
+			throw error("Unexpected end of formula");
+		throw error("Unexpected '" + c + "'");
+	}
+
+	/**
+	 * Parses the parameters of a function
+	 *
+	 * @param name
+	 * 		The function name
+	 * @param start
+	 * 		Start of the function name
+	 */
+	private FormulaNode function(String name, int start) {
+		List<FormulaNode> params = new ArrayList<FormulaNode>();
+
+		// Skip the "("
+		pos++;
+		if (skipSpaces() != ')') {
+			while (true) {
+				params.add(comparison());
+				char c = skipSpaces();
+				if (c == ';' || c == ',') {
+					pos++;
+					continue;
+				}
+				break;
+			}
+		}
+		expect(')');
+		return new FormulaNode(FormulaNode.FUNCTION, name, 0, params.toArray(new FormulaNode[params.size()]), start, pos);
+	}
+
+	/**
+	 * Parses a number. A "," is used as decimal separator, too.
+	 */
+	private FormulaNode number() {
+		int start = pos;
+		StringBuilder sb = new StringBuilder();
+
+		while (pos < s.length()) {
+			char c = s.charAt(pos);
+			if (Character.isDigit(c)) {
+				sb.append(c);
+			}
+			else if ((c == '.' || c == ',') && pos + 1 < s.length() && Character.isDigit(s.charAt(pos + 1))
+					&& sb.indexOf(".") < 0 && sb.indexOf("E") < 0) {
+				sb.append('.');
+			}
+			else if ((c == 'E' || c == 'e') && sb.indexOf("E") < 0 && pos + 1 < s.length()
+					&& (Character.isDigit(s.charAt(pos + 1))
+						|| ((s.charAt(pos + 1) == '+' || s.charAt(pos + 1) == '-')
+							&& pos + 2 < s.length() && Character.isDigit(s.charAt(pos + 2))))) {
+				sb.append('E').append(s.charAt(++pos));
+			}
+			else
+				break;
+			pos++;
+		}
+		return new FormulaNode(FormulaNode.NUMBER, s.substring(start, pos), Double.parseDouble(sb.toString()), null, start, pos);
+	}
+
+	/**
+	 * Creates a node with a name and looks it up in the defined names
+	 */
+	private FormulaNode name(String name, int start, int end) {
+		int symbol = (symbols == null) ? -1 : symbols.lookup(name);
+		return new FormulaNode(FormulaNode.NAME, name, 0, null, start, end, symbol);
+	}
+
+	/**
+	 * Creates a node with a binary operator
+	 */
+	private FormulaNode binary(String op, FormulaNode left, FormulaNode right) {
+		return new FormulaNode(FormulaNode.BINARY, op, 0, new FormulaNode[] { left, right }, left.start, right.end);
+	}
+
+	/**
+	 * Translates German function names
+	 */
+	static String translate(String name) {
+		for (String[] names : FUNCTION_NAMES) {
+			if (names[0].equals(name))
+				return names[1];
+		}
+		return name;
+	}
+
+	/**
+	 * Checks, whether a character can start a name
+	 */
+	static boolean isNameStart(char c) {
+		return Character.isLetter(c) || c == '_' || c == '$';
+	}
+
+	/**
+	 * Checks, whether a character can be part of a name
+	 */
+	static boolean isNamePart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.' || c == '!';
+	}
+
+	/**
+	 * Skips all spaces
+	 *
+	 * @return
+	 * 		The next character
+	 */
+	private char skipSpaces() {
+		while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+			pos++;
+		return peek();
+	}
+
+	/**
+	 * Gets the next character
+	 *
+	 * @return
+	 * 		The next character or 0 at the end of the formula
+	 */
+	private char peek() {
+		return (pos < s.length()) ? s.charAt(pos) : 0;
+	}
+
+	/**
+	 * Skips an expected character
+	 */
+	private void expect(char c) {
+		if (skipSpaces() != c)
+			throw error("Missing '" + c + "'");
+		pos++;
+	}
+
+	/**
+	 * Creates an exception with the actual position
+	 */
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + (pos + 1) + " of \"" + s + "\"");
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Exports large workbooks in decoupled stages:
+ * formula source, conversion, rendering and output sink.
+ *
+ * Every stage has its own threads and a bounded input queue. A slow
+ * renderer or sink fills the queues and throttles the extraction,
+ * instead of buffering all formulas in memory.
+ *
+ * A pipeline can be run only once.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class FormulaPipeline {
+
+	// The stages
+	private final PipelineStage<FormulaCell, FormulaCell> convertStage;
+	private final PipelineStage<FormulaCell, Rendered> renderStage;
+	private final PipelineStage<Rendered, Void> sinkStage;
+
+	// The defined names of the workbook or null
+	private volatile SymbolTable symbols = null;
+
+	// True, if the pipeline was already run
+	private boolean started = false;
+
+	/**
+	 * A rendered equation that is passed to the sink
+	 */
+	private static class Rendered {
+		final FormulaCell cell;
+		final BufferedImage image;
+
+		Rendered(FormulaCell cell, BufferedImage image) {
+			this.cell = cell;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param sink
+	 * 		The output sink
+	 * @param convertThreads
+	 * 		Number of threads that convert the formulas
+	 * @param renderThreads
+	 * 		Number of threads that render the equations
+	 * @param sinkThreads
+	 * 		Number of threads that write to the sink
+	 * @param bufferSize
+	 * 		Size of the queue in front of every stage
+	 */
+	public FormulaPipeline(final FormulaSink sink, int convertThreads, int renderThreads,
+			int sinkThreads, int bufferSize) {
+
+		// Convert the excel formula to LaTex
+		convertStage = new PipelineStage<FormulaCell, FormulaCell>("convert", convertThreads, bufferSize) {
+			@Override
+			protected FormulaCell process(FormulaCell cell) {
+				cell.setLatex(WorkbookConverter.convert(cell.getFormula(), symbols));
+				return cell;
+			}
+		};
+
+		// Render the LaTex formula
+		renderStage = new PipelineStage<FormulaCell, Rendered>("render", renderThreads, bufferSize) {
+			@Override
+			protected Rendered process(FormulaCell cell) {
+				return new Rendered(cell, EquationRenderer.render(cell.getLatex()));
+			}
+		};
+
+		// Write the image
+		sinkStage = new PipelineStage<Rendered, Void>("sink", sinkThreads, bufferSize) {
+			@Override
+			protected Void process(Rendered rendered) throws Exception {
+				sink.write(rendered.cell, rendered.image);
+				return null;
+			}
+		};
+
+		convertStage.connect(renderStage).connect(sinkStage);
+	}
+
+	/**
+	 * Sets the defined names of the workbook. Names with a display
+	 * formula are displayed with it.
+	 *
+	 * @param symbols
+	 * 		The defined names or null
+	 */
+	public void setSymbols(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Passes all cells through the pipeline and waits until the sink has
+	 * written the last one. The source is read by the calling thread, and
+	 * it waits as long as the first queue is full.
+	 *
+	 * @param source
+	 * 		The formula cells
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted while waiting
+	 * @throws IllegalStateException
+	 * 		If the pipeline was already run, or if a stage has no
+	 * 		workers left
+	 */
+	public void run(Iterator<FormulaCell> source) throws InterruptedException {
+		start();
+
+		try {
+			while (source.hasNext())
+				convertStage.put(source.next());
+		} finally {
+			convertStage.close();
+		}
+
+		sinkStage.await();
+	}
+
+
+	/**
+	 * Reads a workbook and passes all formula cells through the pipeline.
+	 * The workbook is read while the cells are processed, and reading
+	 * waits as long as the first queue is full.
+	 *
+	 * @param reader
+	 * 		The workbook
+	 * @throws IOException
+	 * 		If the workbook can not be read
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted while waiting
+	 * @throws IllegalStateException
+	 * 		If the pipeline was already run, or if a stage has no
+	 * 		workers left
+	 */
+	public void run(WorkbookReader reader) throws IOException, InterruptedException {
+		start();
+
+		try {
+			reader.read(new WorkbookReader.Listener() {
+				public void cell(FormulaCell cell) throws InterruptedException {
+					convertStage.put(cell);
+				}
+			});
+		} finally {
+			convertStage.close();
+		}
+
+		sinkStage.await();
+	}
+
+	/**
+	 * Starts all stages, the last one first
+	 */
+	private synchronized void start() {
+		if (started)
+			throw new IllegalStateException("The pipeline was already run");
+		started = true;
+		sinkStage.start();
+		renderStage.start();
+		convertStage.start();
+	}
+
+	/**
+	 * Gets the metrics of all stages
+	 *
+	 * @return
+	 * 		One line per stage with threads, queue depth and counters
+	 */
+	public String getMetrics() {
+		return convertStage + "\n" + renderStage + "\n" + sinkStage;
+	}
+
+	public PipelineStage<?, ?> getConvertStage() {
+		return convertStage;
+	}
+
+	public PipelineStage<?, ?> getRenderStage() {
+		return renderStage;
+	}
+
+	public PipelineStage<?, ?> getSinkStage() {
+		return sinkStage;
+	}
+
+	/**
+	 * Gets the file name of the image of a cell
+	 *
+	 * @param sheetName
+	 * 		Name of the sheet
+	 * @param cellName
+	 * 		Name of the cell like "B3"
+	 * @return
+	 * 		The file name
+	 */
+	static String imageName(String sheetName, String cellName) {
+		return sheetName.replaceAll("[^A-Za-z0-9_-]", "_") + "_" + cellName + ".png";
+	}
+
+	/**
+	 * Exports all equations of a workbook as PNG files
+	 *
+	 * @param args
+	 * 		The workbook file, the output folder and optionally the number
+	 * 		of convert, render and sink threads and the buffer size
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: FormulaPipeline workbook.xlsx folder [convert render sink buffer]");
+			System.exit(1);
+		}
+
+		final File folder = new File(args[1]);
+		folder.mkdirs();
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int convertThreads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		int renderThreads = args.length > 3 ? Integer.parseInt(args[3]) : cpus;
+		int sinkThreads = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		int bufferSize = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+
+		// Write one PNG per cell
+		FormulaSink sink = new FormulaSink() {
+			public void write(FormulaCell cell, BufferedImage image) throws IOException {
+				ImageIO.write(image, "png", new File(folder, imageName(cell.getSheetName(), cell.getCellName())));
+			}
+		};
+
+		FormulaPipeline pipeline = new FormulaPipeline(sink, convertThreads, renderThreads, sinkThreads, bufferSize);
+		WorkbookReader reader = new WorkbookReader(new File(args[0]));
+		pipeline.setSymbols(reader.readSymbols());
+		pipeline.run(reader);
+		System.err.println(pipeline.getMetrics());
+	}
+}
@@ -0,0 +1,419 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies a parsed excel formula before it is displayed
+ *
+ * Brackets that are not necessary because of the operator precedence
+ * are removed, constant parts with an exact result are calculated and
+ * products are normalized: the factors are flattened, the numbers are
+ * multiplied and moved to the front and factors of 1 are removed.
+ * The simplified formula has the same value, and it is smaller, so
+ * it is laid out faster.
+ *
+ * The statistics are summed up over all simplified formulas. One
+ * simplifier must only be used by one thread.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class FormulaSimplifier {
+
+	// Largest integer, that is exact as double
+	private static final long MAX_EXACT = 1L << 53;
+
+	// Statistics
+	private int formulas = 0;
+	private int removedBrackets = 0;
+	private int foldedConstants = 0;
+	private int normalizedProducts = 0;
+	private long nodesBefore = 0;
+	private long nodesAfter = 0;
+
+	/**
+	 * Simplifies a formula
+	 *
+	 * @param node
+	 * 		The root node of the parsed excel formula
+	 * @return
+	 * 		The root node of the simplified formula
+	 */
+	public FormulaNode simplify(FormulaNode node) {
+		formulas++;
+		nodesBefore += count(node);
+		FormulaNode result = simplify(node, null, 0);
+		nodesAfter += count(result);
+		return result;
+	}
+
+	/**
+	 * Simplifies a node
+	 *
+	 * @param node
+	 * 		The node
+	 * @param parent
+	 * 		The parent node or null, if the node is displayed without
+	 * 		brackets anyway, e.g. as parameter or in a fraction
+	 * @param position
+	 * 		The position of the node in its parent
+	 * @return
+	 * 		The simplified node
+	 */
+	private FormulaNode simplify(FormulaNode node, FormulaNode parent, int position) {
+
+		// Brackets
+		if (node.type == FormulaNode.PAREN) {
+			FormulaNode inner = simplify(node.child(0), null, 0);
+			if (!needsBrackets(inner, parent, position)) {
+				removedBrackets++;
+				return inner;
+			}
+			return copy(node, new FormulaNode[] { inner });
+		}
+
+		if (node.children.length == 0)
+			return node;
+
+		// Simplify the children
+		FormulaNode[] children = new FormulaNode[node.children.length];
+		for (int i = 0; i < children.length; i++)
+			children[i] = simplify(node.child(i), isDisplayedWithoutBrackets(node, i) ? null : node, i);
+
+		if (node.type == FormulaNode.BINARY) {
+			if (node.text.equals("*"))
+				return product(node, children);
+
+			FormulaNode folded = fold(node, node.text, children[0], children[1]);
+			if (folded != null)
+				return folded;
+		}
+
+		return copy(node, children);
+	}
+
+	/**
+	 * Checks, whether a node needs brackets in its parent
+	 *
+	 * @param inner
+	 * 		The node in the brackets
+	 * @param parent
+	 * 		The parent node or null
+	 * @param position
+	 * 		The position of the node in its parent
+	 * @return
+	 * 		True, if the brackets are necessary
+	 */
+	private static boolean needsBrackets(FormulaNode inner, FormulaNode parent, int position) {
+		if (parent == null || precedence(inner) == Integer.MAX_VALUE)
+			return false;
+
+		// Only simple operands don't need brackets after a sign,
+		// and a sign is always written in brackets
+		if (parent.type == FormulaNode.UNARY || inner.type == FormulaNode.UNARY)
+			return true;
+		if (parent.type != FormulaNode.BINARY)
+			return false;
+
+		// The base of a power
+		if (parent.text.equals("^"))
+			return true;
+
+		int p = precedence(parent);
+		if (position == 0)
+			return precedence(inner) < p;
+		if (precedence(inner) > p)
+			return false;
+		return !(precedence(inner) == p && (parent.text.equals("+") || parent.text.equals("*")));
+	}
+
+	/**
+	 * Checks, whether a child is displayed without brackets,
+	 * so that its own brackets are not necessary
+	 */
+	private static boolean isDisplayedWithoutBrackets(FormulaNode node, int position) {
+		if (node.type == FormulaNode.FUNCTION)
+			return true;
+		if (node.type != FormulaNode.BINARY)
+			return false;
+
+		// Fraction and exponent
+		return node.text.equals("/") || (node.text.equals("^") && position == 1);
+	}
+
+	/**
+	 * Gets the precedence of a node
+	 *
+	 * @param node
+	 * 		The node
+	 * @return
+	 * 		The precedence from 1 (comparison) to 6 (sign), or
+	 * 		Integer.MAX_VALUE for numbers, names and functions
+	 */
+	private static int precedence(FormulaNode node) {
+		if (node.type == FormulaNode.UNARY)
+			return 6;
+		if (node.type != FormulaNode.BINARY)
+			return Integer.MAX_VALUE;
+
+		String op = node.text;
+		if (op.equals("^"))
+			return 5;
+		if (op.equals("*") || op.equals("/"))
+			return 4;
+		if (op.equals("+") || op.equals("-"))
+			return 3;
+		if (op.equals("&"))
+			return 2;
+		return 1;
+	}
+
+	/**
+	 * Normalizes a product
+	 *
+	 * @param node
+	 * 		The "*" node
+	 * @param children
+	 * 		Its simplified operands
+	 * @return
+	 * 		The normalized product
+	 */
+	private FormulaNode product(FormulaNode node, FormulaNode[] children) {
+
+		// Collect all factors of nested products
+		List<FormulaNode> factors = new ArrayList<FormulaNode>();
+		collectFactors(children[0], factors);
+		collectFactors(children[1], factors);
+
+		// Multiply all numbers, as long as the result is exact
+		FormulaNode coefficient = null;
+		List<FormulaNode> others = new ArrayList<FormulaNode>();
+		for (FormulaNode factor : factors) {
+			if (factor.type == FormulaNode.NUMBER && coefficient == null) {
+				coefficient = factor;
+				continue;
+			}
+			FormulaNode folded = (factor.type == FormulaNode.NUMBER) ? fold(node, "*", coefficient, factor) : null;
+			if (folded != null && folded.type == FormulaNode.NUMBER)
+				coefficient = folded;
+			else
+				others.add(factor);
+		}
+
+		// Factors of 1 are not necessary
+		if (coefficient != null && coefficient.value == 1.0 && !others.isEmpty())
+			coefficient = null;
+
+		// The number is the first factor
+		List<FormulaNode> ordered = new ArrayList<FormulaNode>();
+		if (coefficient != null)
+			ordered.add(coefficient);
+		ordered.addAll(others);
+
+		FormulaNode result = ordered.get(0);
+		for (int i = 1; i < ordered.size(); i++)
+			result = new FormulaNode(FormulaNode.BINARY, "*", 0, new FormulaNode[] { result, ordered.get(i) },
+					result.start, ordered.get(i).end);
+
+		if (factors.size() != ordered.size() || !sameOrder(factors, ordered))
+			normalizedProducts++;
+
+		// Use the position of the whole product
+		if (ordered.size() > 1)
+			result = copy(node, result.children);
+		return result;
+	}
+
+	/**
+	 * Collects the factors of a product
+	 */
+	private static void collectFactors(FormulaNode node, List<FormulaNode> factors) {
+		if (node.is(FormulaNode.BINARY, "*")) {
+			collectFactors(node.child(0), factors);
+			collectFactors(node.child(1), factors);
+		}
+		else
+			factors.add(node);
+	}
+
+	/**
+	 * Checks, whether two lists have the same elements in the same order
+	 */
+	private static boolean sameOrder(List<FormulaNode> a, List<FormulaNode> b) {
+		for (int i = 0; i < a.size(); i++) {
+			if (a.get(i) != b.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Calculates an operation with two integer numbers
+	 *
+	 * @param node
+	 * 		The node with the position in the excel formula
+	 * @param op
+	 * 		The operator
+	 * @param left
+	 * 		The left operand
+	 * @param right
+	 * 		The right operand
+	 * @return
+	 * 		The result or null, if the operands are no integer
+	 * 		numbers or the result is not exact
+	 */
+	private FormulaNode fold(FormulaNode node, String op, FormulaNode left, FormulaNode right) {
+		if (!isInteger(left) || !isInteger(right))
+			return null;
+
+		long a = (long) left.value;
+		long b = (long) right.value;
+		long r;
+
+		if (op.equals("+"))
+			r = a + b;
+		else if (op.equals("-"))
+			r = a - b;
+		else if (op.equals("*")) {
+			if (a != 0 && Math.abs(b) > MAX_EXACT / Math.abs(a))
+				return null;
+			r = a * b;
+		}
+		else if (op.equals("/")) {
+			if (b == 0 || a % b != 0)
+				return null;
+			r = a / b;
+		}
+		else if (op.equals("^")) {
+			// Excel returns #NUM! for 0^0
+			if (b < 0 || b > 62 || (a == 0 && b == 0))
+				return null;
+			r = 1;
+			for (int i = 0; i < b; i++) {
+				if (a != 0 && Math.abs(r) > MAX_EXACT / Math.abs(a))
+					return null;
+				r *= a;
+			}
+		}
+		else
+			return null;
+
+		if (Math.abs(r) > MAX_EXACT)
+			return null;
+
+		foldedConstants++;
+		FormulaNode number = new FormulaNode(FormulaNode.NUMBER, Long.toString(Math.abs(r)), Math.abs(r), null,
+				node.start, node.end);
+		if (r < 0)
+			return new FormulaNode(FormulaNode.UNARY, "-", 0, new FormulaNode[] { number }, node.start, node.end);
+		return number;
+	}
+
+	/**
+	 * Checks, whether a node is an integer number
+	 */
+	private static boolean isInteger(FormulaNode node) {
+		return node != null && node.type == FormulaNode.NUMBER && node.value == Math.rint(node.value)
+				&& Math.abs(node.value) <= MAX_EXACT;
+	}
+
+	/**
+	 * Copies a node with new children
+	 */
+	private static FormulaNode copy(FormulaNode node, FormulaNode[] children) {
+		return new FormulaNode(node.type, node.text, node.value, children, node.start, node.end);
+	}
+
+	/**
+	 * Counts the nodes of a formula
+	 *
+	 * @param node
+	 * 		The root node
+	 * @return
+	 * 		The number of nodes
+	 */
+	public static int count(FormulaNode node) {
+		int n = 1;
+		for (FormulaNode child : node.children)
+			n += count(child);
+		return n;
+	}
+
+	/**
+	 * Gets the number of removed nodes in percent
+	 *
+	 * @return
+	 * 		The size reduction in percent
+	 */
+	public double getReduction() {
+		return (nodesBefore == 0) ? 0.0 : (nodesBefore - nodesAfter) * 100.0 / nodesBefore;
+	}
+
+	/**
+	 * Gets the statistics of all simplified formulas
+	 *
+	 * @return
+	 * 		The statistics as one line
+	 */
+	public String getReport() {
+		return String.format("%d formulas: %d nodes reduced to %d (%.1f%%), %d brackets removed, "
+				+ "%d constants folded, %d products normalized",
+				formulas, nodesBefore, nodesAfter, getReduction(), removedBrackets, foldedConstants, normalizedProducts);
+	}
+
+	/**
+	 * Simplifies formulas from the standard input, one per line,
+	 * and prints the LaTex formulas before and after
+	 *
+	 * @param args
+	 * 		Not used
+	 */
+	public static void main(String[] args) throws IOException {
+		FormulaSimplifier simplifier = new FormulaSimplifier();
+		long latexBefore = 0;
+		long latexAfter = 0;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().length() == 0)
+				continue;
+			try {
+				boolean equalsSign = EquationRenderer.hasEqualsSign(line);
+				FormulaNode node = FormulaParser.parse(line);
+				String before = LaTeXWriter.write(node, equalsSign);
+				String after = LaTeXWriter.write(simplifier.simplify(node), equalsSign);
+				latexBefore += before.length();
+				latexAfter += after.length();
+				System.out.println(line + "\t" + before + "\t" + after);
+			} catch (IllegalArgumentException e) {
+				System.out.println(line + "\t" + e.getMessage());
+			}
+		}
+
+		System.err.println(simplifier.getReport());
+		System.err.println(String.format("LaTex: %d characters reduced to %d", latexBefore, latexAfter));
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives the rendered equations at the end of the FormulaPipeline
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public interface FormulaSink {
+
+	/**
+	 * Writes one rendered equation
+	 *
+	 * @param cell
+	 * 		The cell with the excel and the LaTex formula
+	 * @param image
+	 * 		The rendered equation
+	 * @throws Exception
+	 * 		If the equation can not be written
+	 */
+	void write(FormulaCell cell, BufferedImage image) throws Exception;
+}
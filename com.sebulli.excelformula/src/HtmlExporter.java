@@ -0,0 +1,536 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.scilab.forge.jlatexmath.TeXIcon;
+
+/**
+ * Exports all equations of a workbook as static HTML pages, one page
+ * per sheet, and an index page.
+ *
+ * Every equation is a PNG image, that is embedded into the page. The
+ * atoms are built from the parsed formula like for the display. Identical
+ * formulas of a page share one image: it is embedded into an SVG symbol
+ * where the formula is used first, and later only this symbol is used.
+ * The equations are rendered by several threads, but the rows are
+ * written in the order of the workbook as soon as they are ready.
+ *
+ * The memory does not depend on the size of the workbook: At most a
+ * window of rows waits for its rendering, and only a limited number of
+ * rendered equations is kept for the identical ones.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class HtmlExporter {
+
+	// Number of rows, that may wait for their rendering
+	public static final int DEFAULT_WINDOW = 256;
+
+	// Number of rendered equations, that are kept to share them
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	// The characters of the base64 encoding
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	// The output folder
+	private final File folder;
+
+	// Number of render threads
+	private final int threads;
+
+	// Maximum number of waiting rows and kept equations
+	private final int window;
+	private final int cacheSize;
+
+	// The defined names of the workbook or null
+	private SymbolTable symbols = null;
+
+	// Statistics of the last run
+	private int cells = 0;
+	private int rendered = 0;
+	private int shared = 0;
+	private int failures = 0;
+
+	/**
+	 * One rendered equation as PNG image
+	 */
+	private static class Rendering {
+		final String png;
+		final int width;
+		final int height;
+		final int depth;
+
+		Rendering(String png, int width, int height, int depth) {
+			this.png = png;
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * One row, that waits to be written
+	 */
+	private static class Row {
+		final FormulaCell cell;
+		final Future<Rendering> rendering;
+
+		Row(FormulaCell cell, Future<Rendering> rendering) {
+			this.cell = cell;
+			this.rendering = rendering;
+		}
+	}
+
+	/**
+	 * Passes an IOException through the listener of the WorkbookReader
+	 */
+	private static class WriteException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		WriteException(IOException e) {
+			super(e);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * Uses one render thread per processor
+	 *
+	 * @param folder
+	 * 		The output folder
+	 */
+	public HtmlExporter(File folder) {
+		this(folder, Runtime.getRuntime().availableProcessors(), DEFAULT_WINDOW, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param folder
+	 * 		The output folder
+	 * @param threads
+	 * 		Number of render threads
+	 * @param window
+	 * 		Number of rows, that may wait for their rendering
+	 * @param cacheSize
+	 * 		Number of rendered equations, that are kept to share them
+	 */
+	public HtmlExporter(File folder, int threads, int window, int cacheSize) {
+		this.folder = folder;
+		this.threads = Math.max(1, threads);
+		this.window = Math.max(1, window);
+		this.cacheSize = Math.max(1, cacheSize);
+	}
+
+	/**
+	 * Sets the defined names of the workbook. Names with a display
+	 * formula are displayed with it.
+	 *
+	 * @param symbols
+	 * 		The defined names or null
+	 */
+	public void setSymbols(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Reads a workbook and writes one HTML page per sheet. The workbook
+	 * is read while the pages are written.
+	 *
+	 * @param reader
+	 * 		The workbook
+	 * @throws IOException
+	 * 		If the workbook can not be read or a page can not be written
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted while waiting
+	 */
+	public void export(WorkbookReader reader) throws IOException, InterruptedException {
+		cells = 0;
+		rendered = 0;
+		shared = 0;
+		failures = 0;
+		folder.mkdirs();
+
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Export export = new Export(pool);
+		try {
+			reader.read(new WorkbookReader.Listener() {
+				public void cell(FormulaCell cell) throws InterruptedException {
+					try {
+						export.add(cell);
+					} catch (IOException e) {
+						throw new WriteException(e);
+					}
+				}
+			});
+			export.finish();
+		} catch (WriteException e) {
+			throw (IOException) e.getCause();
+		} finally {
+			export.close();
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The state of one export
+	 */
+	private class Export {
+		private final ExecutorService pool;
+
+		// The rows in the order of the workbook, that wait for their rendering
+		private final ArrayDeque<Row> rows = new ArrayDeque<Row>();
+
+		// The latest renderings by excel formula
+		private final Map<String, Future<Rendering>> renderings;
+
+		// The symbol ids of the actual page by excel formula
+		private final Map<String, String> ids;
+
+		// The actual page and the index page
+		private int sheet = -1;
+		private Writer page = null;
+		private Writer index = null;
+		private int nextId = 0;
+		private int pageCells = 0;
+		private String pageName = null;
+		private String pageFile = null;
+
+		Export(ExecutorService pool) {
+			this.pool = pool;
+			this.renderings = lruMap(cacheSize);
+			this.ids = lruMap(cacheSize);
+		}
+
+		/**
+		 * Starts the rendering of a cell. If the window is full, the
+		 * first rows are written.
+		 */
+		void add(FormulaCell cell) throws IOException, InterruptedException {
+			cells++;
+
+			// Start a new page
+			if (cell.getSheet() != sheet) {
+				finishPage();
+				startPage(cell);
+			}
+
+			// Formulas, that are already rendered or being rendered, are
+			// not rendered again.
+			final String formula = cell.getFormula();
+			Future<Rendering> rendering = renderings.get(formula);
+			if (rendering == null) {
+				rendering = pool.submit(new Callable<Rendering>() {
+					public Rendering call() throws IOException {
+						return render(formula, symbols);
+					}
+				});
+				renderings.put(formula, rendering);
+				rendered++;
+			}
+
+			rows.add(new Row(cell, rendering));
+			while (rows.size() > window)
+				writeRow(rows.poll());
+		}
+
+		/**
+		 * Writes the remaining rows and closes all pages
+		 */
+		void finish() throws IOException, InterruptedException {
+			finishPage();
+			if (index != null) {
+				index.write("</ul>\n</body>\n</html>\n");
+				index.close();
+				index = null;
+			}
+		}
+
+		/**
+		 * Closes the files after an error
+		 */
+		void close() throws IOException {
+			if (page != null)
+				page.close();
+			if (index != null)
+				index.close();
+		}
+
+		/**
+		 * Writes the head of a new page
+		 */
+		private void startPage(FormulaCell cell) throws IOException {
+			if (index == null) {
+				index = open("index.html");
+				writeHead(index, "Workbook");
+				index.write("<h1>Workbook</h1>\n<ul>\n");
+			}
+
+			sheet = cell.getSheet();
+			pageName = cell.getSheetName();
+			pageFile = (sheet + 1) + "_" + pageName.replaceAll("[^A-Za-z0-9_-]", "_") + ".html";
+			pageCells = 0;
+			ids.clear();
+
+			page = open(pageFile);
+			writeHead(page, pageName);
+			page.write("<h1>");
+			page.write(escape(pageName));
+			page.write("</h1>\n<table>\n<tr><th>Cell</th><th>Formula</th><th>Equation</th><th>Value</th></tr>\n");
+		}
+
+		/**
+		 * Writes the waiting rows and the end of the actual page
+		 */
+		private void finishPage() throws IOException, InterruptedException {
+			while (!rows.isEmpty())
+				writeRow(rows.poll());
+			if (page == null)
+				return;
+
+			page.write("</table>\n</body>\n</html>\n");
+			page.close();
+			page = null;
+
+			index.write("<li><a href=\"" + escape(pageFile) + "\">" + escape(pageName) + "</a> (" + pageCells
+					+ " formulas)</li>\n");
+		}
+
+		/**
+		 * Waits for the rendering of a row and writes it
+		 */
+		private void writeRow(Row row) throws IOException, InterruptedException {
+			FormulaCell cell = row.cell;
+			pageCells++;
+
+			page.write("<tr><td>");
+			page.write(cell.getCellName());
+			page.write("</td><td><code>");
+			page.write(escape(cell.getFormula()));
+			page.write("</code></td><td>");
+
+			Rendering rendering = null;
+			try {
+				rendering = row.rendering.get();
+			} catch (ExecutionException e) {
+				// The equation is displayed as text
+			}
+
+			if (rendering != null)
+				writeEquation(cell.getFormula(), rendering);
+			else {
+				failures++;
+				page.write("<code>");
+				page.write(escape(cell.getFormula()));
+				page.write("</code>");
+			}
+
+			page.write("</td><td>");
+			if (cell.getValue() != null)
+				page.write(escape(cell.getValue()));
+			page.write("</td></tr>\n");
+		}
+
+		/**
+		 * Writes an equation as embedded PNG image. The image is written
+		 * only the first time, later it is referenced by the symbol id.
+		 */
+		private void writeEquation(String formula, Rendering rendering) throws IOException {
+			String id = ids.get(formula);
+			boolean first = (id == null);
+			if (first) {
+				id = "f" + (nextId++);
+				ids.put(formula, id);
+			}
+			else
+				shared++;
+
+			page.write("<svg width=\"" + rendering.width + "\" height=\"" + rendering.height + "\" style=\"vertical-align:-"
+					+ rendering.depth + "px\"><title>");
+			page.write(escape(formula));
+			page.write("</title>");
+			if (first) {
+				page.write("<symbol id=\"" + id + "\" viewBox=\"0 0 " + rendering.width + " " + rendering.height
+						+ "\"><image width=\"" + rendering.width + "\" height=\"" + rendering.height
+						+ "\" href=\"data:image/png;base64,");
+				page.write(rendering.png);
+				page.write("\"/></symbol>");
+			}
+			page.write("<use href=\"#" + id + "\"/></svg>");
+		}
+	}
+
+	/**
+	 * Renders an excel formula to a PNG image
+	 */
+	private static Rendering render(String formula, SymbolTable symbols) throws IOException {
+		TeXIcon icon = EquationRenderer.createExcelIcon(formula, symbols);
+		BufferedImage image = EquationRenderer.paint(icon);
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", png);
+		return new Rendering(base64(png.toByteArray()), image.getWidth(), image.getHeight(), icon.getIconDepth());
+	}
+
+	/**
+	 * Creates a map, that removes the least recently used entry, if it
+	 * has more than the maximum number of entries
+	 */
+	private static <V> Map<String, V> lruMap(final int maximum) {
+		return new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > maximum;
+			}
+		};
+	}
+
+	/**
+	 * Opens a file of the output folder
+	 */
+	private Writer open(String name) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(folder, name)), "UTF-8"));
+	}
+
+	/**
+	 * Writes the head of a HTML page
+	 */
+	private static void writeHead(Writer w, String title) throws IOException {
+		w.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>");
+		w.write(escape(title));
+		w.write("</title>\n<style>\n"
+				+ "table { border-collapse: collapse; }\n"
+				+ "td, th { border: 1px solid #ccc; padding: 4px 8px; text-align: left; }\n"
+				+ "</style>\n</head>\n<body>\n");
+	}
+
+	/**
+	 * Escapes the special characters of HTML
+	 *
+	 * @param s
+	 * 		The text
+	 * @return
+	 * 		The escaped text
+	 */
+	static String escape(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 16);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Encodes bytes with base64
+	 *
+	 * @param data
+	 * 		The bytes
+	 * @return
+	 * 		The base64 text
+	 */
+	static String base64(byte[] data) {
+		StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+		for (int i = 0; i < data.length; i += 3) {
+			int n = data.length - i;
+			int b = (data[i] & 0xff) << 16;
+			if (n > 1)
+				b |= (data[i + 1] & 0xff) << 8;
+			if (n > 2)
+				b |= data[i + 2] & 0xff;
+
+			sb.append(BASE64[(b >> 18) & 0x3f]);
+			sb.append(BASE64[(b >> 12) & 0x3f]);
+			sb.append(n > 1 ? BASE64[(b >> 6) & 0x3f] : '=');
+			sb.append(n > 2 ? BASE64[b & 0x3f] : '=');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gets a short report of the last run
+	 *
+	 * @return
+	 * 		The report
+	 */
+	public String getReport() {
+		return String.format("%d formulas, %d rendered, %d shared, %d failed", cells, rendered, shared, failures);
+	}
+
+	/**
+	 * Exports a workbook from the command line
+	 *
+	 * @param args
+	 * 		The workbook file, the output folder and optionally the number
+	 * 		of render threads
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: HtmlExporter workbook.xlsx folder [threads]");
+			System.exit(1);
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (args.length > 2)
+			threads = Integer.parseInt(args[2]);
+
+		WorkbookReader reader = new WorkbookReader(new File(args[0]));
+		HtmlExporter exporter = new HtmlExporter(new File(args[1]), threads, DEFAULT_WINDOW, DEFAULT_CACHE_SIZE);
+		exporter.setSymbols(reader.readSymbols());
+		exporter.export(reader);
+		System.err.println(exporter.getReport());
+	}
+}
@@ -20,13 +20,25 @@
 
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Image;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.net.URL;
 
+import javax.imageio.ImageIO;
 import javax.swing.JPanel;
+import javax.swing.SwingWorker;
 
 /**
  * Creates a JPanel with a background image
  * 
+ * The image is loaded in the background and converted once into the
+ * format of the screen, so it can be copied fast into the damaged
+ * regions of the panel.
+ * 
  * @author Gerd Bartelt
  *
  */
@@ -34,30 +46,105 @@ public class ImagePanel extends JPanel{
 
 	private static final long serialVersionUID = 1003478673077301230L;
 	
-	// The image
-	private Image img;
+	// The image, or null, if it is not loaded yet
+	private volatile BufferedImage img;
 
 
 	/**
 	 * Constructor
-	 * Creates an ImagePanel from an image
-	 * @param img
+	 * Creates an ImagePanel and loads the image in the background
+	 * @param url
+	 * 		The URL of the image
+	 */
+	public ImagePanel(final URL url) {
+		setOpaque(true);
+		setLayout(null);
+
+		new SwingWorker<BufferedImage, Void>() {
+
+			// Load the image
+			@Override
+			protected BufferedImage doInBackground() throws Exception {
+				return toCompatibleImage(ImageIO.read(url));
+			}
+
+			// Display it
+			@Override
+			protected void done() {
+				try {
+					setImage(get());
+				} catch (Exception e) {
+					System.err.println("Background image " + url + " could not be loaded");
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Sets the background image and uses its size
+	 * @param image
+	 * 		The image
 	 */
-	public ImagePanel(Image img) {
-		this.img = img;
-		Dimension size = new Dimension(img.getWidth(null), img.getHeight(null));
+	private void setImage(BufferedImage image) {
+		img = image;
+		Dimension size = new Dimension(img.getWidth(), img.getHeight());
 		setPreferredSize(size);
 		setMinimumSize(size);
 		setMaximumSize(size);
 		setSize(size);
-		setLayout(null);
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Converts an image into the format of the screen
+	 * @param image
+	 * 		The loaded image
+	 * @return
+	 * 		The converted image
+	 */
+	private static BufferedImage toCompatibleImage(BufferedImage image) {
+		if (image == null || GraphicsEnvironment.isHeadless())
+			return image;
+
+		GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+				.getDefaultScreenDevice().getDefaultConfiguration();
+
+		// Nothing to do, if the format is already the right one
+		if (image.getColorModel().equals(gc.getColorModel(image.getTransparency())))
+			return image;
+
+		BufferedImage compatible = gc.createCompatibleImage(image.getWidth(), image.getHeight(),
+				image.getTransparency() == Transparency.OPAQUE ? Transparency.OPAQUE : Transparency.TRANSLUCENT);
+		Graphics2D g2 = compatible.createGraphics();
+		g2.drawImage(image, 0, 0, null);
+		g2.dispose();
+		return compatible;
 	}
 
 	/**
 	 * Paint the component
+	 * Only the damaged region is copied from the image.
 	 */
 	public void paintComponent(Graphics g) {
-		g.drawImage(img, 0, 0, null);
+		BufferedImage image = img;
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+		// Fill the region that is not covered by the image
+		if (image == null || clip.x + clip.width > image.getWidth() || clip.y + clip.height > image.getHeight()) {
+			g.setColor(getBackground());
+			g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		}
+		if (image == null)
+			return;
+
+		// Copy only the damaged region
+		Rectangle r = clip.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+		if (!r.isEmpty())
+			g.drawImage(image, r.x, r.y, r.x + r.width, r.y + r.height,
+					r.x, r.y, r.x + r.width, r.y + r.height, null);
 	}
 
 }
@@ -0,0 +1,343 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/**
+ * Writes the LaTex string of a parsed excel formula
+ *
+ * The string describes the same equation as the atoms of AtomBuilder.
+ * It is only needed for the export, not for the display.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class LaTeXWriter {
+
+	// Functions that are written as operator names like \sin
+	private static final String[] OPERATOR_NAMES = {
+		"SIN", "COS", "TAN", "SINH", "COSH", "TANH", "ARCSIN", "ARCCOS", "ARCTAN",
+		"LN", "LG", "LOG", "MIN", "MAX"
+	};
+
+	// The LaTex string
+	private final StringBuilder sb = new StringBuilder();
+
+	// The defined names or null
+	private final SymbolTable symbols;
+
+	/**
+	 * Constructor
+	 *
+	 * @param symbols
+	 * 		The defined names or null
+	 */
+	private LaTeXWriter(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Writes the LaTex string of an equation
+	 *
+	 * @param node
+	 * 		The root node of the parsed excel formula
+	 * @param equalsSign
+	 * 		True, to start the equation with a "=" like the excel formula
+	 * @return
+	 * 		The LaTex string
+	 * @throws IllegalArgumentException
+	 * 		If the formula uses a function that can't be displayed
+	 */
+	public static String write(FormulaNode node, boolean equalsSign) {
+		return write(node, equalsSign, null);
+	}
+
+	/**
+	 * Writes the LaTex string of an equation. Defined names with a
+	 * display formula are written with it.
+	 *
+	 * @param node
+	 * 		The root node of the parsed excel formula
+	 * @param equalsSign
+	 * 		True, to start the equation with a "=" like the excel formula
+	 * @param symbols
+	 * 		The defined names, that were used to parse the formula, or null
+	 * @return
+	 * 		The LaTex string
+	 * @throws IllegalArgumentException
+	 * 		If the formula uses a function that can't be displayed
+	 */
+	public static String write(FormulaNode node, boolean equalsSign, SymbolTable symbols) {
+		LaTeXWriter writer = new LaTeXWriter(symbols);
+		if (equalsSign)
+			writer.sb.append("= ");
+		writer.append(node);
+		return writer.sb.toString();
+	}
+
+	/**
+	 * Appends a node
+	 */
+	private void append(FormulaNode node) {
+		switch (node.type) {
+		case FormulaNode.NUMBER:
+			for (int i = 0; i < node.text.length(); i++) {
+				char c = node.text.charAt(i);
+				if (c == ',')
+					sb.append("{,}");
+				else
+					sb.append(c);
+			}
+			break;
+		case FormulaNode.NAME:
+			if (node.symbol >= 0 && symbols != null && symbols.getDisplay(node.symbol) != null)
+				sb.append('{').append(symbols.getDisplay(node.symbol)).append('}');
+			else
+				appendName(node.text);
+			break;
+		case FormulaNode.TEXT:
+			appendText(node.text);
+			break;
+		case FormulaNode.RANGE:
+			append(node.child(0));
+			sb.append(" \\dots ");
+			append(node.child(1));
+			break;
+		case FormulaNode.PAREN:
+			sb.append("\\left( ");
+			append(node.child(0));
+			sb.append(" \\right)");
+			break;
+		case FormulaNode.UNARY:
+			sb.append(node.text);
+			append(node.child(0));
+			break;
+		case FormulaNode.BINARY:
+			appendBinary(node);
+			break;
+		case FormulaNode.FUNCTION:
+			appendFunction(node);
+			break;
+		}
+	}
+
+	/**
+	 * Appends an operator
+	 */
+	private void appendBinary(FormulaNode node) {
+		String op = node.text;
+		FormulaNode left = node.child(0);
+		FormulaNode right = node.child(1);
+
+		// Fraction without brackets
+		if (op.equals("/")) {
+			sb.append("\\frac{");
+			append(left.unwrap());
+			sb.append("}{");
+			append(right.unwrap());
+			sb.append('}');
+			return;
+		}
+
+		// Root or power
+		if (op.equals("^")) {
+			FormulaNode index = AtomBuilder.rootIndex(node);
+			if (index != null) {
+				sb.append("\\sqrt[");
+				append(index);
+				sb.append("]{");
+				append(left.unwrap());
+				sb.append('}');
+			}
+			else {
+				sb.append('{');
+				append(left);
+				sb.append("}^{");
+				append(right.unwrap());
+				sb.append('}');
+			}
+			return;
+		}
+
+		append(left);
+
+		// A multiplication with PI() is written without \cdot
+		if (op.equals("*") && right.is(FormulaNode.FUNCTION, "PI") && right.children.length == 0) {
+			sb.append(" \\pi ");
+			return;
+		}
+
+		if (op.equals("*"))
+			sb.append(" \\cdot ");
+		else if (op.equals("<="))
+			sb.append(" \\leq ");
+		else if (op.equals(">="))
+			sb.append(" \\geq ");
+		else if (op.equals("<>"))
+			sb.append(" \\neq ");
+		else if (op.equals("&"))
+			sb.append(" \\mathbin{\\&} ");
+		else
+			sb.append(op);
+		append(right);
+	}
+
+	/**
+	 * Appends a function
+	 */
+	private void appendFunction(FormulaNode node) {
+		String name = node.text;
+		int n = node.children.length;
+
+		// Functions that are not displayed
+		if (name.equals("INDIRECT") || name.equals("ADDRESS"))
+			throw new IllegalArgumentException("Function " + name + " can't be displayed");
+
+		if (name.equals("PI") && n == 0) {
+			sb.append(" \\pi ");
+		}
+		else if (name.equals("ABS") && n == 1) {
+			sb.append("\\left| ");
+			append(node.child(0).unwrap());
+			sb.append(" \\right|");
+		}
+		else if (name.equals("SQRT") && n == 1) {
+			sb.append("\\sqrt{");
+			append(node.child(0).unwrap());
+			sb.append('}');
+		}
+		else if (name.equals("EXP") && n == 1) {
+			sb.append("e^{");
+			append(node.child(0).unwrap());
+			sb.append('}');
+		}
+
+		// Logical operations
+		else if ((name.equals("AND") || name.equals("OR")) && n > 0) {
+			sb.append("\\left( ");
+			for (int i = 0; i < n; i++) {
+				if (i > 0)
+					sb.append(name.equals("AND") ? " \\wedge " : " \\vee ");
+				append(node.child(i));
+			}
+			sb.append(" \\right)");
+		}
+
+		// IF as a case
+		else if (name.equals("IF") && (n == 2 || n == 3)) {
+			sb.append("\\begin{cases}");
+			append(node.child(1));
+			sb.append(" & \\text{ if } ");
+			append(node.child(0));
+			sb.append(',');
+			if (n == 3) {
+				sb.append("\\\\ ");
+				append(node.child(2));
+				sb.append(" & \\text{ other cases}");
+			}
+			sb.append("\\end{cases}");
+		}
+
+		// Sum of a range
+		else if (name.equals("SUM") && n == 1 && node.child(0).type == FormulaNode.RANGE) {
+			FormulaNode range = node.child(0);
+			sb.append("\\sum_{");
+			append(range.child(0));
+			sb.append("}^{");
+			append(range.child(1));
+			sb.append('}');
+		}
+		else if (name.equals("SUM")) {
+			sb.append("\\sum ");
+			appendParameters(node);
+		}
+		else if (isOperatorName(name)) {
+			sb.append('\\').append(name.toLowerCase());
+			appendParameters(node);
+		}
+
+		// All other functions
+		else {
+			sb.append("\\mathrm{").append(name).append('}');
+			appendParameters(node);
+		}
+	}
+
+	/**
+	 * Appends the parameters of a function in brackets
+	 */
+	private void appendParameters(FormulaNode node) {
+		sb.append("\\left( ");
+		for (int i = 0; i < node.children.length; i++) {
+			if (i > 0)
+				sb.append(';');
+			append(node.child(i));
+		}
+		sb.append(" \\right)");
+	}
+
+	/**
+	 * Appends a name. The part after the first "_" is the index.
+	 */
+	private void appendName(String name) {
+		int index = name.indexOf('_');
+		boolean hasIndex = (index >= 0) && (index < name.length() - 1);
+		String base = hasIndex ? name.substring(0, index) : name;
+		for (int i = 0; i < base.length(); i++) {
+			if (base.charAt(i) != '$')
+				sb.append(base.charAt(i));
+		}
+		if (hasIndex) {
+			sb.append("_{");
+			appendName(name.substring(index + 1));
+			sb.append('}');
+		}
+	}
+
+	/**
+	 * Appends a text with escaped special characters, so every
+	 * character is displayed like by AtomBuilder
+	 */
+	private void appendText(String text) {
+		sb.append("\\text{");
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\')
+				sb.append("\\backslash{}");
+			else if (c == '^' || c == '~')
+				sb.append('\\').append(c).append("{}");
+			else {
+				if ("{}$&%#_".indexOf(c) >= 0)
+					sb.append('\\');
+				sb.append(c);
+			}
+		}
+		sb.append('}');
+	}
+
+	/**
+	 * Checks, whether a function is written as operator name
+	 */
+	private static boolean isOperatorName(String name) {
+		for (String operatorName : OPERATOR_NAMES) {
+			if (operatorName.equals(name))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/**
+ * Histogram of latencies in nanoseconds
+ *
+ * The buckets are logarithmic, with 64 linear sub buckets per power
+ * of two. So every value is recorded with an error below 2%, and the
+ * histogram has a fixed size. One histogram must only be used by one
+ * thread; the histograms of several threads can be added.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class LatencyHistogram {
+
+	// Number of linear sub buckets per power of two, as bits
+	private static final int SUB_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// The counts of all buckets
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+
+	// Number of recorded values
+	private long total = 0;
+
+	// The largest value
+	private long max = 0;
+
+	/**
+	 * Records one latency
+	 *
+	 * @param nanos
+	 * 		The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts[index(nanos)]++;
+		total++;
+		if (nanos > max)
+			max = nanos;
+	}
+
+	/**
+	 * Adds all values of an other histogram
+	 *
+	 * @param other
+	 * 		The other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Gets the number of recorded values
+	 *
+	 * @return
+	 * 		The count
+	 */
+	public long getCount() {
+		return total;
+	}
+
+	/**
+	 * Gets the largest recorded value
+	 *
+	 * @return
+	 * 		The maximum in nanoseconds
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Gets a percentile
+	 *
+	 * @param percent
+	 * 		The percentile, e.g. 99.9
+	 * @return
+	 * 		The upper bound of the bucket with the percentile in nanoseconds
+	 */
+	public long getPercentile(double percent) {
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(total * percent / 100.0);
+		long sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			sum += counts[i];
+			if (sum >= Math.max(1, rank))
+				return Math.min(max, upperBound(i));
+		}
+		return max;
+	}
+
+	/**
+	 * Gets the bucket of a value
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		// Keep the highest bits of the value
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * Gets the largest value of a bucket
+	 */
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,532 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.scilab.forge.jlatexmath.Atom;
+import org.scilab.forge.jlatexmath.Box;
+import org.scilab.forge.jlatexmath.DefaultTeXFont;
+import org.scilab.forge.jlatexmath.Glue;
+import org.scilab.forge.jlatexmath.HorizontalBox;
+import org.scilab.forge.jlatexmath.StrutBox;
+import org.scilab.forge.jlatexmath.SymbolAtom;
+import org.scilab.forge.jlatexmath.TeXConstants;
+import org.scilab.forge.jlatexmath.TeXEnvironment;
+import org.scilab.forge.jlatexmath.TeXIcon;
+
+/**
+ * Breaks a long equation into several lines
+ *
+ * A sum at the top of the formula is broken before a "+" or "-", and a
+ * product before a "*". The first line starts with the "=", the other
+ * lines start with the operator, aligned to the first term. Every
+ * term is laid out on its own, and the terms are laid out by several
+ * threads. A line is a row of the boxes of its terms, so no huge box
+ * of the whole equation is laid out.
+ *
+ * The icon of the lines paints only the lines in the clip rectangle,
+ * and render() paints every line into its own image in parallel. So
+ * the time and the memory depend on the number of lines and not on
+ * the width of the equation.
+ *
+ * A formula, that is not a sum or a product, or that fits into one
+ * line, is displayed like before.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class LineBreaker {
+
+	// Width of the equation in ExcelFormula in pixel
+	public static final int WIDTH = 752;
+
+	// Minimum number of terms, that are laid out by several threads
+	private static final int PARALLEL_TERMS = 64;
+
+	// Number of tasks per thread, so the threads end at the same time
+	private static final int TASKS_PER_THREAD = 4;
+
+	// Number of threads
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	// The threads, that lay out and paint the lines, or null
+	private static ExecutorService pool = null;
+
+	/**
+	 * An icon of a laid out box
+	 */
+	private static class LineIcon extends TeXIcon {
+		LineIcon(Box box, float size) {
+			super(box, size);
+		}
+	}
+
+	/**
+	 * The icon of all lines, one below the other
+	 */
+	private static class LinesIcon extends TeXIcon {
+		private final TeXIcon[] lines;
+
+		// The top of every line
+		private final int[] tops;
+
+		private int width = 1;
+		private int height = 0;
+
+		LinesIcon(TeXIcon[] lines) {
+			super(new StrutBox(0, 0, 0, 0), EquationRenderer.SIZE);
+			this.lines = lines;
+			tops = new int[lines.length];
+			for (int i = 0; i < lines.length; i++) {
+				tops[i] = height;
+				width = Math.max(width, lines[i].getIconWidth());
+				height += lines[i].getIconHeight();
+			}
+		}
+
+		@Override
+		public int getIconWidth() {
+			return width;
+		}
+
+		@Override
+		public int getIconHeight() {
+			return height;
+		}
+
+		@Override
+		public void setForeground(Color fg) {
+			for (TeXIcon line : lines)
+				line.setForeground(fg);
+		}
+
+		/**
+		 * Paints only the lines in the clip rectangle
+		 */
+		@Override
+		public void paintIcon(Component c, Graphics g, int x, int y) {
+			Rectangle clip = g.getClipBounds();
+			for (int i = 0; i < lines.length; i++) {
+				if ((clip == null) || clip.intersects(x, y + tops[i], width, lines[i].getIconHeight()))
+					lines[i].paintIcon(c, g, x, y + tops[i]);
+			}
+		}
+	}
+
+	/**
+	 * Lays out a part of the terms
+	 */
+	private static class LayoutTask implements Callable<Void> {
+		private final Atom[] atoms;
+		private final Box[] boxes;
+		private final int first;
+		private final int end;
+
+		LayoutTask(Atom[] atoms, Box[] boxes, int first, int end) {
+			this.atoms = atoms;
+			this.boxes = boxes;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		public Void call() {
+			TeXEnvironment environment = createEnvironment();
+			for (int i = first; i < end; i++) {
+				environment.reset();
+				boxes[i] = atoms[i].createBox(environment);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Paints one line into its own image
+	 */
+	private static class PaintTask implements Callable<BufferedImage> {
+		private final TeXIcon line;
+
+		PaintTask(TeXIcon line) {
+			this.line = line;
+		}
+
+		@Override
+		public BufferedImage call() {
+			return EquationRenderer.paint(line);
+		}
+	}
+
+	/**
+	 * Converts a parsed excel formula to an icon. A long sum or product
+	 * is broken into lines.
+	 *
+	 * @param node
+	 * 		The root node of the parsed excel formula
+	 * @param equalsSign
+	 * 		True, to start the equation with a "=" like the excel formula
+	 * @param symbols
+	 * 		The defined names, that were used to parse the formula, or null
+	 * @param map
+	 * 		An empty map, that gets the atom of every node, or null
+	 * @param width
+	 * 		The maximum width of a line in pixel, or 0 for one line
+	 * @return
+	 * 		The icon with the equation
+	 * @throws IllegalArgumentException
+	 * 		If the formula uses a function that can't be displayed
+	 */
+	public static TeXIcon createIcon(FormulaNode node, boolean equalsSign, SymbolTable symbols, SourceMap map,
+			int width) {
+		List<FormulaNode> terms = new ArrayList<FormulaNode>();
+		List<String> operators = new ArrayList<String>();
+		if (width > 0) {
+			split(node, terms, operators, "+-");
+			if (terms.size() < 2) {
+				terms.clear();
+				operators.clear();
+				split(node, terms, operators, "*");
+			}
+		}
+		if (terms.size() < 2)
+			return EquationRenderer.createIcon(AtomBuilder.build(node, equalsSign, symbols, map));
+
+		// Build the atoms of the terms and lay them out
+		Atom[] atoms = new Atom[terms.size()];
+		for (int i = 0; i < atoms.length; i++)
+			atoms[i] = AtomBuilder.build(terms.get(i), false, symbols, map);
+		Box[] boxes = layout(atoms);
+
+		List<Box> lines = breakLines(atoms, boxes, operators, equalsSign, width);
+
+		// An equation in one line is laid out like before
+		if (lines.size() < 2) {
+			if (map != null)
+				map.clear();
+			return EquationRenderer.createIcon(AtomBuilder.build(node, equalsSign, symbols, map));
+		}
+
+		TeXIcon[] icons = new TeXIcon[lines.size()];
+		for (int i = 0; i < icons.length; i++)
+			icons[i] = new LineIcon(lines.get(i), EquationRenderer.SIZE);
+		return new LinesIcon(icons);
+	}
+
+	/**
+	 * Converts an excel formula to an icon. A long sum or product is
+	 * broken into lines. Only if the formula can't be parsed, it is
+	 * converted with Excel2LaTex to one line.
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @param symbols
+	 * 		The defined names or null
+	 * @param width
+	 * 		The maximum width of a line in pixel, or 0 for one line
+	 * @return
+	 * 		The icon with the equation
+	 */
+	public static TeXIcon createExcelIcon(String excelFormula, SymbolTable symbols, int width) {
+		try {
+			FormulaNode node = FormulaParser.parse(excelFormula, symbols);
+			return createIcon(node, EquationRenderer.hasEqualsSign(excelFormula), symbols, null, width);
+		} catch (IllegalArgumentException e) {
+			return EquationRenderer.createIcon(WorkbookConverter.convert(excelFormula, symbols));
+		}
+	}
+
+	/**
+	 * Gets the number of lines of an icon
+	 *
+	 * @param icon
+	 * 		The icon with the equation
+	 * @return
+	 * 		The number of lines
+	 */
+	public static int getLineCount(TeXIcon icon) {
+		return (icon instanceof LinesIcon) ? ((LinesIcon) icon).lines.length : 1;
+	}
+
+	/**
+	 * Paints an icon into a new image with transparent background.
+	 * The lines are painted into their own images by several threads,
+	 * and then they are copied into the image, one below the other.
+	 *
+	 * @param icon
+	 * 		The icon with the equation
+	 * @return
+	 * 		The image
+	 */
+	public static BufferedImage render(TeXIcon icon) {
+		if (!(icon instanceof LinesIcon))
+			return EquationRenderer.paint(icon);
+		LinesIcon lines = (LinesIcon) icon;
+
+		List<Future<BufferedImage>> images = new ArrayList<Future<BufferedImage>>();
+		for (TeXIcon line : lines.lines)
+			images.add(getPool().submit(new PaintTask(line)));
+
+		BufferedImage image = new BufferedImage(lines.getIconWidth(), Math.max(1, lines.getIconHeight()),
+				BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = image.createGraphics();
+		for (int i = 0; i < images.size(); i++) {
+			g2.drawImage(get(images.get(i)), 0, lines.tops[i], null);
+
+			// The image of the line is not needed any more
+			images.set(i, null);
+		}
+		g2.dispose();
+		return image;
+	}
+
+	/**
+	 * Converts an excel formula to an image. A long sum or product is
+	 * broken into lines.
+	 *
+	 * @param excelFormula
+	 * 		The excel formula
+	 * @param symbols
+	 * 		The defined names or null
+	 * @param width
+	 * 		The maximum width of a line in pixel, or 0 for one line
+	 * @return
+	 * 		The image
+	 */
+	public static BufferedImage renderExcel(String excelFormula, SymbolTable symbols, int width) {
+		return render(createExcelIcon(excelFormula, symbols, width));
+	}
+
+	/**
+	 * Collects the terms of a sum or the factors of a product. The
+	 * operators are left associative, so only the left operand can be
+	 * an operator of the same kind.
+	 *
+	 * @param node
+	 * 		The node of the sum or product
+	 * @param terms
+	 * 		Gets the terms
+	 * @param operators
+	 * 		Gets the operator before every term, or null before the first one
+	 * @param kinds
+	 * 		The operators, e.g. "+-"
+	 */
+	private static void split(FormulaNode node, List<FormulaNode> terms, List<String> operators, String kinds) {
+		if ((node.type == FormulaNode.BINARY) && (node.text.length() == 1) && (kinds.indexOf(node.text) >= 0)) {
+			FormulaNode right = node.child(1);
+
+			// A multiplication with PI() is written without \cdot, so it is one factor
+			if (!(node.text.equals("*") && right.is(FormulaNode.FUNCTION, "PI") && right.children.length == 0)) {
+				split(node.child(0), terms, operators, kinds);
+				terms.add(right);
+				operators.add(node.text);
+				return;
+			}
+		}
+		terms.add(node);
+		operators.add(null);
+	}
+
+	/**
+	 * Lays out the atoms of the terms. Many terms are laid out by
+	 * several threads, each with its own environment.
+	 */
+	private static Box[] layout(Atom[] atoms) {
+		Box[] boxes = new Box[atoms.length];
+		if ((THREADS < 2) || (atoms.length < PARALLEL_TERMS)) {
+			new LayoutTask(atoms, boxes, 0, atoms.length).call();
+			return boxes;
+		}
+
+		int tasks = THREADS * TASKS_PER_THREAD;
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < tasks; i++) {
+			int first = (int) ((long) atoms.length * i / tasks);
+			int end = (int) ((long) atoms.length * (i + 1) / tasks);
+			if (end > first)
+				futures.add(getPool().submit(new LayoutTask(atoms, boxes, first, end)));
+		}
+		for (Future<Void> future : futures)
+			get(future);
+		return boxes;
+	}
+
+	/**
+	 * Puts the boxes of the terms into lines. The space between the
+	 * boxes is the space of a row of atoms.
+	 *
+	 * @return
+	 * 		The box of every line
+	 */
+	private static List<Box> breakLines(Atom[] atoms, Box[] boxes, List<String> operators, boolean equalsSign,
+			int width) {
+		TeXEnvironment environment = createEnvironment();
+
+		// The maximum width of a line without the insets of the icon
+		Insets insets = new LineIcon(new StrutBox(0, 0, 0, 0), EquationRenderer.SIZE).getInsets();
+		float maximum = (width - insets.left - insets.right) / EquationRenderer.SIZE;
+
+		List<Box> lines = new ArrayList<Box>();
+		HorizontalBox line = new HorizontalBox();
+
+		// The other lines start below the first term
+		float indent = 0;
+		if (equalsSign) {
+			Atom equals = SymbolAtom.get("equals");
+			line.add(equals.createBox(environment));
+			line.add(Glue.get(TeXConstants.TYPE_RELATION, getLeftType(atoms[0]), environment));
+			indent = line.getWidth();
+		}
+		line.add(boxes[0]);
+
+		for (int i = 1; i < atoms.length; i++) {
+			Atom operator = AtomBuilder.operator(operators.get(i));
+			environment.reset();
+			Box operatorBox = operator.createBox(environment);
+			int left = getRightType(atoms[i - 1]);
+			int right = getLeftType(atoms[i]);
+			int type = isBinary(left, right) ? TeXConstants.TYPE_BINARY_OPERATOR : TeXConstants.TYPE_ORDINARY;
+			Box before = Glue.get(left, type, environment);
+			Box after = Glue.get(type, right, environment);
+
+			// Start a new line with the operator
+			if (line.getWidth() + before.getWidth() + operatorBox.getWidth() + after.getWidth()
+					+ boxes[i].getWidth() > maximum) {
+				lines.add(line);
+				line = new HorizontalBox();
+				if (indent > 0)
+					line.add(new StrutBox(indent, 0, 0, 0));
+			}
+			else
+				line.add(before);
+			line.add(operatorBox);
+			line.add(after);
+			line.add(boxes[i]);
+		}
+		lines.add(line);
+		return lines;
+	}
+
+	/**
+	 * Checks, whether an operator between two atoms is a binary operator.
+	 * Like in a row, it is an ordinary atom after an operator, a relation,
+	 * an opening or a punctuation and before a relation, a closing or a
+	 * punctuation.
+	 *
+	 * @param left
+	 * 		The type of the atom before the operator
+	 * @param right
+	 * 		The type of the atom behind the operator
+	 * @return
+	 * 		True, if it is a binary operator
+	 */
+	private static boolean isBinary(int left, int right) {
+		switch (left) {
+		case TeXConstants.TYPE_BIG_OPERATOR:
+		case TeXConstants.TYPE_RELATION:
+		case TeXConstants.TYPE_OPENING:
+		case TeXConstants.TYPE_PUNCTUATION:
+			return false;
+		}
+		switch (right) {
+		case TeXConstants.TYPE_RELATION:
+		case TeXConstants.TYPE_CLOSING:
+		case TeXConstants.TYPE_PUNCTUATION:
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the type of an atom at its left side for the space in a row.
+	 * A binary operator at the beginning of a term is an ordinary atom.
+	 */
+	private static int getLeftType(Atom atom) {
+		return ordinary(atom.getLeftType());
+	}
+
+	/**
+	 * Gets the type of an atom at its right side for the space in a row
+	 */
+	private static int getRightType(Atom atom) {
+		return ordinary(atom.getRightType());
+	}
+
+	/**
+	 * Uses an ordinary atom for the types without a space
+	 */
+	private static int ordinary(int type) {
+		if ((type < TeXConstants.TYPE_ORDINARY) || (type > TeXConstants.TYPE_INNER)
+				|| (type == TeXConstants.TYPE_BINARY_OPERATOR))
+			return TeXConstants.TYPE_ORDINARY;
+		return type;
+	}
+
+	/**
+	 * Creates an environment with the style and size of EquationRenderer
+	 */
+	private static TeXEnvironment createEnvironment() {
+		return new TeXEnvironment(TeXConstants.STYLE_DISPLAY, new DefaultTeXFont(EquationRenderer.SIZE));
+	}
+
+	/**
+	 * Waits for the result of a task
+	 */
+	private static <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Line failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+	}
+
+	/**
+	 * Gets the threads, that lay out and paint the lines
+	 */
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "LineBreaker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+}
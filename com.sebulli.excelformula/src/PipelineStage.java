@@ -0,0 +1,312 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the FormulaPipeline
+ *
+ * Every stage has a bounded input queue and its own worker threads.
+ * If the queue of the next stage is full, the workers wait, so a slow
+ * stage throttles all stages before it.
+ *
+ * A stage can be started and closed only once. If all its workers
+ * ended, e.g. because they were interrupted, nothing can be put into
+ * it any more, so the stages before it do not wait forever.
+ *
+ * @author Gerd Bartelt
+ *
+ * @param <I>
+ * 		Type of the input items
+ * @param <O>
+ * 		Type of the output items
+ */
+public abstract class PipelineStage<I, O> {
+
+	// Marks the end of the input
+	private static final Object END = new Object();
+
+	// Milliseconds between two checks, whether a full queue has still workers
+	private static final long WAIT = 100;
+
+	// Name of the stage
+	private final String name;
+
+	// The bounded input queue
+	private final BlockingQueue<Object> queue;
+	private final int capacity;
+
+	// The worker threads
+	private final int threads;
+	private final AtomicInteger running;
+	private final CountDownLatch finished;
+	private volatile boolean started = false;
+	private volatile boolean closed = false;
+
+	// The next stage or null
+	private PipelineStage<O, ?> next;
+
+	// Metrics
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong busyTime = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 * 		Name of the stage
+	 * @param threads
+	 * 		Number of worker threads
+	 * @param capacity
+	 * 		Size of the input queue
+	 */
+	public PipelineStage(String name, int threads, int capacity) {
+		this.name = name;
+		this.threads = Math.max(1, threads);
+		this.capacity = Math.max(1, capacity);
+		this.queue = new ArrayBlockingQueue<Object>(this.capacity);
+		this.running = new AtomicInteger(this.threads);
+		this.finished = new CountDownLatch(this.threads);
+	}
+
+	/**
+	 * Processes one item
+	 *
+	 * @param item
+	 * 		The input item
+	 * @return
+	 * 		The output item or null, if nothing is passed to the next stage
+	 * @throws Exception
+	 * 		If the item can not be processed. The item is skipped.
+	 */
+	protected abstract O process(I item) throws Exception;
+
+	/**
+	 * Connects the next stage
+	 *
+	 * @param next
+	 * 		The next stage
+	 * @return
+	 * 		The next stage
+	 */
+	public <T> PipelineStage<O, T> connect(PipelineStage<O, T> next) {
+		this.next = next;
+		return next;
+	}
+
+	/**
+	 * Starts the worker threads
+	 *
+	 * @throws IllegalStateException
+	 * 		If the stage was already started
+	 */
+	public synchronized void start() {
+		if (started)
+			throw new IllegalStateException("Stage " + name + " was already started");
+		started = true;
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, name + "-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Puts an item into the input queue. Waits, if the queue is full.
+	 *
+	 * @param item
+	 * 		The item
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted while waiting
+	 * @throws IllegalStateException
+	 * 		If the stage is closed or all its workers ended
+	 */
+	public void put(I item) throws InterruptedException {
+		if (closed)
+			throw new IllegalStateException("Stage " + name + " is closed");
+		if (!offer(item))
+			throw new IllegalStateException("Stage " + name + " has no workers");
+
+		// Track the maximum queue depth
+		int depth = queue.size();
+		int max;
+		do {
+			max = maxDepth.get();
+		} while (depth > max && !maxDepth.compareAndSet(max, depth));
+	}
+
+	/**
+	 * Marks the end of the input. The stage finishes after all queued
+	 * items are processed.
+	 *
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted while waiting
+	 */
+	public synchronized void close() throws InterruptedException {
+		if (closed)
+			return;
+		closed = true;
+		for (int i = 0; i < threads; i++) {
+			if (!offer(END))
+				return;
+		}
+	}
+
+	/**
+	 * Puts an item into the input queue. Waits, if the queue is full,
+	 * but only as long as there are workers, that could take it.
+	 *
+	 * @return
+	 * 		False, if all workers ended
+	 */
+	private boolean offer(Object item) throws InterruptedException {
+		while (!queue.offer(item, WAIT, TimeUnit.MILLISECONDS)) {
+			if (started && running.get() == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until all workers of this stage are finished
+	 *
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted while waiting
+	 */
+	public void await() throws InterruptedException {
+		finished.await();
+	}
+
+	/**
+	 * The loop of one worker thread
+	 */
+	@SuppressWarnings("unchecked")
+	private void work() {
+		try {
+			while (true) {
+				Object item = queue.take();
+
+				// End of input
+				if (item == END)
+					break;
+
+				long start = System.nanoTime();
+				O result = null;
+				try {
+					result = process((I) item);
+					processed.incrementAndGet();
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Throwable e) {
+					// Also an error like OutOfMemoryError skips only the item
+					failures.incrementAndGet();
+				}
+				busyTime.addAndGet(System.nanoTime() - start);
+
+				// Pass the result to the next stage
+				if (result != null && next != null)
+					next.put(result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IllegalStateException e) {
+			// The next stage has no workers left, so this one ends, too
+		} finally {
+			// The last worker closes the next stage, also if a worker
+			// ended with an error, so the next stage does not wait forever
+			try {
+				if (running.decrementAndGet() == 0 && next != null)
+					next.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				finished.countDown();
+			}
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of items that are waiting in the input queue
+	 *
+	 * @return
+	 * 		The actual queue depth
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Gets the maximum number of items that were waiting in the input queue
+	 *
+	 * @return
+	 * 		The maximum queue depth
+	 */
+	public int getMaxQueueDepth() {
+		return maxDepth.get();
+	}
+
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Gets the time all workers spent processing items
+	 *
+	 * @return
+	 * 		The time in nanoseconds
+	 */
+	public long getBusyTime() {
+		return busyTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d threads, queue %d/%d (max %d), %d processed, %d failed, busy %.1f ms",
+				name, threads, getQueueDepth(), capacity, getMaxQueueDepth(),
+				getProcessed(), getFailures(), getBusyTime() / 1.0e6);
+	}
+}
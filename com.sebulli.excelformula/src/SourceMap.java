@@ -0,0 +1,358 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.scilab.forge.jlatexmath.Atom;
+import org.scilab.forge.jlatexmath.Box;
+import org.scilab.forge.jlatexmath.CharSymbol;
+import org.scilab.forge.jlatexmath.TeXEnvironment;
+
+/**
+ * Maps the parts of a displayed equation to their nodes in the excel
+ * formula and back
+ *
+ * AtomBuilder wraps the atom of every node, so its box records the
+ * rectangle on the screen, when it is drawn. Only the painted parts of
+ * a large equation are drawn, so only their rectangles are known. The
+ * positions of the nodes in the formula are kept in an interval index:
+ * the boundaries of all nodes split the formula into segments, and
+ * every segment knows the innermost node. A position is found by a
+ * binary search over the boundaries.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class SourceMap {
+
+	// The nodes and their rectangles on the screen, one per span
+	private final List<FormulaNode> nodes = new ArrayList<FormulaNode>();
+	private final List<Rectangle> rectangles = new ArrayList<Rectangle>();
+
+	// The enclosing span of every span, or -1
+	private int[] parents = null;
+
+	// The boundaries of all spans, and the innermost span of the
+	// segment from one boundary to the next one, or -1
+	private int[] boundaries = null;
+	private int[] segments = null;
+
+	// Recording of the rectangles
+	private boolean recording = false;
+	private int originX = 0;
+	private int originY = 0;
+
+	/**
+	 * The atom of a node. Its box records the rectangle on the screen.
+	 */
+	private class SpanAtom extends Atom {
+		private final Atom atom;
+		private final int span;
+
+		SpanAtom(Atom atom, int span) {
+			this.atom = atom;
+			this.span = span;
+			type = atom.type;
+			type_limits = atom.type_limits;
+			alignment = atom.alignment;
+		}
+
+		@Override
+		public Box createBox(TeXEnvironment env) {
+			update();
+			return new SpanBox(atom.createBox(env), span);
+		}
+
+		@Override
+		public int getLeftType() {
+			update();
+			return atom.getLeftType();
+		}
+
+		@Override
+		public int getRightType() {
+			update();
+			return atom.getRightType();
+		}
+
+		/**
+		 * jlatexmath changes the type of a row element, e.g. a binary
+		 * operator at the beginning. It is passed to the wrapped atom.
+		 */
+		private void update() {
+			atom.type = type;
+			atom.type_limits = type_limits;
+			atom.alignment = alignment;
+		}
+	}
+
+	/**
+	 * The box of a node. It has the size of the wrapped box.
+	 */
+	private class SpanBox extends Box {
+		private final Box box;
+		private final int span;
+
+		SpanBox(Box box, int span) {
+			this.box = box;
+			this.span = span;
+			width = box.getWidth();
+			height = box.getHeight();
+			depth = box.getDepth();
+			shift = box.getShift();
+		}
+
+		@Override
+		public void draw(Graphics2D g2, float x, float y) {
+			if (recording)
+				record(span, g2, x, y, width, height, depth);
+			box.draw(g2, x, y);
+		}
+
+		@Override
+		public int getLastFontId() {
+			return box.getLastFontId();
+		}
+	}
+
+	/**
+	 * Wraps the atom of a node, so its position on the screen is
+	 * recorded
+	 *
+	 * @param node
+	 * 		The node with its position in the excel formula
+	 * @param atom
+	 * 		The atom of the node
+	 * @return
+	 * 		The wrapped atom
+	 */
+	Atom wrap(FormulaNode node, Atom atom) {
+
+		// jlatexmath handles single characters different from other
+		// atoms, e.g. in a row or as the base of a script
+		if (atom instanceof CharSymbol)
+			return atom;
+
+		nodes.add(node);
+		rectangles.add(null);
+		parents = null;
+		return new SpanAtom(atom, nodes.size() - 1);
+	}
+
+	/**
+	 * Removes all spans, e.g. to build the atoms again
+	 */
+	void clear() {
+		nodes.clear();
+		rectangles.clear();
+		parents = null;
+		recording = false;
+	}
+
+	/**
+	 * Gets the number of spans
+	 *
+	 * @return
+	 * 		The number of nodes
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Gets the node of a span
+	 *
+	 * @param span
+	 * 		The span
+	 * @return
+	 * 		The node with its position in the excel formula
+	 */
+	public FormulaNode getNode(int span) {
+		return nodes.get(span);
+	}
+
+	/**
+	 * Gets the rectangle of a span on the screen
+	 *
+	 * @param span
+	 * 		The span
+	 * @return
+	 * 		The rectangle, or null if the equation was not yet drawn
+	 */
+	public Rectangle getRectangle(int span) {
+		return rectangles.get(span);
+	}
+
+	/**
+	 * Gets the innermost span, that contains a part of the formula.
+	 * An empty part is the position between two characters. It gets
+	 * the span of the character behind it or, at the end of a span,
+	 * the one before it.
+	 *
+	 * @param start
+	 * 		Start position in the excel formula
+	 * @param end
+	 * 		End position in the excel formula
+	 * @return
+	 * 		The span or -1
+	 */
+	public int find(int start, int end) {
+		buildIndex();
+		int span = segment(start);
+		if ((start == end) && (span < 0) && (start > 0))
+			span = segment(start - 1);
+
+		// Search the enclosing span, that contains also the end
+		while ((span >= 0) && (nodes.get(span).end < end))
+			span = parents[span];
+		return span;
+	}
+
+	/**
+	 * Gets the innermost span at a point of the screen. This is the
+	 * smallest rectangle with the point. It is only used for a click,
+	 * so all rectangles are searched.
+	 *
+	 * @param x
+	 * 		The x position
+	 * @param y
+	 * 		The y position
+	 * @return
+	 * 		The span or -1
+	 */
+	public int findAt(int x, int y) {
+		int found = -1;
+		int area = Integer.MAX_VALUE;
+		for (int i = 0; i < rectangles.size(); i++) {
+			Rectangle rectangle = rectangles.get(i);
+			if ((rectangle != null) && rectangle.contains(x, y) && (rectangle.width * rectangle.height <= area)) {
+				found = i;
+				area = rectangle.width * rectangle.height;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Starts to record the rectangles of the spans, that are drawn by
+	 * the next paint, e.g. of one tile
+	 *
+	 * @param x
+	 * 		The x position of the graphics origin on the screen
+	 * @param y
+	 * 		The y position of the graphics origin on the screen
+	 */
+	void startRecording(int x, int y) {
+		originX = x;
+		originY = y;
+		recording = true;
+	}
+
+	/**
+	 * Stops the recording
+	 */
+	void stopRecording() {
+		recording = false;
+	}
+
+	/**
+	 * Records the rectangle of a span
+	 */
+	private void record(int span, Graphics2D g2, float x, float y, float width, float height, float depth) {
+		Rectangle2D box = new Rectangle2D.Float(Math.min(x, x + width), y - height, Math.abs(width), height + depth);
+		Rectangle rectangle = g2.getTransform().createTransformedShape(box).getBounds();
+		rectangle.translate(originX, originY);
+		rectangles.set(span, rectangle);
+	}
+
+	/**
+	 * Gets the innermost span of the segment with a position
+	 */
+	private int segment(int position) {
+		int i = Arrays.binarySearch(boundaries, position);
+
+		// Not a boundary: the segment of the boundary before it
+		if (i < 0)
+			i = -i - 2;
+		if ((i < 0) || (i >= segments.length))
+			return -1;
+		return segments[i];
+	}
+
+	/**
+	 * Builds the interval index of the spans
+	 */
+	private void buildIndex() {
+		if (parents != null)
+			return;
+		int n = nodes.size();
+
+		// All boundaries, without duplicates
+		int[] all = new int[2 * n];
+		for (int i = 0; i < n; i++) {
+			all[2 * i] = nodes.get(i).start;
+			all[2 * i + 1] = nodes.get(i).end;
+		}
+		Arrays.sort(all);
+		int count = 0;
+		for (int i = 0; i < all.length; i++) {
+			if ((count == 0) || (all[i] != all[count - 1]))
+				all[count++] = all[i];
+		}
+		boundaries = Arrays.copyOf(all, count);
+		segments = new int[Math.max(0, count - 1)];
+		Arrays.fill(segments, -1);
+
+		// The outer spans first, so the inner ones overwrite them.
+		// A child is wrapped before its parent, so of two spans with
+		// the same length the one with the lower number is the inner one.
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int lengthA = nodes.get(a).end - nodes.get(a).start;
+				int lengthB = nodes.get(b).end - nodes.get(b).start;
+				if (lengthA != lengthB)
+					return (lengthA > lengthB) ? -1 : 1;
+				return b.compareTo(a);
+			}
+		});
+
+		parents = new int[n];
+		for (int k = 0; k < n; k++) {
+			int span = order[k];
+			FormulaNode node = nodes.get(span);
+			int first = Arrays.binarySearch(boundaries, node.start);
+			int last = Arrays.binarySearch(boundaries, node.end);
+
+			// The enclosing span is the one, that was set before
+			parents[span] = (first < segments.length) ? segments[first] : -1;
+			for (int i = first; i < last; i++)
+				segments[i] = span;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.scilab.forge.jlatexmath.Atom;
+import org.scilab.forge.jlatexmath.ParseException;
+import org.scilab.forge.jlatexmath.TeXFormula;
+
+/**
+ * The defined names of a workbook, like "Rate" or "Tax_Base"
+ *
+ * Every name gets an integer id. A name can have a LaTex formula that
+ * is displayed instead of the name, e.g. "r" for "Rate". Like in Excel,
+ * the names are not case sensitive.
+ *
+ * The names are found with a hash table of the characters, so a name
+ * in the working text of the converter can be looked up without creating
+ * a string. The table is filled before the conversion; after that it is
+ * only read and can be used by several threads.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class SymbolTable {
+
+	// The names, their display formulas and definitions by id
+	private String[] names = new String[16];
+	private String[] displays = new String[16];
+	private String[] definitions = new String[16];
+
+	// The upper case characters of the names and their hash codes by id
+	private char[][] keys = new char[16][];
+	private int[] hashes = new int[16];
+
+	// Number of names
+	private int size = 0;
+
+	// Hash table with id+1 of every name, 0 is an empty slot
+	private int[] slots = new int[32];
+
+	/**
+	 * Gets the id of a name and adds it, if it is new
+	 *
+	 * @param name
+	 * 		The name
+	 * @return
+	 * 		The id
+	 */
+	public int intern(String name) {
+		int id = lookup(name);
+		if (id >= 0)
+			return id;
+
+		// Grow the arrays
+		if (size == names.length) {
+			int n = size * 2;
+			names = Arrays.copyOf(names, n);
+			displays = Arrays.copyOf(displays, n);
+			definitions = Arrays.copyOf(definitions, n);
+			keys = Arrays.copyOf(keys, n);
+			hashes = Arrays.copyOf(hashes, n);
+		}
+
+		id = size++;
+		names[id] = name;
+		keys[id] = new char[name.length()];
+		for (int i = 0; i < name.length(); i++)
+			keys[id][i] = Character.toUpperCase(name.charAt(i));
+		hashes[id] = hash(keys[id], 0, keys[id].length);
+
+		// Keep the hash table at most half full
+		if (size * 2 > slots.length)
+			rehash(slots.length * 2);
+		else
+			insert(id);
+		return id;
+	}
+
+	/**
+	 * Gets the id of a name
+	 *
+	 * @param name
+	 * 		The name
+	 * @return
+	 * 		The id or -1, if it is not defined
+	 */
+	public int lookup(String name) {
+		if (size == 0)
+			return -1;
+
+		int h = 0;
+		for (int i = 0; i < name.length(); i++)
+			h = 31 * h + Character.toUpperCase(name.charAt(i));
+		h ^= h >>> 16;
+
+		int mask = slots.length - 1;
+		for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+			int id = slots[i] - 1;
+			if (hashes[id] == h && names[id].equalsIgnoreCase(name))
+				return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the id of a name in a part of a text
+	 *
+	 * @param text
+	 * 		The text
+	 * @param start
+	 * 		Start of the name
+	 * @param end
+	 * 		End of the name
+	 * @return
+	 * 		The id or -1, if it is not defined
+	 */
+	public int lookup(char[] text, int start, int end) {
+		if (size == 0)
+			return -1;
+
+		int h = hash(text, start, end);
+		int mask = slots.length - 1;
+		for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+			int id = slots[i] - 1;
+			if (hashes[id] == h && matches(keys[id], text, start, end))
+				return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Sets the LaTex formula that is displayed instead of a name
+	 *
+	 * @param name
+	 * 		The name
+	 * @param latex
+	 * 		The LaTex formula, e.g. "T_{N}"
+	 * @return
+	 * 		The id of the name
+	 * @throws IllegalArgumentException
+	 * 		If the LaTex formula can not be parsed
+	 */
+	public int setDisplay(String name, String latex) {
+		if (latex != null)
+			parse(latex);
+		int id = intern(name);
+		displays[id] = latex;
+		return id;
+	}
+
+	/**
+	 * Sets the definition of a name
+	 *
+	 * @param name
+	 * 		The name
+	 * @param definition
+	 * 		The definition, e.g. "Sheet1!$B$2"
+	 * @return
+	 * 		The id of the name
+	 */
+	public int setDefinition(String name, String definition) {
+		int id = intern(name);
+		definitions[id] = definition;
+		return id;
+	}
+
+	/**
+	 * Loads the display formulas from a properties file with lines
+	 * like "Rate=r"
+	 *
+	 * @param file
+	 * 		The properties file
+	 * @throws IOException
+	 * 		If the file can not be read or a display formula can not
+	 * 		be parsed
+	 */
+	public void loadDisplays(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				int first = lineNumber;
+
+				// Join continued lines, so the line number of every entry is known
+				StringBuilder entry = new StringBuilder(line);
+				if (!isComment(line)) {
+					while (isContinued(line) && (line = reader.readLine()) != null) {
+						lineNumber++;
+						entry.append('\n').append(line);
+					}
+				}
+
+				Properties properties = new Properties();
+				properties.load(new StringReader(entry.toString()));
+				for (String name : properties.stringPropertyNames()) {
+					try {
+						setDisplay(name, properties.getProperty(name));
+					} catch (IllegalArgumentException e) {
+						throw new IOException(file + ", line " + first + ": " + e.getMessage());
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Checks, whether a line of a properties file is a comment
+	 */
+	private static boolean isComment(String line) {
+		String trimmed = line.trim();
+		return trimmed.startsWith("#") || trimmed.startsWith("!");
+	}
+
+	/**
+	 * Checks, whether a line of a properties file ends with an odd
+	 * number of backslashes and is continued in the next line
+	 */
+	private static boolean isContinued(String line) {
+		int n = 0;
+		for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--)
+			n++;
+		return n % 2 == 1;
+	}
+
+	/**
+	 * Gets the number of names
+	 *
+	 * @return
+	 * 		The number of names
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets a name
+	 *
+	 * @param id
+	 * 		The id of the name
+	 * @return
+	 * 		The name as it was defined
+	 */
+	public String getName(int id) {
+		return names[id];
+	}
+
+	/**
+	 * Gets the LaTex formula that is displayed instead of a name
+	 *
+	 * @param id
+	 * 		The id of the name
+	 * @return
+	 * 		The LaTex formula or null, if the name is displayed as it is
+	 */
+	public String getDisplay(int id) {
+		return displays[id];
+	}
+
+	/**
+	 * Gets the definition of a name
+	 *
+	 * @param id
+	 * 		The id of the name
+	 * @return
+	 * 		The definition or null
+	 */
+	public String getDefinition(int id) {
+		return definitions[id];
+	}
+
+	/**
+	 * Gets a new atom of the display formula. jlatexmath changes an atom
+	 * while it is laid out, so an atom must not be shared by several
+	 * equations or threads.
+	 *
+	 * @param id
+	 * 		The id of the name
+	 * @return
+	 * 		The atom or null, if the name is displayed as it is
+	 * @throws IllegalArgumentException
+	 * 		If the display formula can not be parsed
+	 */
+	public Atom getAtom(int id) {
+		if (displays[id] == null)
+			return null;
+		return parse(displays[id]).root;
+	}
+
+	/**
+	 * Parses a display formula
+	 *
+	 * @throws IllegalArgumentException
+	 * 		If the formula can not be parsed
+	 */
+	private static TeXFormula parse(String latex) {
+		try {
+			return new TeXFormula(latex);
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Invalid display formula \"" + latex + "\": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Calculates the hash code of the upper case characters
+	 */
+	private static int hash(char[] text, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + Character.toUpperCase(text[i]);
+
+		// Spread the bits, because the table size is a power of 2
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Compares a key with a part of a text, ignoring the case
+	 */
+	private static boolean matches(char[] key, char[] text, int start, int end) {
+		if (key.length != end - start)
+			return false;
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != Character.toUpperCase(text[start + i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Inserts a name into the hash table
+	 */
+	private void insert(int id) {
+		int mask = slots.length - 1;
+		int i = hashes[id] & mask;
+		while (slots[i] != 0)
+			i = (i + 1) & mask;
+		slots[i] = id + 1;
+	}
+
+	/**
+	 * Creates a larger hash table
+	 */
+	private void rehash(int n) {
+		slots = new int[n];
+		for (int id = 0; id < size; id++)
+			insert(id);
+	}
+}
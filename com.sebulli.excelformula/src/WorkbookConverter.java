@@ -0,0 +1,341 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts all formulas of a workbook on all available processors
+ *
+ * The cells are split into chunks per sheet. All chunks are queued
+ * into one thread pool, so idle threads take the next chunk from the
+ * queue. Every thread uses its own Excel2LaTex converter.
+ *
+ * If the conversion is interrupted or a task fails, the other tasks
+ * are cancelled: the converter stops at its next replacement and the
+ * task at its next cell.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class WorkbookConverter {
+
+	// Number of cells converted by one task
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	// One converter per thread, because Excel2LaTex is not thread safe
+	private static final ThreadLocal<Excel2LaTex> CONVERTER = new ThreadLocal<Excel2LaTex>() {
+		@Override
+		protected Excel2LaTex initialValue() {
+			return new Excel2LaTex();
+		}
+	};
+
+	// Number of threads
+	private final int threads;
+
+	// Number of cells per task
+	private final int chunkSize;
+
+	// The defined names of the workbook or null
+	private SymbolTable symbols = null;
+
+	// The structural index, that is filled during the conversion, or null
+	private FormulaIndex index = null;
+
+	// Statistics of the last run
+	private int cells = 0;
+	private long wallTime = 0;
+	private final AtomicLong busyTime = new AtomicLong();
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 * Uses one thread per processor
+	 */
+	public WorkbookConverter() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param threads
+	 * 		Number of threads
+	 * @param chunkSize
+	 * 		Number of cells converted by one task
+	 */
+	public WorkbookConverter(int threads, int chunkSize) {
+		this.threads = Math.max(1, threads);
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Converts a formula with the converter of the actual thread
+	 *
+	 * @param formula
+	 * 		The excel formula
+	 * @return
+	 * 		The LaTex formula
+	 */
+	public static String convert(String formula) {
+		return convert(formula, null);
+	}
+
+	/**
+	 * Converts a formula with the converter of the actual thread and
+	 * displays the defined names with their display formula
+	 *
+	 * @param formula
+	 * 		The excel formula
+	 * @param symbols
+	 * 		The defined names or null
+	 * @return
+	 * 		The LaTex formula
+	 */
+	public static String convert(String formula, SymbolTable symbols) {
+		Excel2LaTex excel2LaTex = CONVERTER.get();
+		excel2LaTex.setSymbols(symbols);
+		return excel2LaTex.convert(formula);
+	}
+
+	/**
+	 * Sets the defined names of the workbook
+	 *
+	 * @param symbols
+	 * 		The defined names or null
+	 */
+	public void setSymbols(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Sets an index, that is filled during the conversion. The id of a
+	 * cell is its position in the converted cells.
+	 *
+	 * @param index
+	 * 		The structural index or null
+	 */
+	public void setIndex(FormulaIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Converts all cells and stores the LaTex formula in the cells
+	 *
+	 * @param formulaCells
+	 * 		The cells to convert
+	 * @return
+	 * 		The converted cells, ordered by sheet, row and column
+	 * @throws InterruptedException
+	 * 		If the conversion was interrupted
+	 */
+	public List<FormulaCell> convert(List<FormulaCell> formulaCells) throws InterruptedException {
+
+		// Order the cells. Every task writes only into its own cells,
+		// so the order does not depend on the order of completion.
+		final List<FormulaCell> ordered = new ArrayList<FormulaCell>(formulaCells);
+		Collections.sort(ordered);
+
+		cells = ordered.size();
+		busyTime.set(0);
+		failures.set(0);
+		long start = System.nanoTime();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+			// Split every sheet into chunks
+			int first = 0;
+			while (first < ordered.size()) {
+				int sheet = ordered.get(first).getSheet();
+				int end = first;
+				while (end < ordered.size() && ordered.get(end).getSheet() == sheet && end - first < chunkSize)
+					end++;
+
+				tasks.add(pool.submit(new ChunkTask(ordered.subList(first, end), first)));
+				first = end;
+			}
+
+			// Wait for all tasks
+			for (Future<?> task : tasks) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Conversion failed", e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		wallTime = System.nanoTime() - start;
+		return ordered;
+	}
+
+	/**
+	 * Converts one chunk of cells
+	 */
+	private class ChunkTask implements Callable<Void> {
+		private final List<FormulaCell> chunk;
+
+		// Position of the first cell in all cells
+		private final int offset;
+
+		ChunkTask(List<FormulaCell> chunk, int offset) {
+			this.chunk = chunk;
+			this.offset = offset;
+		}
+
+		@Override
+		public Void call() {
+			long start = System.nanoTime();
+			Excel2LaTex excel2LaTex = CONVERTER.get();
+			excel2LaTex.setSymbols(symbols);
+
+			for (int i = 0; i < chunk.size(); i++) {
+
+				// Stop, if the conversion was cancelled
+				if (Thread.currentThread().isInterrupted())
+					break;
+
+				FormulaCell cell = chunk.get(i);
+				try {
+					cell.setLatex(excel2LaTex.convert(cell.getFormula()));
+				} catch (IllegalStateException e) {
+					// Cancelled during the conversion
+					cell.setLatex(null);
+					break;
+				} catch (RuntimeException e) {
+					// Keep the other cells, if one formula can not be converted
+					cell.setLatex(null);
+					failures.incrementAndGet();
+				}
+				if (index != null)
+					addToIndex(offset + i, cell);
+			}
+
+			busyTime.addAndGet(System.nanoTime() - start);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the structure of a cell to the index
+	 */
+	private void addToIndex(int id, FormulaCell cell) {
+		FormulaNode node;
+		try {
+			node = FormulaParser.parse(cell.getFormula(), symbols);
+		} catch (IllegalArgumentException e) {
+			node = null;
+		}
+		index.add(id, cell, node);
+	}
+
+	/**
+	 * Gets the number of converted cells per second of the last run
+	 *
+	 * @return
+	 * 		The throughput
+	 */
+	public double getThroughput() {
+		if (wallTime == 0)
+			return 0.0;
+		return cells * 1.0e9 / wallTime;
+	}
+
+	/**
+	 * Gets the parallel efficiency of the last run. It is 1.0, if all
+	 * threads were busy during the whole run.
+	 *
+	 * @return
+	 * 		The parallel efficiency between 0.0 and 1.0
+	 */
+	public double getParallelEfficiency() {
+		if (wallTime == 0)
+			return 0.0;
+		return Math.min(1.0, busyTime.get() / ((double) wallTime * threads));
+	}
+
+	/**
+	 * Gets the number of formulas that could not be converted
+	 *
+	 * @return
+	 * 		The number of failures of the last run
+	 */
+	public int getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Gets a short report of the last run
+	 *
+	 * @return
+	 * 		The report
+	 */
+	public String getReport() {
+		return String.format("%d formulas in %.1f ms on %d threads: %.0f formulas/s, efficiency %.0f%%, %d failed",
+				cells, wallTime / 1.0e6, threads, getThroughput(), getParallelEfficiency() * 100.0, getFailures());
+	}
+
+	/**
+	 * Converts a workbook from the command line
+	 *
+	 * @param args
+	 * 		The workbook file and optionally the number of threads and a
+	 * 		properties file with the display formulas of the defined names
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: WorkbookConverter workbook.xlsx [threads [names.properties]]");
+			System.exit(1);
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (args.length > 1)
+			threads = Integer.parseInt(args[1]);
+
+		WorkbookReader reader = new WorkbookReader(new File(args[0]));
+		SymbolTable symbols = reader.readSymbols();
+		if (args.length > 2)
+			symbols.loadDisplays(new File(args[2]));
+
+		WorkbookConverter converter = new WorkbookConverter(threads, DEFAULT_CHUNK_SIZE);
+		converter.setSymbols(symbols);
+		List<FormulaCell> cells = converter.convert(reader.read());
+
+		for (FormulaCell cell : cells)
+			System.out.println(cell + "\t" + cell.getFormula() + "\t" + cell.getLatex());
+
+		System.err.println(converter.getReport());
+	}
+}
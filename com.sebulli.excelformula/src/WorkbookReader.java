@@ -0,0 +1,570 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Extracts all formulas of an Excel workbook (*.xlsx)
+ *
+ * The workbook is a zip file with one XML file per sheet. Only the
+ * formula cells are collected.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class WorkbookReader {
+
+	// A cell reference like A1, $B$2 or AB12
+	private static final Pattern REFERENCE = Pattern.compile("(\\$?)([A-Z]{1,3})(\\$?)([0-9]+)");
+
+	// The workbook file
+	private final File file;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file
+	 * 		The workbook file
+	 */
+	public WorkbookReader(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Receives the formula cells while the workbook is read
+	 */
+	public interface Listener {
+
+		/**
+		 * Called for every formula cell
+		 *
+		 * @param cell
+		 * 		The formula cell
+		 * @throws InterruptedException
+		 * 		If the reading should be cancelled
+		 */
+		void cell(FormulaCell cell) throws InterruptedException;
+	}
+
+	/**
+	 * Receives the numeric values of all cells of a sheet
+	 */
+	public interface ValueListener {
+
+		/**
+		 * Called for every cell with a number or a boolean value
+		 *
+		 * @param row
+		 * 		The row, starting with 0
+		 * @param column
+		 * 		The column, starting with 0
+		 * @param value
+		 * 		The value, or the cached value of a formula
+		 */
+		void value(int row, int column, double value);
+	}
+
+	/**
+	 * Reads all formula cells of all sheets
+	 *
+	 * @return
+	 * 		The formula cells, ordered by sheet, row and column
+	 * @throws IOException
+	 * 		If the workbook can not be read
+	 */
+	public List<FormulaCell> read() throws IOException {
+		final List<FormulaCell> cells = new ArrayList<FormulaCell>();
+		try {
+			read(new Listener() {
+				public void cell(FormulaCell cell) {
+					cells.add(cell);
+				}
+			});
+		} catch (InterruptedException e) {
+			// The listener is never interrupted
+			Thread.currentThread().interrupt();
+		}
+		return cells;
+	}
+
+	/**
+	 * Reads all formula cells of all sheets and passes them to a listener.
+	 * Only one sheet is kept in memory at a time.
+	 *
+	 * @param listener
+	 * 		Receives the cells in the order of the workbook
+	 * @throws IOException
+	 * 		If the workbook can not be read
+	 * @throws InterruptedException
+	 * 		If the listener cancelled the reading
+	 */
+	public void read(Listener listener) throws IOException, InterruptedException {
+		read(listener, null);
+	}
+
+	/**
+	 * Reads the formula cells of some sheets and passes them to a listener
+	 *
+	 * @param listener
+	 * 		Receives the cells in the order of the workbook
+	 * @param sheetNames
+	 * 		The names of the sheets to read, or null for all sheets
+	 * @throws IOException
+	 * 		If the workbook can not be read
+	 * @throws InterruptedException
+	 * 		If the listener cancelled the reading
+	 */
+	public void read(Listener listener, Set<String> sheetNames) throws IOException, InterruptedException {
+		ZipFile zip = new ZipFile(file);
+
+		try {
+			WorkbookHandler workbook = readSheets(zip);
+			for (int i = 0; i < workbook.sheetNames.size(); i++) {
+				String name = workbook.sheetNames.get(i);
+				String target = workbook.targets.get(i);
+				if (target == null || (sheetNames != null && !sheetNames.contains(name)))
+					continue;
+				parse(zip, target, new SheetHandler(i, name, listener, null));
+			}
+		} catch (SAXException e) {
+
+			// The listener was interrupted
+			if (e.getException() instanceof InterruptedException)
+				throw (InterruptedException) e.getException();
+			throw new IOException("Invalid workbook " + file + ": " + e.getMessage());
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Reads the numeric values of all cells of a sheet, with and
+	 * without formula
+	 *
+	 * @param sheetName
+	 * 		The name of the sheet
+	 * @param values
+	 * 		Receives the values
+	 * @throws IOException
+	 * 		If the workbook can not be read
+	 */
+	public void readValues(String sheetName, ValueListener values) throws IOException {
+		ZipFile zip = new ZipFile(file);
+		try {
+			WorkbookHandler workbook = readSheets(zip);
+			int i = workbook.sheetNames.indexOf(sheetName);
+			if (i < 0 || workbook.targets.get(i) == null)
+				throw new IOException("Missing sheet " + sheetName + " in " + file);
+			parse(zip, workbook.targets.get(i), new SheetHandler(i, sheetName, null, values));
+		} catch (SAXException e) {
+			throw new IOException("Invalid workbook " + file + ": " + e.getMessage());
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Gets a checksum of every sheet. The checksum changes, if the
+	 * content of the sheet changes. It is the CRC of the sheet file in
+	 * the workbook, so the sheet does not have to be read.
+	 *
+	 * @return
+	 * 		The checksums by sheet name, in the order of the workbook
+	 * @throws IOException
+	 * 		If the workbook can not be read
+	 */
+	public Map<String, Long> readChecksums() throws IOException {
+		Map<String, Long> checksums = new LinkedHashMap<String, Long>();
+		ZipFile zip = new ZipFile(file);
+		try {
+			WorkbookHandler workbook = readSheets(zip);
+			for (int i = 0; i < workbook.sheetNames.size(); i++) {
+				String target = workbook.targets.get(i);
+				ZipEntry entry = (target == null) ? null : zip.getEntry(target);
+				if (entry != null)
+					checksums.put(workbook.sheetNames.get(i), (entry.getCrc() << 32) ^ entry.getSize());
+			}
+		} catch (SAXException e) {
+			throw new IOException("Invalid workbook " + file + ": " + e.getMessage());
+		} finally {
+			zip.close();
+		}
+		return checksums;
+	}
+
+	/**
+	 * Gets the sheet names and the files of the sheets
+	 */
+	private WorkbookHandler readSheets(ZipFile zip) throws IOException, SAXException {
+
+		// Get the sheet names and the relations to the sheet files
+		WorkbookHandler workbook = new WorkbookHandler();
+		parse(zip, "xl/workbook.xml", workbook);
+		RelationsHandler relations = new RelationsHandler();
+		parse(zip, "xl/_rels/workbook.xml.rels", relations);
+
+		for (int i = 0; i < workbook.sheetNames.size(); i++) {
+			String target = relations.targets.get(workbook.sheetIds.get(i));
+
+			// Targets are relative to the "xl" folder
+			if (target != null) {
+				if (target.startsWith("/"))
+					target = target.substring(1);
+				else
+					target = "xl/" + target;
+			}
+			workbook.targets.add(target);
+		}
+		return workbook;
+	}
+
+	/**
+	 * Reads the defined names of the workbook, like "Rate" for
+	 * "Sheet1!$B$2"
+	 *
+	 * @return
+	 * 		The defined names with their definitions
+	 * @throws IOException
+	 * 		If the workbook can not be read
+	 */
+	public SymbolTable readSymbols() throws IOException {
+		SymbolTable symbols = new SymbolTable();
+		ZipFile zip = new ZipFile(file);
+		try {
+			parse(zip, "xl/workbook.xml", new DefinedNamesHandler(symbols));
+		} catch (SAXException e) {
+			throw new IOException("Invalid workbook " + file + ": " + e.getMessage());
+		} finally {
+			zip.close();
+		}
+		return symbols;
+	}
+
+	/**
+	 * Parses one XML file of the zip
+	 *
+	 * @param zip
+	 * 		The workbook
+	 * @param name
+	 * 		The name of the XML file
+	 * @param handler
+	 * 		The SAX handler
+	 */
+	private void parse(ZipFile zip, String name, DefaultHandler handler) throws IOException, SAXException {
+		ZipEntry entry = zip.getEntry(name);
+		if (entry == null)
+			throw new IOException("Missing " + name + " in " + file);
+
+		InputStream in = zip.getInputStream(entry);
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(false);
+
+			// The workbook is not trusted: no DTD and no external entities,
+			// so a file can't include other files into its formulas
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+			SAXParser parser = factory.newSAXParser();
+			parser.parse(in, handler);
+		} catch (javax.xml.parsers.ParserConfigurationException e) {
+			throw new SAXException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Converts the formula of the file format into the notation of the
+	 * converter: With a leading "=" and ";" as parameter separator.
+	 *
+	 * @param f
+	 * 		The formula as it is stored in the file
+	 * @return
+	 * 		The formula as it is displayed in Excel or Calc
+	 */
+	static String toDisplayFormula(String f) {
+		StringBuilder sb = new StringBuilder(f.length() + 1);
+		sb.append('=');
+		boolean text = false;
+
+		for (int i = 0; i < f.length(); i++) {
+			char c = f.charAt(i);
+
+			// Do not touch string literals
+			if (c == '"')
+				text = !text;
+			if ((c == ',') && !text)
+				c = ';';
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Moves all relative references of a shared formula
+	 *
+	 * @param f
+	 * 		The formula of the first cell
+	 * @param rows
+	 * 		Number of rows to move
+	 * @param columns
+	 * 		Number of columns to move
+	 * @return
+	 * 		The formula of the moved cell
+	 */
+	static String shiftReferences(String f, int rows, int columns) {
+		StringBuffer sb = new StringBuffer();
+		Matcher m = REFERENCE.matcher(f);
+		int quotes = 0;
+		int last = 0;
+
+		while (m.find()) {
+
+			// Count the quotes to skip string literals
+			for (int i = last; i < m.start(); i++) {
+				if (f.charAt(i) == '"')
+					quotes++;
+			}
+			last = m.start();
+
+			// Skip parts of names and function names like LOG10(
+			boolean partOfName = (m.start() > 0) && isNameChar(f.charAt(m.start() - 1));
+			boolean function = (m.end() < f.length()) && (f.charAt(m.end()) == '(' || isNameChar(f.charAt(m.end())));
+			if (partOfName || function || (quotes % 2) != 0) {
+				m.appendReplacement(sb, Matcher.quoteReplacement(m.group()));
+				continue;
+			}
+
+			// Move only the relative parts
+			int column = FormulaCell.parseColumn(m.group(2));
+			int row = Integer.parseInt(m.group(4)) - 1;
+			if (m.group(1).length() == 0)
+				column += columns;
+			if (m.group(3).length() == 0)
+				row += rows;
+
+			m.appendReplacement(sb, Matcher.quoteReplacement(
+					m.group(1) + FormulaCell.columnName(column) + m.group(3) + (row + 1)));
+		}
+		m.appendTail(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Checks, whether a character may be part of a name
+	 */
+	private static boolean isNameChar(char c) {
+		return Character.isLetterOrDigit(c) || (c == '_') || (c == '.');
+	}
+
+	/**
+	 * Collects the sheet names from xl/workbook.xml
+	 */
+	private static class WorkbookHandler extends DefaultHandler {
+		final List<String> sheetNames = new ArrayList<String>();
+		final List<String> sheetIds = new ArrayList<String>();
+		final List<String> targets = new ArrayList<String>();
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (qName.equals("sheet")) {
+				sheetNames.add(attributes.getValue("name"));
+				sheetIds.add(attributes.getValue("r:id"));
+			}
+		}
+	}
+
+	/**
+	 * Collects the defined names from xl/workbook.xml
+	 */
+	private static class DefinedNamesHandler extends DefaultHandler {
+		private final SymbolTable symbols;
+
+		// The actual defined name and its definition
+		private String name;
+		private StringBuilder text;
+
+		DefinedNamesHandler(SymbolTable symbols) {
+			this.symbols = symbols;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (qName.equals("definedName")) {
+				name = attributes.getValue("name");
+				text = new StringBuilder();
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (text != null)
+				text.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (qName.equals("definedName") && text != null) {
+
+				// Skip the internal names like _xlnm.Print_Area
+				if (name != null && !name.startsWith("_xlnm."))
+					symbols.setDefinition(name, text.toString());
+				name = null;
+				text = null;
+			}
+		}
+	}
+
+	/**
+	 * Collects the relation targets from xl/_rels/workbook.xml.rels
+	 */
+	private static class RelationsHandler extends DefaultHandler {
+		final Map<String, String> targets = new HashMap<String, String>();
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (qName.equals("Relationship"))
+				targets.put(attributes.getValue("Id"), attributes.getValue("Target"));
+		}
+	}
+
+	/**
+	 * Collects all formula cells of one sheet
+	 */
+	private static class SheetHandler extends DefaultHandler {
+		private final int sheet;
+		private final String sheetName;
+		private final Listener listener;
+		private final ValueListener values;
+
+		// Master formulas of the shared formulas with their position
+		private final Map<String, String> shared = new HashMap<String, String>();
+		private final Map<String, String> sharedCell = new HashMap<String, String>();
+
+		// State of the actual cell
+		private String cellName;
+		private String cellType;
+		private String formula;
+		private String sharedIndex;
+		private StringBuilder text;
+		private String value;
+
+		SheetHandler(int sheet, String sheetName, Listener listener, ValueListener values) {
+			this.sheet = sheet;
+			this.sheetName = sheetName;
+			this.listener = listener;
+			this.values = values;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (qName.equals("c")) {
+				cellName = attributes.getValue("r");
+				cellType = attributes.getValue("t");
+				formula = null;
+				sharedIndex = null;
+				value = null;
+			}
+			else if (qName.equals("f")) {
+				sharedIndex = "shared".equals(attributes.getValue("t")) ? attributes.getValue("si") : null;
+				text = new StringBuilder();
+			}
+			else if (qName.equals("v")) {
+				text = new StringBuilder();
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (text != null)
+				text.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (qName.equals("f")) {
+				formula = text.toString();
+
+				// Shared formulas: the first cell contains the formula,
+				// all the others only the index
+				if (sharedIndex != null) {
+					if (formula.length() > 0) {
+						shared.put(sharedIndex, formula);
+						sharedCell.put(sharedIndex, cellName);
+					}
+					else if (shared.containsKey(sharedIndex)) {
+						String master = sharedCell.get(sharedIndex);
+						formula = shiftReferences(shared.get(sharedIndex),
+								FormulaCell.parseRow(cellName) - FormulaCell.parseRow(master),
+								FormulaCell.parseColumn(cellName) - FormulaCell.parseColumn(master));
+					}
+				}
+				text = null;
+			}
+			else if (qName.equals("v")) {
+				value = text.toString();
+				text = null;
+			}
+			else if (qName.equals("c")) {
+
+				// Numbers and booleans, but no texts and errors
+				if (values != null && value != null && (cellType == null || cellType.equals("n") || cellType.equals("b"))) {
+					try {
+						values.value(FormulaCell.parseRow(cellName), FormulaCell.parseColumn(cellName),
+								Double.parseDouble(value));
+					} catch (NumberFormatException e) {
+						// Not a number
+					}
+				}
+
+				if (listener != null && formula != null && formula.length() > 0) {
+					try {
+						listener.cell(new FormulaCell(sheet, sheetName,
+								FormulaCell.parseRow(cellName), FormulaCell.parseColumn(cellName),
+								toDisplayFormula(formula), value));
+					} catch (InterruptedException e) {
+						throw new SAXException(e);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,545 @@
+/*
+ *
+ *  ExcelFormula
+ *  Copyright (C) 2012  Gerd Bartelt
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Watches a folder with workbooks and exports the equations of every
+ * workbook as PNG files, each time it is saved.
+ *
+ * Only the changed part is exported again: Sheets with the same
+ * checksum are not read at all, and of the other sheets only the cells
+ * with a changed formula are converted and rendered. The images of
+ * deleted cells and of cells, that failed, are removed. A failed cell
+ * is not cached, so it is exported again next time. The formulas and
+ * their LaTex formulas are kept in a cache file in the output folder of
+ * the workbook, together with the structural index of all formulas.
+ * If a workbook is removed from the folder, its output is removed, too.
+ *
+ * @author Gerd Bartelt
+ *
+ */
+public class WorkbookWatcher {
+
+	// Names of the files in the output folder of a workbook
+	public static final String CACHE_FILE = "formulas.cache";
+	public static final String INDEX_FILE = "formulas.index";
+
+	// Identifies the cache file
+	private static final int MAGIC = 0x46434143;
+	private static final int VERSION = 1;
+
+	// Checksum of a sheet with cells, that failed. It is read again
+	// next time, and the failed cells are exported again.
+	private static final long INCOMPLETE = Long.MIN_VALUE;
+
+	// The watched folder and the output folder
+	private final File folder;
+	private final File output;
+
+	// Milliseconds between two checks of the folder
+	private final long interval;
+
+	// Properties file with the display formulas of the defined names or null
+	private File displays = null;
+	private long displaysModified = 0;
+
+	// Modification time and length of every workbook, when it was exported
+	private final Map<File, String> stamps = new HashMap<File, String>();
+
+	// The cache of every workbook
+	private final Map<File, Cache> caches = new HashMap<File, Cache>();
+
+	/**
+	 * The cached formulas of a workbook
+	 */
+	private static class Cache {
+
+		// The sheets in the order of the workbook
+		final Map<String, Sheet> sheets = new LinkedHashMap<String, Sheet>();
+	}
+
+	/**
+	 * The cached formulas of a sheet
+	 */
+	private static class Sheet {
+		final long checksum;
+
+		// The cells by cell name, in the order of the sheet
+		final Map<String, FormulaCell> cells = new LinkedHashMap<String, FormulaCell>();
+
+		Sheet(long checksum) {
+			this.checksum = checksum;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param folder
+	 * 		The folder with the workbooks
+	 * @param output
+	 * 		The output folder. Every workbook gets its own sub folder.
+	 * @param interval
+	 * 		Milliseconds between two checks of the folder
+	 */
+	public WorkbookWatcher(File folder, File output, long interval) {
+		this.folder = folder;
+		this.output = output;
+		this.interval = Math.max(10, interval);
+	}
+
+	/**
+	 * Sets the display formulas of the defined names. If the file
+	 * changes, all workbooks are exported again.
+	 *
+	 * @param displays
+	 * 		Properties file with lines like "Rate=r", or null
+	 */
+	public void setDisplays(File displays) {
+		this.displays = displays;
+	}
+
+	/**
+	 * Checks the folder until the thread is interrupted
+	 *
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted
+	 */
+	public void watch() throws InterruptedException {
+		while (true) {
+			check();
+			Thread.sleep(interval);
+		}
+	}
+
+	/**
+	 * Exports all workbooks, that were changed since the last check
+	 *
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted
+	 */
+	public void check() throws InterruptedException {
+
+		// Export everything again, if the display formulas changed
+		if (displays != null && displays.lastModified() != displaysModified) {
+			displaysModified = displays.lastModified();
+			stamps.clear();
+			caches.clear();
+			for (File workbook : workbooks())
+				new File(new File(output, baseName(workbook)), CACHE_FILE).delete();
+		}
+
+		List<File> workbooks = workbooks();
+		removeDeleted(workbooks);
+
+		for (File workbook : workbooks) {
+			String stamp = workbook.lastModified() + ":" + workbook.length();
+			if (stamp.equals(stamps.get(workbook)))
+				continue;
+
+			try {
+				long start = System.nanoTime();
+				String report = update(workbook);
+				System.err.println(String.format("%s: %s in %.1f ms", workbook.getName(), report,
+						(System.nanoTime() - start) / 1.0e6));
+				stamps.put(workbook, stamp);
+			} catch (IOException e) {
+				// The workbook may still be written. Try it again next time.
+				System.err.println(workbook.getName() + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				// Also an unexpected error does not stop watching the
+				// other workbooks. Try it again next time.
+				System.err.println(workbook.getName() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Removes the images, the cache and the index of the workbooks, that
+	 * are no longer in the folder. Also the output of workbooks, that
+	 * were removed while nobody watched the folder, is found by its
+	 * cache file.
+	 *
+	 * @param workbooks
+	 * 		The workbooks in the folder
+	 */
+	private void removeDeleted(List<File> workbooks) {
+
+		// Do not remove anything, if the folder can't be read
+		if (!folder.isDirectory())
+			return;
+
+		stamps.keySet().retainAll(workbooks);
+		caches.keySet().retainAll(workbooks);
+
+		Set<String> names = new HashSet<String>();
+		for (File workbook : workbooks)
+			names.add(baseName(workbook));
+
+		File[] targets = output.listFiles();
+		if (targets == null)
+			return;
+		for (File target : targets) {
+			File cacheFile = new File(target, CACHE_FILE);
+			if (names.contains(target.getName()) || !cacheFile.isFile())
+				continue;
+
+			int removed = 0;
+			for (Sheet sheet : loadCache(cacheFile).sheets.values())
+				removed += delete(target, sheet.cells.values());
+			cacheFile.delete();
+			new File(target, INDEX_FILE).delete();
+
+			// Only an empty folder is deleted
+			target.delete();
+			System.err.println(target.getName() + ": workbook removed, " + removed + " cells removed");
+		}
+	}
+
+	/**
+	 * Gets all workbooks of the folder, without the lock files of Excel
+	 */
+	private List<File> workbooks() {
+		List<File> workbooks = new ArrayList<File>();
+		File[] files = folder.listFiles();
+		if (files == null)
+			return workbooks;
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isFile() && name.toLowerCase().endsWith(".xlsx") && !name.startsWith("~$"))
+				workbooks.add(file);
+		}
+		return workbooks;
+	}
+
+	/**
+	 * Exports the changed sheets and cells of a workbook
+	 *
+	 * @param workbook
+	 * 		The workbook
+	 * @return
+	 * 		A short report
+	 * @throws IOException
+	 * 		If the workbook can not be read or the output not written
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted
+	 */
+	public String update(File workbook) throws IOException, InterruptedException {
+		final File target = new File(output, baseName(workbook));
+		target.mkdirs();
+
+		Cache cache = caches.get(workbook);
+		if (cache == null)
+			cache = loadCache(new File(target, CACHE_FILE));
+
+		// Find the changed sheets by their checksum
+		WorkbookReader reader = new WorkbookReader(workbook);
+		Map<String, Long> checksums = reader.readChecksums();
+		Set<String> changed = new HashSet<String>();
+		for (Map.Entry<String, Long> entry : checksums.entrySet()) {
+			Sheet sheet = cache.sheets.get(entry.getKey());
+			if (sheet == null || sheet.checksum != entry.getValue())
+				changed.add(entry.getKey());
+		}
+
+		int removed = 0;
+		for (String name : cache.sheets.keySet()) {
+			if (!checksums.containsKey(name))
+				removed += delete(target, cache.sheets.get(name).cells.values());
+		}
+		if (changed.isEmpty() && removed == 0 && checksums.size() == cache.sheets.size()) {
+			caches.put(workbook, cache);
+			return "unchanged";
+		}
+
+		// Read only the changed sheets
+		final Map<String, List<FormulaCell>> read = new HashMap<String, List<FormulaCell>>();
+		for (String name : changed)
+			read.put(name, new ArrayList<FormulaCell>());
+		reader.read(new WorkbookReader.Listener() {
+			public void cell(FormulaCell cell) {
+				read.get(cell.getSheetName()).add(cell);
+			}
+		}, changed);
+
+		// Keep the LaTex formula of the cells with the same formula
+		Cache updated = new Cache();
+		List<FormulaCell> export = new ArrayList<FormulaCell>();
+		int kept = 0;
+		for (Map.Entry<String, Long> entry : checksums.entrySet()) {
+			String name = entry.getKey();
+			Sheet old = cache.sheets.get(name);
+			if (!changed.contains(name)) {
+				updated.sheets.put(name, old);
+				continue;
+			}
+
+			Sheet sheet = new Sheet(entry.getValue());
+			for (FormulaCell cell : read.get(name)) {
+				FormulaCell oldCell = (old == null) ? null : old.cells.remove(cell.getCellName());
+				if (oldCell != null && oldCell.getFormula().equals(cell.getFormula())) {
+					cell.setLatex(oldCell.getLatex());
+					kept++;
+				}
+				else
+					export.add(cell);
+				sheet.cells.put(cell.getCellName(), cell);
+			}
+
+			// The remaining cells were deleted
+			if (old != null)
+				removed += delete(target, old.cells.values());
+			updated.sheets.put(name, sheet);
+		}
+
+		// Convert and render the changed cells
+		int failed = 0;
+		if (!export.isEmpty()) {
+			final Set<FormulaCell> written = Collections.synchronizedSet(Collections
+					.newSetFromMap(new IdentityHashMap<FormulaCell, Boolean>()));
+			FormulaSink sink = new FormulaSink() {
+				public void write(FormulaCell cell, BufferedImage image) throws IOException {
+					ImageIO.write(image, "png", new File(target, FormulaPipeline.imageName(cell.getSheetName(),
+							cell.getCellName())));
+					written.add(cell);
+				}
+			};
+			int cpus = Runtime.getRuntime().availableProcessors();
+			FormulaPipeline pipeline = new FormulaPipeline(sink, 1, cpus, 1, 64);
+			pipeline.setSymbols(readSymbols(reader));
+			pipeline.run(export.iterator());
+
+			// The pipeline skips the cells, that can't be converted, rendered
+			// or written. They are not cached, and the image of their old
+			// formula is deleted.
+			List<FormulaCell> failures = new ArrayList<FormulaCell>();
+			for (FormulaCell cell : export) {
+				if (!written.contains(cell))
+					failures.add(cell);
+			}
+			failed = delete(target, failures);
+			for (FormulaCell cell : failures) {
+				Sheet sheet = updated.sheets.get(cell.getSheetName());
+				if (sheet.checksum != INCOMPLETE) {
+					Sheet incomplete = new Sheet(INCOMPLETE);
+					incomplete.cells.putAll(sheet.cells);
+					updated.sheets.put(cell.getSheetName(), incomplete);
+					sheet = incomplete;
+				}
+				sheet.cells.remove(cell.getCellName());
+			}
+		}
+
+		caches.put(workbook, updated);
+		saveCache(updated, new File(target, CACHE_FILE));
+		createIndex(updated).save(new File(target, INDEX_FILE));
+
+		return String.format("%d of %d sheets read, %d cells exported, %d failed, %d kept, %d removed",
+				changed.size(), checksums.size(), export.size() - failed, failed, kept, removed);
+	}
+
+	/**
+	 * Reads the defined names and their display formulas
+	 */
+	private SymbolTable readSymbols(WorkbookReader reader) throws IOException {
+		SymbolTable symbols = reader.readSymbols();
+		if (displays != null && displays.isFile())
+			symbols.loadDisplays(displays);
+		return symbols;
+	}
+
+	/**
+	 * Deletes the images of cells
+	 *
+	 * @return
+	 * 		The number of cells
+	 */
+	private static int delete(File target, Iterable<FormulaCell> cells) {
+		int n = 0;
+		for (FormulaCell cell : cells) {
+			new File(target, FormulaPipeline.imageName(cell.getSheetName(), cell.getCellName())).delete();
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Creates the structural index of all cached formulas
+	 */
+	private static FormulaIndex createIndex(Cache cache) {
+		FormulaIndex index = new FormulaIndex();
+		int id = 0;
+		for (Sheet sheet : cache.sheets.values()) {
+			for (FormulaCell cell : sheet.cells.values()) {
+				FormulaNode node;
+				try {
+					node = FormulaParser.parse(cell.getFormula());
+				} catch (IllegalArgumentException e) {
+					node = null;
+				}
+				index.add(id++, cell, node);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Gets the name of a workbook without the extension
+	 */
+	private static String baseName(File workbook) {
+		String name = workbook.getName();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0) ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Saves the cached formulas
+	 */
+	private static void saveCache(Cache cache, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(cache.sheets.size());
+			for (Map.Entry<String, Sheet> entry : cache.sheets.entrySet()) {
+				Sheet sheet = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(sheet.checksum);
+				out.writeInt(sheet.cells.size());
+				for (FormulaCell cell : sheet.cells.values()) {
+					out.writeInt(cell.getSheet());
+					out.writeInt(cell.getRow());
+					out.writeInt(cell.getColumn());
+					writeString(out, cell.getFormula());
+					writeString(out, cell.getValue());
+					writeString(out, cell.getLatex());
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads the cached formulas. A missing or invalid file is an
+	 * empty cache.
+	 */
+	private static Cache loadCache(File file) {
+		Cache cache = new Cache();
+		if (!file.isFile())
+			return cache;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return new Cache();
+				int sheets = in.readInt();
+				for (int i = 0; i < sheets; i++) {
+					String name = in.readUTF();
+					Sheet sheet = new Sheet(in.readLong());
+					int cells = in.readInt();
+					for (int j = 0; j < cells; j++) {
+						int index = in.readInt();
+						int row = in.readInt();
+						int column = in.readInt();
+						String formula = readString(in);
+						String value = readString(in);
+						FormulaCell cell = new FormulaCell(index, name, row, column, formula, value);
+						cell.setLatex(readString(in));
+						sheet.cells.put(cell.getCellName(), cell);
+					}
+					cache.sheets.put(name, sheet);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return new Cache();
+		}
+		return cache;
+	}
+
+	/**
+	 * Writes a string, that may be null or longer than writeUTF allows
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string of writeString()
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Watches a folder from the command line
+	 *
+	 * @param args
+	 * 		The folder with the workbooks, the output folder and optionally
+	 * 		the interval in milliseconds and a properties file with the
+	 * 		display formulas of the defined names
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: WorkbookWatcher folder output [interval [names.properties]]");
+			System.exit(1);
+		}
+
+		long interval = args.length > 2 ? Long.parseLong(args[2]) : 500;
+		WorkbookWatcher watcher = new WorkbookWatcher(new File(args[0]), new File(args[1]), interval);
+		if (args.length > 3)
+			watcher.setDisplays(new File(args[3]));
+		watcher.watch();
+	}
+}